@@ -1,78 +1,198 @@
 package miniplc0java;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.PrintStream;
+import java.nio.LongBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.Locale;
 import java.util.Scanner;
 
 import miniplc0java.analyser.Analyser;
+import miniplc0java.analyser.ParallelAnalyser;
+import miniplc0java.cache.CompileCache;
+import miniplc0java.error.AssembleError;
 import miniplc0java.error.CompileError;
-import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.Assembler;
+import miniplc0java.instruction.InstructionBuffer;
+import miniplc0java.instruction.ListingWriter;
+import miniplc0java.instruction.ObjectFile;
+import miniplc0java.instruction.SourceMap;
+import miniplc0java.server.CompileClient;
+import miniplc0java.server.CompileServer;
+import miniplc0java.tokenizer.PipelinedTokenizer;
 import miniplc0java.tokenizer.StringIter;
 import miniplc0java.tokenizer.Token;
+import miniplc0java.tokenizer.TokenSource;
 import miniplc0java.tokenizer.TokenType;
 import miniplc0java.tokenizer.Tokenizer;
-
-import net.sourceforge.argparse4j.*;
-import net.sourceforge.argparse4j.impl.Arguments;
-import net.sourceforge.argparse4j.inf.ArgumentAction;
-import net.sourceforge.argparse4j.inf.ArgumentParser;
-import net.sourceforge.argparse4j.inf.ArgumentParserException;
-import net.sourceforge.argparse4j.inf.Namespace;
+import miniplc0java.vm.Engine;
+import miniplc0java.vm.ExecutionTrace;
+import miniplc0java.vm.MiniVm;
+import miniplc0java.vm.OutputBuffer;
+import miniplc0java.vm.Profiler;
+import miniplc0java.vm.VirtualMachine;
 
 public class App {
+    // 标准输入输出，在编译服务器里是客户端的
+    private final InputStream stdin;
+    private final PrintStream stdout;
+    private final PrintStream stderr;
+    // 相对路径相对于这个目录，为 null 时是当前目录
+    private final Path workingDirectory;
+
+    /**
+     * @param stdin            输入文件是 - 时从这里读
+     * @param stdout           输出文件是 - 时写到这里
+     * @param stderr           错误信息
+     * @param workingDirectory 相对路径相对于这个目录，为 null 时是当前目录
+     */
+    public App(InputStream stdin, PrintStream stdout, PrintStream stderr, Path workingDirectory) {
+        this.stdin = stdin;
+        this.stdout = stdout;
+        this.stderr = stderr;
+        this.workingDirectory = workingDirectory;
+    }
+
     public static void main(String[] args) throws CompileError {
-        var argparse = buildArgparse();
-        Namespace result;
-        try {
-            result = argparse.parseArgs(args);
-        } catch (ArgumentParserException e1) {
-            argparse.handleError(e1);
+        if (args.length > 0 && args[0].equals("--daemon")) {
+            CompileServer.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--client")) {
+            System.exit(CompileClient.main(Arrays.copyOfRange(args, 1, args.length)));
             return;
         }
+        int status = new App(System.in, System.out, System.err, null).run(args);
+        if (status != 0) {
+            System.exit(status);
+        }
+    }
+
+    /**
+     * 按命令行参数运行一次
+     *
+     * @return 退出码
+     */
+    public int run(String[] args) {
+        var parser = buildParser();
+        OptionParser.Result result;
+        try {
+            result = parser.parse(args, stdout);
+        } catch (OptionParser.OptionException e1) {
+            parser.handleError(e1, stderr);
+            return 0;
+        }
+        if (result == null) {
+            // -h/--help
+            return 0;
+        }
+        // 值的范围在解析以后检查，不对时退出码是 2
+        if (result.getInt("cache_size") <= 0) {
+            parser.handleError(parser.invalidValue("cache_size", result.getInt("cache_size"), "must be positive"),
+                    stderr);
+            return 2;
+        }
+        int traceSize = result.getInt("trace_size");
+        if (traceSize <= 0 || traceSize > ExecutionTrace.MAX_CAPACITY) {
+            parser.handleError(parser.invalidValue("trace_size", traceSize,
+                    "must be between 1 and " + ExecutionTrace.MAX_CAPACITY), stderr);
+            return 2;
+        }
 
         var inputFileName = result.getString("input");
         var outputFileName = result.getString("output");
 
         InputStream input;
         if (inputFileName.equals("-")) {
-            input = System.in;
+            input = stdin;
         } else {
             try {
-                input = new FileInputStream(inputFileName);
+                input = new FileInputStream(file(inputFileName).toFile());
             } catch (FileNotFoundException e) {
-                System.err.println("Cannot find input file.");
-                e.printStackTrace();
-                System.exit(2);
-                return;
+                stderr.println("Cannot find input file.");
+                e.printStackTrace(stderr);
+                return 2;
             }
         }
 
         PrintStream output;
+        // 大块输出时直接写 channel，绕过 PrintStream
+        WritableByteChannel outputChannel;
         if (outputFileName.equals("-")) {
-            output = System.out;
+            output = stdout;
+            if (stdout == System.out) {
+                outputChannel = new FileOutputStream(FileDescriptor.out).getChannel();
+            } else {
+                outputChannel = Channels.newChannel(stdout);
+            }
         } else {
             try {
-                output = new PrintStream(new FileOutputStream(outputFileName));
+                var outputStream = new FileOutputStream(file(outputFileName).toFile());
+                output = new PrintStream(outputStream);
+                outputChannel = outputStream.getChannel();
             } catch (FileNotFoundException e) {
-                System.err.println("Cannot open output file.");
-                e.printStackTrace();
-                System.exit(2);
-                return;
+                stderr.println("Cannot open output file.");
+                e.printStackTrace(stderr);
+                close(input);
+                return 2;
             }
         }
 
+        // 编译服务器里每个请求都运行一次，文件要关掉，不能等 GC
+        try {
+            return run(result, input, output, outputChannel);
+        } finally {
+            close(input);
+            if (output != stdout) {
+                output.close();
+            }
+        }
+    }
+
+    private void close(InputStream input) {
+        if (input == stdin) {
+            return;
+        }
+        try {
+            input.close();
+        } catch (IOException e) {
+            // 只读的文件，关闭出错也不影响结果
+        }
+    }
+
+    /**
+     * 打开输入输出以后按选项处理
+     *
+     * @return 退出码
+     */
+    private int run(OptionParser.Result result, InputStream input, PrintStream output,
+            WritableByteChannel outputChannel) {
+        var inputFileName = result.getString("input");
+        var engine = Engine.of(result.getString("engine"));
+        var flushPolicy = OutputBuffer.FlushPolicy.valueOf(result.getString("flush").toUpperCase(Locale.ROOT));
+
         Scanner scanner;
         scanner = new Scanner(input);
         var iter = new StringIter(scanner);
         var tokenizer = tokenize(iter);
 
-        if (result.getBoolean("tokenize")) {
+        if (result.getBoolean("batch")) {
+            // 输入是清单，输出是每个文件的状态
+            return batch(input, output, result);
+        } else if (result.getBoolean("tokenize")) {
             // tokenize
             var tokens = new ArrayList<Token>();
             try {
@@ -85,45 +205,391 @@ public class App {
                 }
             } catch (Exception e) {
                 // 遇到错误不输出，直接退出
-                System.err.println(e);
-                System.exit(0);
-                return;
+                stderr.println(e);
+                return 0;
             }
             for (Token token : tokens) {
                 output.println(token.toString());
             }
-        } else if (result.getBoolean("analyse")) {
-            // analyze
-            var analyzer = new Analyser(tokenizer);
-            List<Instruction> instructions;
+        } else if (result.getBoolean("analyse") || result.getBoolean("run")) {
+            // analyze，--run 时编译完直接交给虚拟机，不经过文本
+            var timer = new PhaseTimer(result.getBoolean("timings"));
+            var cache = openCache(result);
+            // 串行编译用当前线程的 Compiler，它要一次拿到整个源码
+            var serial = !result.getBoolean("pipeline") && !result.getBoolean("parallel");
+            byte[] bytes = null;
+            if (cache != null || serial) {
+                try {
+                    bytes = input.readAllBytes();
+                } catch (IOException e) {
+                    stderr.println("Cannot read input file.");
+                    e.printStackTrace(stderr);
+                    return 2;
+                }
+            }
+            String key = null;
+            if (cache != null) {
+                // 现在没有影响编译结果的选项：调试信息总是存下来，--parallel 和 --pipeline 的结果一样
+                key = CompileCache.key(bytes, "");
+                var cached = cache.get(key);
+                if (cached != null) {
+                    // 命中时不经过 Tokenizer 和 Analyser
+                    if (cached.isFailed()) {
+                        stderr.println(cached.getDiagnostics());
+                        return 0;
+                    }
+                    timer.phase("compile");
+                    return emit(engine, cached.toBuffer(), cached.getSourceMap(), flushPolicy, output, outputChannel,
+                            result, timer);
+                }
+            }
+            if (serial) {
+                // 编译服务器的线程反复编译时复用同一个 Compiler 的缓冲区，结果只在 sink 里有效
+                var cacheKey = key;
+                try {
+                    return Compiler.forCurrentThread().compile(new String(bytes, Charset.defaultCharset()),
+                            (instructions, sourceMap) -> {
+                                if (cache != null) {
+                                    cache.putCompiled(cacheKey, instructions, sourceMap);
+                                }
+                                timer.phase("compile");
+                                return emit(engine, instructions, sourceMap, flushPolicy, output, outputChannel,
+                                        result, timer);
+                            });
+                } catch (CompileError e) {
+                    // 遇到错误不输出，直接退出。编译完以后输出和运行的错误由 emit 自己处理
+                    stderr.println(e);
+                    if (cache != null) {
+                        cache.putFailed(key, e.toString());
+                    }
+                    return 0;
+                } catch (IOException e) {
+                    stderr.println("Cannot write output file.");
+                    e.printStackTrace(stderr);
+                    return 2;
+                }
+            }
+            if (bytes != null) {
+                tokenizer = tokenize(new StringIter(new Scanner(new ByteArrayInputStream(bytes))));
+            }
+            InstructionBuffer instructions;
+            SourceMap sourceMap;
+            // 流水线模式下词法分析在另一个线程里做
+            var pipeline = result.getBoolean("pipeline") ? new PipelinedTokenizer(tokenizer) : null;
+            TokenSource source = pipeline != null ? pipeline : tokenizer;
             try {
-                instructions = analyzer.analyse();
+                if (result.getBoolean("parallel")) {
+                    var analyser = new ParallelAnalyser(source);
+                    instructions = analyser.analyseToBuffer();
+                    sourceMap = analyser.getSourceMap();
+                } else {
+                    var analyser = new Analyser(source);
+                    instructions = analyser.analyseToBuffer();
+                    sourceMap = analyser.getSourceMap();
+                }
             } catch (Exception e) {
                 // 遇到错误不输出，直接退出
-                System.err.println(e);
-                System.exit(0);
-                return;
+                stderr.println(e);
+                if (cache != null) {
+                    cache.putFailed(key, e.toString());
+                }
+                return 0;
+            } finally {
+                if (pipeline != null) {
+                    pipeline.close();
+                }
             }
-            for (Instruction instruction : instructions) {
-                output.println(instruction.toString());
+            if (cache != null) {
+                cache.putCompiled(key, instructions, sourceMap);
+            }
+            timer.phase("compile");
+            return emit(engine, instructions, sourceMap, flushPolicy, output, outputChannel, result, timer);
+        } else if (result.getBoolean("run_object")) {
+            // 直接运行目标文件，mmap 之后交给虚拟机，不需要解析
+            var timer = new PhaseTimer(result.getBoolean("timings"));
+            if (inputFileName.equals("-")) {
+                stderr.println("Object files cannot be read from standard input.");
+                return 2;
+            }
+            ObjectFile object;
+            try {
+                object = ObjectFile.map(file(inputFileName), true);
+            } catch (IOException e) {
+                stderr.println("Cannot load object file.");
+                e.printStackTrace(stderr);
+                return 2;
             }
+            timer.phase("load");
+            return execute(engine, object.instructions(), object.getSourceMap(), flushPolicy, output, result, timer);
+        } else if (result.getBoolean("run_listing")) {
+            // 运行 --analyse 输出的指令列表
+            var timer = new PhaseTimer(result.getBoolean("timings"));
+            InstructionBuffer instructions;
+            try {
+                if (inputFileName.equals("-")) {
+                    instructions = Assembler.assemble(input.readAllBytes());
+                } else {
+                    instructions = Assembler.assemble(file(inputFileName));
+                }
+            } catch (IOException e) {
+                stderr.println("Cannot read input file.");
+                e.printStackTrace(stderr);
+                return 2;
+            } catch (AssembleError e) {
+                stderr.println(e);
+                return 2;
+            }
+            timer.phase("assemble");
+            return execute(engine, instructions.asLongBuffer(), null, flushPolicy, output, result, timer);
+        } else if (result.getBoolean("decode_trace")) {
+            // 把 --trace 写出的二进制记录转成文本
+            try {
+                ExecutionTrace.decode(input, output);
+            } catch (IOException e) {
+                stderr.println("Cannot decode execution trace.");
+                e.printStackTrace(stderr);
+                return 2;
+            }
+            output.flush();
         } else {
-            System.err.println("Please specify either '--analyse' or '--tokenize'.");
-            System.exit(3);
+            stderr.println("Please specify either '--analyse' or '--tokenize'.");
+            return 3;
         }
+        return 0;
+    }
+
+    /**
+     * @return 相对于工作目录的路径
+     */
+    private Path file(String name) {
+        return workingDirectory == null ? Path.of(name) : workingDirectory.resolve(name);
     }
 
-    private static ArgumentParser buildArgparse() {
-        var builder = ArgumentParsers.newFor("miniplc0-java");
-        var parser = builder.build();
-        parser.addArgument("-t", "--tokenize").help("Tokenize the input").action(Arguments.storeTrue());
-        parser.addArgument("-l", "--analyse").help("Analyze the input").action(Arguments.storeTrue());
-        parser.addArgument("-o", "--output").help("Set the output file").required(true).dest("output")
-                .action(Arguments.store());
-        parser.addArgument("file").required(true).dest("input").action(Arguments.store()).help("Input file");
+
+    private static OptionParser buildParser() {
+        var parser = new OptionParser("miniplc0-java");
+        parser.addFlag("-t", "--tokenize").help("Tokenize the input");
+        parser.addFlag("-l", "--analyse").help("Analyze the input");
+        parser.addFlag("-r", "--run").help("Analyze the input and run it in the same process");
+        parser.addFlag("--batch").help("Treat the input as a manifest of 'input output' lines, "
+                + "process them in parallel and write a status report");
+        parser.addOption("-j", "--jobs").help("Set the number of files processed at once by --batch")
+                .integer().setDefault(0);
+        parser.addFlag("-p", "--parallel").help("Analyze statements in parallel");
+        parser.addFlag("--pipeline").help("Tokenize in a separate thread");
+        parser.addFlag("--object").help("Write a binary object file instead of a listing");
+        parser.addFlag("-g", "--debug-info").help("Include source positions in the object file");
+        parser.addFlag("--run-object").help("Run a binary object file");
+        parser.addFlag("--run-listing").help("Run an instruction listing produced by --analyse");
+        parser.addOption("-e", "--engine").help("Set the execution engine used by --run, --run-object and --run-listing")
+                .choices(engineNames()).setDefault(Engine.INTERPRETER.getName());
+        parser.addFlag("--timings").help("Print the time spent in each phase to standard error when running");
+        parser.addOption("--flush").help("When to write program output: 'block' buffers it, 'line' writes every line")
+                .choices("block", "line").setDefault("block");
+        parser.addOption("--profile").help("Run with the profiling interpreter and write a flat profile to this file");
+        parser.addOption("--profile-collapsed")
+                .help("Run with the profiling interpreter and write collapsed stacks for flame graphs to this file");
+        parser.addOption("--trace").help("Record the last executed instructions and write them to this file on failure");
+        parser.addOption("--trace-size").help("Set how many instructions --trace keeps").integer()
+                .setDefault(1024);
+        parser.addFlag("--decode-trace").help("Convert a file written by --trace to text");
+        parser.addFlag("--cache").help("Reuse results of compiling identical sources, kept in a local directory");
+        parser.addOption("--cache-dir").help("Set the directory used by --cache");
+        parser.addOption("--cache-size").help("Set the size limit of the --cache directory in MiB")
+                .integer().setDefault(256);
+        parser.addOption("-o", "--output").help("Set the output file").required().dest("output");
+        parser.addPositional("file").dest("input").help("Input file");
         return parser;
     }
 
+    /**
+     * @return --cache 或者 --cache-dir 指定的编译缓存，都没有指定时为 null
+     */
+    private CompileCache openCache(OptionParser.Result result) {
+        var directory = result.getString("cache_dir");
+        if (directory == null && !result.getBoolean("cache")) {
+            return null;
+        }
+        var path = directory != null ? file(directory) : CompileCache.defaultDirectory();
+        return new CompileCache(path, result.getInt("cache_size") * 1024L * 1024);
+    }
+
+    /**
+     * 批量处理清单里的文件，每个文件一行状态写到 output
+     *
+     * @return 所有文件里最大的退出码
+     */
+    private int batch(InputStream input, PrintStream output, OptionParser.Result result) {
+        var entries = new ArrayList<Batch.Entry>();
+        try {
+            for (var entry : Batch.readManifest(new InputStreamReader(input))) {
+                entries.add(new Batch.Entry(file(entry.getInput().toString()), file(entry.getOutput().toString())));
+            }
+        } catch (IOException e) {
+            stderr.println("Cannot read manifest.");
+            e.printStackTrace(stderr);
+            return 2;
+        }
+        Batch.Mode mode;
+        if (result.getBoolean("run")) {
+            mode = Batch.Mode.RUN;
+        } else if (result.getBoolean("object")) {
+            mode = Batch.Mode.OBJECT;
+        } else {
+            mode = Batch.Mode.LISTING;
+        }
+        var batch = new Batch(mode, result.getBoolean("debug_info"), Engine.of(result.getString("engine")),
+                OutputBuffer.FlushPolicy.valueOf(result.getString("flush").toUpperCase(Locale.ROOT)));
+        batch.setCache(openCache(result));
+        int jobs = result.getInt("jobs");
+        if (jobs <= 0) {
+            jobs = Runtime.getRuntime().availableProcessors();
+        }
+        int status = 0;
+        for (var fileResult : batch.process(entries, jobs)) {
+            output.println(fileResult);
+            status = Math.max(status, fileResult.getStatus());
+        }
+        output.flush();
+        return status;
+    }
+
+    /**
+     * 编译完以后：--run 时运行，否则输出目标文件或者指令列表
+     *
+     * @return 退出码
+     */
+    private int emit(Engine engine, InstructionBuffer instructions, SourceMap sourceMap,
+            OutputBuffer.FlushPolicy flushPolicy, PrintStream output, WritableByteChannel outputChannel,
+            OptionParser.Result result, PhaseTimer timer) {
+        if (result.getBoolean("run")) {
+            return execute(engine, instructions.asLongBuffer(), sourceMap, flushPolicy, output, result, timer);
+        }
+        try {
+            if (result.getBoolean("object")) {
+                // 输出二进制目标文件
+                ObjectFile.write(outputChannel, instructions, result.getBoolean("debug_info") ? sourceMap : null);
+            } else {
+                ListingWriter.write(outputChannel, instructions);
+            }
+        } catch (IOException e) {
+            stderr.println("Cannot write output file.");
+            e.printStackTrace(stderr);
+            return 2;
+        }
+        return 0;
+    }
+
+    /**
+     * 运行指令，要做性能分析或者记录执行过程时用 MiniVm，否则用指定的引擎。运行结束或者出错以后先写出计时、
+     * 性能分析和执行记录，出错则再输出错误
+     *
+     * @param sourceMap 每条指令的源码位置，为 null 时性能分析不按源码行汇总
+     * @return 退出码
+     */
+    private int execute(Engine engine, LongBuffer code, SourceMap sourceMap, OutputBuffer.FlushPolicy flushPolicy,
+            PrintStream output, OptionParser.Result result, PhaseTimer timer) {
+        var flatFileName = result.getString("profile");
+        var collapsedFileName = result.getString("profile_collapsed");
+        var traceFileName = result.getString("trace");
+        VirtualMachine vm;
+        Profiler profiler = null;
+        ExecutionTrace trace = null;
+        if (flatFileName == null && collapsedFileName == null && traceFileName == null) {
+            vm = engine.create(code, output);
+        } else {
+            var miniVm = new MiniVm(code, output);
+            if (flatFileName != null || collapsedFileName != null) {
+                profiler = new Profiler();
+                miniVm.setProfiler(profiler);
+            }
+            if (traceFileName != null) {
+                trace = new ExecutionTrace(result.getInt("trace_size"));
+                miniVm.setTrace(trace);
+            }
+            vm = miniVm;
+        }
+        timer.phase("prepare");
+
+        vm.setFlushPolicy(flushPolicy);
+        Throwable fault = null;
+        try {
+            vm.Run();
+        } catch (RuntimeException | Error e) {
+            fault = e;
+        }
+        output.flush();
+        timer.phase("run");
+        timer.print(stderr);
+
+        try {
+            if (flatFileName != null) {
+                try (var out = new PrintStream(new FileOutputStream(file(flatFileName).toFile()))) {
+                    profiler.writeFlat(out, code, sourceMap);
+                }
+            }
+            if (collapsedFileName != null) {
+                try (var out = new PrintStream(new FileOutputStream(file(collapsedFileName).toFile()))) {
+                    profiler.writeCollapsed(out, code, sourceMap);
+                }
+            }
+            if (trace != null && fault != null) {
+                try (var out = new FileOutputStream(file(traceFileName).toFile())) {
+                    trace.write(out);
+                }
+            }
+        } catch (IOException e) {
+            stderr.println("Cannot write profile or trace.");
+            e.printStackTrace(stderr);
+            return 2;
+        }
+        if (fault != null) {
+            stderr.println(fault);
+            return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * --timings 用的分阶段计时，每个阶段从上一个阶段结束时算起
+     */
+    private static final class PhaseTimer {
+        private final boolean enabled;
+        private final long start = System.nanoTime();
+        private long last = start;
+        private final StringBuilder report = new StringBuilder();
+
+        PhaseTimer(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        void phase(String name) {
+            if (!enabled) {
+                return;
+            }
+            long now = System.nanoTime();
+            report.append(String.format(Locale.ROOT, "%-8s %10.3f ms%n", name + ":", (now - last) / 1e6));
+            last = now;
+        }
+
+        void print(PrintStream err) {
+            if (!enabled) {
+                return;
+            }
+            report.append(String.format(Locale.ROOT, "%-8s %10.3f ms%n", "total:", (last - start) / 1e6));
+            err.print(report);
+        }
+    }
+
+    private static String[] engineNames() {
+        var engines = Engine.values();
+        var names = new String[engines.length];
+        for (int i = 0; i < engines.length; i++) {
+            names[i] = engines[i].getName();
+        }
+        return names;
+    }
+
     private static Tokenizer tokenize(StringIter iter) {
         var tokenizer = new Tokenizer(iter);
         return tokenizer;
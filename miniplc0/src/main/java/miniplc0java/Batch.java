@@ -0,0 +1,272 @@
+package miniplc0java;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import miniplc0java.cache.CompileCache;
+import miniplc0java.error.CompileError;
+import miniplc0java.instruction.InstructionBuffer;
+import miniplc0java.instruction.ListingWriter;
+import miniplc0java.instruction.ObjectFile;
+import miniplc0java.instruction.SourceMap;
+import miniplc0java.vm.Engine;
+import miniplc0java.vm.OutputBuffer;
+
+/**
+ * 批量模式：在一个 JVM 里并行编译（或者编译并运行）清单里的所有文件，省掉每个文件启动 JVM 和预热的开销
+ *
+ * 清单每行是一对用空白隔开的输入文件和输出文件，空行和 # 开头的行忽略。每个文件单独处理，
+ * 一个文件出错不影响别的文件，每个文件的状态和单独运行 App 时的退出码一样：
+ * 0 表示成功或者编译错误（和单独运行时一样，编译错误不算失败），1 表示运行时出错，2 表示读写文件出错。
+ */
+public final class Batch {
+    /**
+     * 每个文件做什么
+     */
+    public enum Mode {
+        /** 输出指令列表，和 --analyse 一样 */
+        LISTING,
+        /** 输出二进制目标文件，和 --analyse --object 一样 */
+        OBJECT,
+        /** 编译并运行，输出程序的输出，和 --run 一样 */
+        RUN
+    }
+
+    /**
+     * 清单里的一项
+     */
+    public static final class Entry {
+        private final Path input;
+        private final Path output;
+
+        public Entry(Path input, Path output) {
+            this.input = input;
+            this.output = output;
+        }
+
+        public Path getInput() {
+            return input;
+        }
+
+        public Path getOutput() {
+            return output;
+        }
+    }
+
+    /**
+     * 一个文件的处理结果
+     */
+    public static final class Result {
+        private final Entry entry;
+        private final int status;
+        private final String message;
+
+        Result(Entry entry, int status, String message) {
+            this.entry = entry;
+            this.status = status;
+            this.message = message;
+        }
+
+        public Entry getEntry() {
+            return entry;
+        }
+
+        /**
+         * @return 和单独运行 App 时一样的退出码
+         */
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * @return 错误信息，没有出错时为 null
+         */
+        public String getMessage() {
+            return message;
+        }
+
+        /**
+         * @return 报告里的一行：退出码、输入文件，出错时再加上错误信息
+         */
+        @Override
+        public String toString() {
+            var builder = new StringBuilder().append(status).append(' ').append(entry.input);
+            if (message != null) {
+                builder.append(' ').append(message);
+            }
+            return builder.toString();
+        }
+    }
+
+    private final Mode mode;
+    private final boolean debugInfo;
+    private final Engine engine;
+    private final OutputBuffer.FlushPolicy flushPolicy;
+    private CompileCache cache;
+
+    /**
+     * @param mode        每个文件做什么
+     * @param debugInfo   输出目标文件时是否带调试信息
+     * @param engine      运行时用的引擎
+     * @param flushPolicy 运行时什么时候写出输出
+     */
+    public Batch(Mode mode, boolean debugInfo, Engine engine, OutputBuffer.FlushPolicy flushPolicy) {
+        this.mode = mode;
+        this.debugInfo = debugInfo;
+        this.engine = engine;
+        this.flushPolicy = flushPolicy;
+    }
+
+    /**
+     * 编译之前先查缓存，编译之后存进去
+     *
+     * @param cache 为 null 时不用缓存
+     */
+    public void setCache(CompileCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * 读取清单
+     *
+     * @throws IOException 读取出错，或者有一行不是正好两个文件名
+     */
+    public static List<Entry> readManifest(Reader reader) throws IOException {
+        var entries = new ArrayList<Entry>();
+        var lines = new BufferedReader(reader);
+        int lineNumber = 0;
+        String line;
+        while ((line = lines.readLine()) != null) {
+            lineNumber++;
+            line = line.strip();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            var fields = line.split("\\s+");
+            if (fields.length != 2) {
+                throw new IOException(
+                        "Invalid manifest line " + lineNumber + ": expected an input and an output file");
+            }
+            entries.add(new Entry(Path.of(fields[0]), Path.of(fields[1])));
+        }
+        return entries;
+    }
+
+    /**
+     * 用 jobs 个线程处理所有文件
+     *
+     * @return 和 entries 顺序一样的结果
+     */
+    public List<Result> process(List<Entry> entries, int jobs) {
+        ExecutorService executor = Executors.newFixedThreadPool(jobs);
+        try {
+            var futures = new ArrayList<Future<Result>>(entries.size());
+            for (var entry : entries) {
+                futures.add(executor.submit(() -> process(entry)));
+            }
+            var results = new ArrayList<Result>(entries.size());
+            for (int i = 0; i < entries.size(); i++) {
+                try {
+                    results.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    // process 自己处理了所有的错误，到这里的是 OutOfMemoryError 之类
+                    results.add(new Result(entries.get(i), 2, e.getCause().toString()));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    results.add(new Result(entries.get(i), 2, e.toString()));
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 处理一个文件，出错时不抛异常，放在结果里
+     */
+    public Result process(Entry entry) {
+        byte[] bytes;
+        String source;
+        try {
+            bytes = Files.readAllBytes(entry.input);
+            // 和单独运行时一样用默认编码，不合法的字节替换掉，不算出错
+            source = new String(bytes, Charset.defaultCharset());
+        } catch (NoSuchFileException | FileNotFoundException e) {
+            return new Result(entry, 2, "Cannot find input file.");
+        } catch (IOException e) {
+            return new Result(entry, 2, "Cannot read input file: " + e);
+        }
+
+        try (var outputStream = new FileOutputStream(entry.output.toFile())) {
+            var key = cache != null ? CompileCache.key(bytes, "") : null;
+            var cached = cache != null ? cache.get(key) : null;
+            if (cached != null) {
+                if (cached.isFailed()) {
+                    return new Result(entry, 0, cached.getDiagnostics());
+                }
+                return emit(entry, outputStream, cached.toBuffer(), cached.getSourceMap());
+            }
+            try {
+                // 每个工作线程复用自己的 Compiler
+                return Compiler.forCurrentThread().compile(source, (instructions, sourceMap) -> {
+                    if (cache != null) {
+                        cache.putCompiled(key, instructions, sourceMap);
+                    }
+                    return emit(entry, outputStream, instructions, sourceMap);
+                });
+            } catch (CompileError e) {
+                // 和单独运行时一样，编译错误不输出。emit 里输出和运行的错误不算编译错误
+                if (cache != null) {
+                    cache.putFailed(key, e.toString());
+                }
+                return new Result(entry, 0, e.toString());
+            }
+        } catch (IOException e) {
+            return new Result(entry, 2, "Cannot write output file: " + e);
+        }
+    }
+
+    /**
+     * 按 mode 输出编译结果或者运行
+     */
+    private Result emit(Entry entry, FileOutputStream outputStream, InstructionBuffer instructions,
+            SourceMap sourceMap) throws IOException {
+        switch (mode) {
+            case LISTING:
+                ListingWriter.write(outputStream.getChannel(), instructions);
+                break;
+            case OBJECT:
+                ObjectFile.write(outputStream.getChannel(), instructions, debugInfo ? sourceMap : null);
+                break;
+            default: {
+                var output = new PrintStream(outputStream);
+                var vm = engine.create(instructions.asLongBuffer(), output);
+                vm.setFlushPolicy(flushPolicy);
+                try {
+                    vm.Run();
+                } catch (RuntimeException | Error e) {
+                    return new Result(entry, 1, e.toString());
+                } finally {
+                    output.flush();
+                }
+            }
+                break;
+        }
+        return new Result(entry, 0, null);
+    }
+}
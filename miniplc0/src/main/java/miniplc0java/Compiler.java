@@ -0,0 +1,103 @@
+package miniplc0java;
+
+import java.io.IOException;
+
+import miniplc0java.analyser.Analyser;
+import miniplc0java.error.CompileError;
+import miniplc0java.instruction.InstructionBuffer;
+import miniplc0java.instruction.SourceMap;
+import miniplc0java.tokenizer.StringIter;
+import miniplc0java.tokenizer.Tokenizer;
+
+/**
+ * 可以反复使用的编译器
+ *
+ * StringIter、Tokenizer 和 Analyser 只创建一次，每次编译完 reset，行缓冲区、符号表、指令和源码位置的数组
+ * 都留给下一次用。编译服务器或者批量模式的线程反复编译时，稳定以后每次编译只分配 token、符号和位置这些小对象。
+ *
+ * 一个 Compiler 只能在创建它的线程里使用，每个线程用 forCurrentThread() 拿自己的那个。
+ * 编译结果直接交给 sink，只在 sink 里有效，下一次编译会覆盖。
+ */
+public final class Compiler {
+    /**
+     * 接收编译结果
+     */
+    public interface Sink<T> {
+        /**
+         * @param instructions 编译出的指令，返回以后会被覆盖，要留着就复制一份
+         * @param sourceMap    每条指令的源码位置，同样返回以后会被覆盖
+         * @return compile 的返回值
+         */
+        T accept(InstructionBuffer instructions, SourceMap sourceMap) throws IOException;
+    }
+
+    // 编译过比这更长的源码以后丢掉所有缓冲区，免得一个大程序一直占着内存
+    private static final int MAX_RETAINED_SOURCE = 1 << 20;
+
+    private static final ThreadLocal<Compiler> CURRENT = ThreadLocal.withInitial(Compiler::new);
+
+    private final Thread owner = Thread.currentThread();
+    private StringIter iter;
+    private Tokenizer tokenizer;
+    private Analyser analyser;
+    // 上一次编译的源码长度
+    private int sourceLength;
+
+    public Compiler() {
+        allocate();
+    }
+
+    /**
+     * @return 当前线程的 Compiler
+     */
+    public static Compiler forCurrentThread() {
+        return CURRENT.get();
+    }
+
+    private void allocate() {
+        iter = new StringIter(null);
+        tokenizer = new Tokenizer(iter);
+        analyser = new Analyser(tokenizer);
+    }
+
+    /**
+     * 清空上一次编译的状态，不再引用上一个程序。compile 结束时会自动调用
+     */
+    public void reset() {
+        checkThread();
+        if (sourceLength > MAX_RETAINED_SOURCE) {
+            allocate();
+        } else {
+            iter.reset("");
+            analyser.reset(tokenizer);
+        }
+        sourceLength = 0;
+    }
+
+    /**
+     * 编译 source，把结果交给 sink
+     *
+     * @param source 源码
+     * @param sink   接收编译结果
+     * @return sink 的返回值
+     * @throws CompileError 编译出错，这时不调用 sink
+     * @throws IOException  sink 抛出的
+     */
+    public <T> T compile(CharSequence source, Sink<T> sink) throws CompileError, IOException {
+        checkThread();
+        sourceLength = source.length();
+        try {
+            iter.reset(source);
+            var instructions = analyser.analyseToBuffer();
+            return sink.accept(instructions, analyser.getSourceMap());
+        } finally {
+            reset();
+        }
+    }
+
+    private void checkThread() {
+        if (Thread.currentThread() != owner) {
+            throw new IllegalStateException("Compiler used outside the thread that created it");
+        }
+    }
+}
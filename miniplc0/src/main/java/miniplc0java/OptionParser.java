@@ -0,0 +1,519 @@
+package miniplc0java;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * 命令行参数解析，代替 argparse4j，免得每次启动都加载它的几百个类
+ *
+ * 接受的写法和出错信息都和 argparse4j 0.8.1 一样：长选项可以缩写到不产生歧义为止，可以写成 --opt=value，
+ * 短选项可以连写成 -tl 或者 -ofile，-- 以后都是位置参数，-h/--help 输出帮助。只支持 App 用到的功能：
+ * 开关、带一个值的选项（字符串或者整数，可以限定取值）和必须的位置参数。
+ */
+final class OptionParser {
+    private static final int FORMAT_WIDTH = 75;
+    // 帮助信息里说明文字开始的列
+    private static final int HELP_COLUMN = 25;
+    // 提示相近的选项时用的编辑距离权重，和 git 一样，前缀匹配算作 0
+    private static final int SWAP_COST = 0;
+    private static final int SUBSTITUTION_COST = 2;
+    private static final int ADDITION_COST = 1;
+    private static final int DELETION_COST = 4;
+    private static final int SIMILARITY_FLOOR = 7;
+    private static final Pattern NEGATIVE_NUMBER = Pattern.compile("-\\d+|-\\d*\\.\\d+");
+
+    private final String prog;
+    private final List<Option> options = new ArrayList<>();
+    private final List<Option> positionals = new ArrayList<>();
+
+    OptionParser(String prog) {
+        this.prog = prog;
+        addFlag("-h", "--help").help("show this help message and exit");
+    }
+
+    /**
+     * 一个选项或者位置参数
+     */
+    static final class Option {
+        private final String[] flags;
+        private final boolean takesValue;
+        private String dest;
+        private String help = "";
+        private boolean required;
+        private boolean integer;
+        private List<String> choices;
+        private Object defaultValue;
+
+        private Option(String[] flags, boolean takesValue, String dest) {
+            this.flags = flags;
+            this.takesValue = takesValue;
+            this.dest = dest;
+        }
+
+        Option help(String help) {
+            this.help = help;
+            return this;
+        }
+
+        Option dest(String dest) {
+            this.dest = dest;
+            return this;
+        }
+
+        Option required() {
+            this.required = true;
+            return this;
+        }
+
+        /**
+         * 值是整数
+         */
+        Option integer() {
+            this.integer = true;
+            return this;
+        }
+
+        Option choices(String... choices) {
+            this.choices = List.of(choices);
+            return this;
+        }
+
+        Option setDefault(Object defaultValue) {
+            this.defaultValue = defaultValue;
+            return this;
+        }
+
+        private boolean isPositional() {
+            return flags.length == 0;
+        }
+
+        /**
+         * @return 出错信息里的名字，例如 -o/--output
+         */
+        private String textualName() {
+            return isPositional() ? dest : String.join("/", flags);
+        }
+
+        private String metavar() {
+            if (choices != null) {
+                return "{" + String.join(",", choices) + "}";
+            }
+            return isPositional() ? dest : dest.toUpperCase(Locale.ROOT);
+        }
+
+        private String usage() {
+            if (isPositional()) {
+                return metavar();
+            }
+            var usage = takesValue ? flags[0] + " " + metavar() : flags[0];
+            return required ? usage : "[" + usage + "]";
+        }
+
+        private Object convert(String value) throws OptionException {
+            if (choices != null && !choices.contains(value)) {
+                throw new OptionException(this, String.format("invalid choice: '%s' (choose from %s)", value,
+                        metavar()));
+            }
+            if (integer) {
+                try {
+                    return Integer.valueOf(value);
+                } catch (NumberFormatException e) {
+                    throw new OptionException(this,
+                            String.format("could not convert '%s' to Integer (%s)", value, e.getMessage()));
+                }
+            }
+            return value;
+        }
+    }
+
+    /**
+     * 解析出错
+     */
+    static final class OptionException extends Exception {
+        private static final long serialVersionUID = 1L;
+        // 不认识的参数，其他错误时为 null
+        private final String unrecognized;
+
+        OptionException(String message) {
+            this(message, null);
+        }
+
+        OptionException(Option option, String message) {
+            this("argument " + option.textualName() + ": " + message, null);
+        }
+
+        private OptionException(String message, String unrecognized) {
+            super(message);
+            this.unrecognized = unrecognized;
+        }
+
+        private static OptionException unrecognized(String arg) {
+            return new OptionException(String.format("unrecognized arguments: '%s'", arg), arg);
+        }
+    }
+
+    /**
+     * 解析的结果，按 dest 取值，dest 里的 - 换成了 _
+     */
+    static final class Result {
+        private final Map<String, Object> values = new HashMap<>();
+
+        String getString(String dest) {
+            return (String) values.get(dest);
+        }
+
+        boolean getBoolean(String dest) {
+            return (Boolean) values.get(dest);
+        }
+
+        int getInt(String dest) {
+            return (Integer) values.get(dest);
+        }
+    }
+
+    /**
+     * 添加开关，出现时为 true，否则为 false
+     */
+    Option addFlag(String... flags) {
+        var option = new Option(flags, false, defaultDest(flags));
+        option.defaultValue = false;
+        options.add(option);
+        return option;
+    }
+
+    /**
+     * 添加带一个值的选项，没有出现时是默认值，没有默认值时为 null
+     */
+    Option addOption(String... flags) {
+        var option = new Option(flags, true, defaultDest(flags));
+        options.add(option);
+        return option;
+    }
+
+    /**
+     * 添加必须出现的位置参数
+     */
+    Option addPositional(String name) {
+        var option = new Option(new String[0], true, name);
+        option.required = true;
+        positionals.add(option);
+        return option;
+    }
+
+    private static String defaultDest(String[] flags) {
+        var name = flags[0];
+        for (var flag : flags) {
+            if (flag.startsWith("--")) {
+                name = flag;
+                break;
+            }
+        }
+        return name.replaceFirst("^-+", "").replace('-', '_');
+    }
+
+    /**
+     * 解析参数
+     *
+     * @param help 有 -h/--help 时帮助信息写到这里
+     * @return 有 -h/--help 时为 null
+     * @throws OptionException 参数不对
+     */
+    Result parse(String[] args, PrintStream help) throws OptionException {
+        var result = new Result();
+        for (var option : options) {
+            result.values.put(option.dest, option.defaultValue);
+        }
+        int positional = 0;
+        boolean onlyPositionals = false;
+        for (int i = 0; i < args.length; i++) {
+            var arg = args[i];
+            if (!onlyPositionals && arg.equals("--")) {
+                onlyPositionals = true;
+                continue;
+            }
+            if (onlyPositionals || !isFlag(arg)) {
+                if (positional == positionals.size()) {
+                    throw OptionException.unrecognized(arg);
+                }
+                var option = positionals.get(positional++);
+                result.values.put(option.dest, option.convert(arg));
+                continue;
+            }
+
+            Option option;
+            String value = null;
+            if (arg.startsWith("--")) {
+                int equals = arg.indexOf('=');
+                var flag = equals < 0 ? arg : arg.substring(0, equals);
+                value = equals < 0 ? null : arg.substring(equals + 1);
+                option = findLong(flag, arg);
+            } else {
+                option = findShort(arg.substring(0, 2), arg);
+                // 连写的短选项，或者短选项后面直接跟着值
+                int j = 2;
+                for (; j < arg.length() && !option.takesValue && option != options.get(0); j++) {
+                    var next = find("-" + arg.charAt(j));
+                    if (next == null) {
+                        throw new OptionException(option, String.format("ignored explicit argument '%s'",
+                                arg.substring(j)));
+                    }
+                    result.values.put(option.dest, true);
+                    option = next;
+                }
+                if (option.takesValue && j < arg.length()) {
+                    value = arg.substring(j);
+                }
+            }
+
+            if (option == options.get(0)) {
+                printHelp(help);
+                help.flush();
+                return null;
+            }
+            if (!option.takesValue) {
+                if (value != null) {
+                    throw new OptionException(option, String.format("ignored explicit argument '%s'", value));
+                }
+                result.values.put(option.dest, true);
+                continue;
+            }
+            if (value == null) {
+                if (i + 1 == args.length || isFlag(args[i + 1])) {
+                    throw new OptionException(option, "expected one argument");
+                }
+                value = args[++i];
+            }
+            result.values.put(option.dest, option.convert(value));
+        }
+
+        if (positional < positionals.size()) {
+            throw new OptionException("too few arguments");
+        }
+        for (var option : options) {
+            if (option.required && result.values.get(option.dest) == null) {
+                throw new OptionException("argument " + option.textualName() + " is required");
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 报告解析以后才检查出来的不对的值，例如超出范围
+     *
+     * @param dest 选项的 dest
+     */
+    OptionException invalidValue(String dest, Object value, String reason) {
+        for (var option : options) {
+            if (option.dest.equals(dest)) {
+                return new OptionException(option, String.format("invalid value: '%s' (%s)", value, reason));
+            }
+        }
+        throw new IllegalArgumentException(dest);
+    }
+
+    /**
+     * 以 - 开头，不是 - 本身也不是负数的参数是选项
+     */
+    private static boolean isFlag(String arg) {
+        return arg.length() > 1 && arg.charAt(0) == '-' && !NEGATIVE_NUMBER.matcher(arg).matches();
+    }
+
+    private Option find(String flag) {
+        for (var option : options) {
+            for (var candidate : option.flags) {
+                if (candidate.equals(flag)) {
+                    return option;
+                }
+            }
+        }
+        return null;
+    }
+
+    private Option findShort(String flag, String arg) throws OptionException {
+        var option = find(flag);
+        if (option == null) {
+            throw OptionException.unrecognized(arg);
+        }
+        return option;
+    }
+
+    /**
+     * 找长选项，没有完全相同的时候找以它开头的唯一一个
+     */
+    private Option findLong(String flag, String arg) throws OptionException {
+        var option = find(flag);
+        if (option != null) {
+            return option;
+        }
+        var matches = new ArrayList<String>();
+        for (var candidate : options) {
+            for (var candidateFlag : candidate.flags) {
+                if (candidateFlag.startsWith("--") && candidateFlag.startsWith(flag)) {
+                    matches.add(candidateFlag);
+                    option = candidate;
+                }
+            }
+        }
+        if (matches.size() > 1) {
+            throw new OptionException(String.format("ambiguous option: %s could match %s", flag,
+                    String.join(", ", matches)));
+        }
+        if (option == null) {
+            throw OptionException.unrecognized(arg);
+        }
+        return option;
+    }
+
+    /**
+     * 输出用法和出错信息，参数是写错的长选项时再提示相近的长选项
+     */
+    void handleError(OptionException e, PrintStream err) {
+        printUsage(err);
+        err.printf("%s: error: %s%n", prog, e.getMessage());
+        if (e.unrecognized != null && e.unrecognized.startsWith("--")) {
+            printFlagCandidates(e.unrecognized, err);
+        }
+        err.flush();
+    }
+
+    private void printFlagCandidates(String arg, PrintStream err) {
+        var body = arg.substring(2);
+        var candidates = new ArrayList<String>();
+        var similarities = new ArrayList<Integer>();
+        int best = Integer.MAX_VALUE;
+        for (var option : options) {
+            for (var flag : option.flags) {
+                if (!flag.startsWith("--")) {
+                    continue;
+                }
+                var flagBody = flag.substring(2);
+                int similarity = flagBody.startsWith(body) ? 0
+                        : levenshtein(body, flagBody, SWAP_COST, SUBSTITUTION_COST, ADDITION_COST, DELETION_COST);
+                candidates.add(flag);
+                similarities.add(similarity);
+                best = Math.min(best, similarity);
+            }
+        }
+        if (best >= SIMILARITY_FLOOR) {
+            return;
+        }
+        err.println();
+        err.println("Did you mean:");
+        for (int i = 0; i < candidates.size(); i++) {
+            if (similarities.get(i) == best) {
+                err.print('\t');
+                err.println(candidates.get(i));
+            }
+        }
+    }
+
+    /**
+     * 带交换相邻字符的编辑距离，各种操作的权重可以不同
+     */
+    private static int levenshtein(String a, String b, int swap, int substitution, int addition, int deletion) {
+        var row0 = new int[b.length() + 1];
+        var row1 = new int[b.length() + 1];
+        var row2 = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+            row1[j] = j * addition;
+        }
+        for (int i = 0; i < a.length(); i++) {
+            var temp = row2;
+            row2 = row0;
+            row0 = row1;
+            row1 = temp;
+            row1[0] = (i + 1) * deletion;
+            for (int j = 0; j < b.length(); j++) {
+                int cost = row0[j] + (a.charAt(i) == b.charAt(j) ? 0 : substitution);
+                if (i > 0 && j > 0 && a.charAt(i - 1) == b.charAt(j) && a.charAt(i) == b.charAt(j - 1)) {
+                    cost = Math.min(cost, row2[j - 1] + swap);
+                }
+                cost = Math.min(cost, row0[j + 1] + deletion);
+                cost = Math.min(cost, row1[j] + addition);
+                row1[j + 1] = cost;
+            }
+        }
+        return row1[b.length()];
+    }
+
+    /**
+     * 输出用法，超过一行时折行，和第一个参数对齐
+     */
+    void printUsage(PrintStream out) {
+        var line = new StringBuilder("usage: ").append(prog);
+        int indent = line.length();
+        var all = new ArrayList<>(options);
+        all.addAll(positionals);
+        boolean first = true;
+        for (var option : all) {
+            var usage = option.usage();
+            if (!first && line.length() + 1 + usage.length() > FORMAT_WIDTH) {
+                out.println(line);
+                line.setLength(0);
+                line.append(" ".repeat(indent));
+            }
+            line.append(' ').append(usage);
+            first = false;
+        }
+        out.println(line);
+    }
+
+    /**
+     * 输出帮助：用法，然后是每个参数的说明
+     */
+    void printHelp(PrintStream out) {
+        printUsage(out);
+        if (!positionals.isEmpty()) {
+            out.println();
+            out.println("positional arguments:");
+            for (var option : positionals) {
+                printOptionHelp(out, option.metavar(), option.help);
+            }
+        }
+        out.println();
+        out.println("named arguments:");
+        for (var option : options) {
+            var title = option.flags;
+            if (option.takesValue) {
+                title = Arrays.copyOf(title, title.length);
+                for (int i = 0; i < title.length; i++) {
+                    title[i] += " " + option.metavar();
+                }
+            }
+            printOptionHelp(out, String.join(", ", title), option.help);
+        }
+    }
+
+    private static void printOptionHelp(PrintStream out, String title, String help) {
+        var line = new StringBuilder("  ").append(title);
+        if (help.isEmpty()) {
+            out.println(line);
+            return;
+        }
+        if (line.length() + 1 > HELP_COLUMN) {
+            out.println(line);
+            line.setLength(0);
+        }
+        line.append(" ".repeat(HELP_COLUMN - line.length()));
+        int start = line.length();
+        for (var word : help.split(" ")) {
+            if (line.length() > start && line.length() + 1 + word.length() > FORMAT_WIDTH) {
+                out.println(line);
+                line.setLength(0);
+                line.append(" ".repeat(HELP_COLUMN));
+                start = line.length();
+            }
+            if (line.length() > start) {
+                line.append(' ');
+            }
+            line.append(word);
+        }
+        out.println(line);
+    }
+}
@@ -6,18 +6,22 @@ import miniplc0java.error.ErrorCode;
 import miniplc0java.error.ExpectedTokenError;
 import miniplc0java.error.TokenizeError;
 import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.InstructionBuffer;
+import miniplc0java.instruction.SourceMap;
 import miniplc0java.instruction.Operation;
 import miniplc0java.tokenizer.Token;
+import miniplc0java.tokenizer.TokenSource;
 import miniplc0java.tokenizer.TokenType;
-import miniplc0java.tokenizer.Tokenizer;
 import miniplc0java.util.Pos;
 
 import java.util.*;
 
 public final class Analyser {
 
-    Tokenizer tokenizer;
-    ArrayList<Instruction> instructions;
+    TokenSource tokenizer;
+    InstructionBuffer instructions;
+    /** 每条指令对应的源码位置 */
+    SourceMap sourceMap;
 
     /** 当前偷看的 token */
     Token peekedToken = null;
@@ -28,16 +32,70 @@ public final class Analyser {
     /** 下一个变量的栈偏移 */
     int nextOffset = 0;
 
-    public Analyser(Tokenizer tokenizer) {
+    /** 并行分析时当前分析的语句块，串行分析时为 null */
+    StatementChunk chunk = null;
+
+    public Analyser(TokenSource tokenizer) {
+        this.tokenizer = tokenizer;
+        this.instructions = new InstructionBuffer();
+        this.sourceMap = new SourceMap();
+    }
+
+    /**
+     * 并行分析语句块用的构造函数，符号表由所有块共享且只读
+     * 
+     * @param tokenizer   这个块的 token
+     * @param symbolTable 声明部分分析完之后的符号表
+     * @param chunk       分析结果放在这里
+     */
+    Analyser(TokenSource tokenizer, HashMap<String, SymbolEntry> symbolTable, StatementChunk chunk) {
         this.tokenizer = tokenizer;
-        this.instructions = new ArrayList<>();
+        this.instructions = chunk.instructions;
+        this.sourceMap = chunk.sourceMap;
+        this.symbolTable = symbolTable;
+        this.chunk = chunk;
+    }
+
+    /**
+     * 换成另一个程序的 token，从头开始分析。指令、源码位置和符号表都清空，已经分配的数组留着，
+     * 所以上一次 analyseToBuffer() 和 getSourceMap() 的结果会被覆盖
+     *
+     * @param tokenizer 下一个程序的 token
+     */
+    public void reset(TokenSource tokenizer) {
+        if (chunk != null) {
+            throw new IllegalStateException("cannot reset a chunk analyser");
+        }
+        this.tokenizer = tokenizer;
+        this.instructions.clear();
+        this.sourceMap.clear();
+        this.symbolTable.clear();
+        this.peekedToken = null;
+        this.nextOffset = 0;
     }
 
     public List<Instruction> analyse() throws CompileError {
+        return analyseToBuffer().toList();
+    }
+
+    /**
+     * 分析程序，生成紧凑形式的指令
+     * 
+     * @return
+     * @throws CompileError
+     */
+    public InstructionBuffer analyseToBuffer() throws CompileError {
         analyseProgram();
         return instructions;
     }
 
+    /**
+     * @return 分析完之后，每条指令对应的源码位置
+     */
+    public SourceMap getSourceMap() {
+        return sourceMap;
+    }
+
     /**
      * 查看下一个 Token
      * 
@@ -111,6 +169,22 @@ public final class Analyser {
         }
     }
 
+    /**
+     * 生成一条指令
+     * 
+     * @param opt 操作
+     * @param x   操作数
+     * @param pos 对应的源码位置
+     */
+    private void emit(Operation opt, int x, Pos pos) {
+        instructions.add(opt, x);
+        sourceMap.add(pos);
+    }
+
+    private void emit(Operation opt, Pos pos) {
+        emit(opt, 0, pos);
+    }
+
     /**
      * 获取下一个变量的栈偏移
      * 
@@ -148,6 +222,8 @@ public final class Analyser {
         var entry = this.symbolTable.get(name);
         if (entry == null) { // 如果符号不存在，那么就抛出异常。
             throw new AnalyzeError(ErrorCode.NotDeclared, curPos);
+        } else if (chunk != null) { // 并行分析时符号表是共享的，只在块里记下来，合并时再处理
+            chunk.assigned.add(name);
         } else { // 设置符号已经赋值
             entry.setInitialized(true);
         }
@@ -201,6 +277,26 @@ public final class Analyser {
 
         // 'end'
         // System.out.println("主过程分析结束，希望得到end");
+        analyseProgramEnd();
+    }
+
+    /**
+     * 分析 'begin' 和声明部分，并行分析时先串行地调用这个
+     * 
+     * @throws CompileError
+     */
+    void analyseDeclarations() throws CompileError {
+        expect(TokenType.Begin);
+        analyseConstantDeclaration();
+        analyseVariableDeclaration();
+    }
+
+    /**
+     * 分析程序末尾的 'end' 和文件尾
+     * 
+     * @throws CompileError
+     */
+    void analyseProgramEnd() throws CompileError {
         expect(TokenType.End);
         expect(TokenType.EOF);
     }
@@ -255,7 +351,7 @@ public final class Analyser {
             // load x 指令 stack[sp]=x;sp++;
             // 定义的常量直接放到栈里面，位置记录在符号表当中，且位置为下一个栈地址
             // System.out.println("添加指令");
-            instructions.add(new Instruction(Operation.LIT, value));
+            emit(Operation.LIT, value, nameToken.getStartPos());
         }
         // System.out.println("常量声明解析完毕");
     }
@@ -266,7 +362,7 @@ public final class Analyser {
         // 如果下一个 token 是 var 就继续
         while (nextIf(TokenType.Var) != null) {
             // 变量声明语句 -> 'var' 变量名 ('=' 表达式)? ';'
-            System.out.println(peek().toString());
+            // System.out.println(peek().toString());
             // 变量名
             var nameToken = expect(TokenType.Ident);
             // 变量初始化了吗
@@ -298,7 +394,7 @@ public final class Analyser {
 
             // 如果没有初始化的话在栈里推入一个初始值,只是为了占个位置 stack[sp]=x;sp++;
             if (!initialized) {
-                instructions.add(new Instruction(Operation.LIT, 0));
+                emit(Operation.LIT, 0, nameToken.getStartPos());
             }
             // 如果初始化了的话则在分析过程当中已经将值放入了
         }
@@ -309,29 +405,39 @@ public final class Analyser {
         // 语句序列 -> 语句*
         // 语句 -> 赋值语句 | 输出语句 | 空语句
         // System.out.println("解析语句序列");
-        while (true) {
-            // 如果下一个 token 是……
-            var peeked = peek();
-            if (peeked.getTokenType() == TokenType.Ident) { // 这是个赋值语句
-                // 调用相应的分析函数
-                analyseAssignmentStatement();
-                // 如果遇到其他非终结符的 FIRST 集呢？
-            }
-            else if(peeked.getTokenType() == TokenType.Print){ // 这是一个输出语句
-                analyseOutputStatement();
-            } 
-            else if(peeked.getTokenType() == TokenType.Semicolon){ // 空语句
-                next();
-            }
-            else {
-                // 都不是，摸了
-                break;
-            }
+        while (analyseStatement()) {
         }
         // throw new Error("Not implemented");
         // System.out.println("语句序列解析完毕");
     }
 
+    /**
+     * 分析一条语句
+     * 
+     * @return 如果下一个 token 不是语句的开头则返回 false，什么也不做
+     * @throws CompileError
+     */
+    boolean analyseStatement() throws CompileError {
+        // 如果下一个 token 是……
+        var peeked = peek();
+        if (peeked.getTokenType() == TokenType.Ident) { // 这是个赋值语句
+            // 调用相应的分析函数
+            analyseAssignmentStatement();
+            // 如果遇到其他非终结符的 FIRST 集呢？
+        }
+        else if(peeked.getTokenType() == TokenType.Print){ // 这是一个输出语句
+            analyseOutputStatement();
+        } 
+        else if(peeked.getTokenType() == TokenType.Semicolon){ // 空语句
+            next();
+        }
+        else {
+            // 都不是，摸了
+            return false;
+        }
+        return true;
+    }
+
     private int analyseConstantExpression() throws CompileError {
         // 常表达式 -> 符号? 无符号整数
         boolean negative = false;
@@ -359,7 +465,7 @@ public final class Analyser {
     private void analyseExpression() throws CompileError {
         // 表达式 -> 项 (加法运算符 项)*
         // 项
-        System.out.println("解析表达式");
+        // System.out.println("解析表达式");
         analyseItem();
 
         while (true) {
@@ -377,12 +483,12 @@ public final class Analyser {
 
             // 生成代码
             if (op.getTokenType() == TokenType.Plus) {
-                instructions.add(new Instruction(Operation.ADD));
+                emit(Operation.ADD, op.getStartPos());
             } else if (op.getTokenType() == TokenType.Minus) {
-                instructions.add(new Instruction(Operation.SUB));
+                emit(Operation.SUB, op.getStartPos());
             }
         }
-        System.out.println("解析表达式结束");
+        // System.out.println("解析表达式结束");
     }
 
     private void analyseAssignmentStatement() throws CompileError {
@@ -407,13 +513,13 @@ public final class Analyser {
         expect(TokenType.Semicolon);
         // 把结果保存
         var offset = getOffset(name, ident.getStartPos());
-        instructions.add(new Instruction(Operation.STO, offset));
+        emit(Operation.STO, offset, ident.getStartPos());
     }
 
     private void analyseOutputStatement() throws CompileError {
         // 输出语句 -> 'print' '(' 表达式 ')' ';'
 
-        expect(TokenType.Print);
+        var print = expect(TokenType.Print);
         expect(TokenType.LParen);
 
         analyseExpression();
@@ -421,14 +527,14 @@ public final class Analyser {
         expect(TokenType.RParen);
         expect(TokenType.Semicolon);
 
-        instructions.add(new Instruction(Operation.WRT));
+        emit(Operation.WRT, print.getStartPos());
     }
 
     private void analyseItem() throws CompileError {
         // 项 -> 因子 (乘法运算符 因子)*
 
         // 因子
-        System.out.println("解析项");
+        // System.out.println("解析项");
         analyseFactor();
         while (true) {
             // 预读可能是运算符的 token
@@ -437,29 +543,30 @@ public final class Analyser {
             // 运算符
             if(op.getTokenType() == TokenType.EOF||op.getTokenType() != TokenType.Mult && op.getTokenType() != TokenType.Div) break;
             next();
-            if(op.getTokenType() == TokenType.Mult) System.out.println("*");
-            else System.out.println("/");
+            // if(op.getTokenType() == TokenType.Mult) System.out.println("*");
+            // else System.out.println("/");
             // 因子
             analyseFactor();
             // 生成代码
             if (op.getTokenType() == TokenType.Mult) {
-                instructions.add(new Instruction(Operation.MUL));
+                emit(Operation.MUL, op.getStartPos());
             } else if (op.getTokenType() == TokenType.Div) {
-                instructions.add(new Instruction(Operation.DIV));
+                emit(Operation.DIV, op.getStartPos());
             }
         }
-        System.out.println("解析项结束");
+        // System.out.println("解析项结束");
     }
 
     private void analyseFactor() throws CompileError {
         // 因子 -> 符号? (标识符 | 无符号整数 | '(' 表达式 ')')
-        System.out.println("解析因子");
+        // System.out.println("解析因子");
         boolean negate;
-        if (nextIf(TokenType.Minus) != null) { // 如果读到了负号
-            System.out.println("读到了负号");
+        var minus = nextIf(TokenType.Minus);
+        if (minus != null) { // 如果读到了负号
+            // System.out.println("读到了负号");
             negate = true; // 将负数标志置为true
             // 计算结果需要被 0 减
-            instructions.add(new Instruction(Operation.LIT, 0));
+            emit(Operation.LIT, 0, minus.getStartPos());
         } else {
             nextIf(TokenType.Plus);
             negate = false;
@@ -472,41 +579,45 @@ public final class Analyser {
             var token = next();
             String name = (String)token.getValue();
             var symbol = symbolTable.get(name);
-            System.out.println("解析到的标识符:"+name);
+            // System.out.println("解析到的标识符:"+name);
             if (symbol == null) {
                 // 没有这个标识符
                 throw new AnalyzeError(ErrorCode.NotDeclared, token.getStartPos());
             } else if (!symbol.isInitialized) {
-                // 标识符没初始化
-                throw new AnalyzeError(ErrorCode.NotInitialized, token.getStartPos());
+                if (chunk == null) {
+                    // 标识符没初始化
+                    throw new AnalyzeError(ErrorCode.NotInitialized, token.getStartPos());
+                }
+                // 并行分析时要等前面的块都合并了才知道有没有初始化
+                chunk.use(name, token.getStartPos());
             }
             var offset = getOffset(name, token.getStartPos());
-            instructions.add(new Instruction(Operation.LOD, offset));
+            emit(Operation.LOD, offset, token.getStartPos());
         } else if (check(TokenType.Uint)) {
             // 是整数
             // 加载整数值
             var token = next();
             long tmp = (long) token.getValue();
             int value = (int)tmp;
-            System.out.println("解析到的整数:"+value);
-            instructions.add(new Instruction(Operation.LIT, value));
+            // System.out.println("解析到的整数:"+value);
+            emit(Operation.LIT, value, token.getStartPos());
         } else if (check(TokenType.LParen)) {
             // 是表达式
-            System.out.println("(");
+            // System.out.println("(");
             next();
             analyseExpression();
             // 调用相应的处理函数
             expect(TokenType.RParen);
-            System.out.println(")");
+            // System.out.println(")");
         } else {
             // 都不是，摸了
             throw new ExpectedTokenError(List.of(TokenType.Ident, TokenType.Uint, TokenType.LParen), next());
         }
 
         if (negate) {
-            instructions.add(new Instruction(Operation.SUB));
+            emit(Operation.SUB, minus.getStartPos());
         }
         // throw new Error("Not implemented");
-        System.out.println("解析因子结束");
+        // System.out.println("解析因子结束");
     }
 }
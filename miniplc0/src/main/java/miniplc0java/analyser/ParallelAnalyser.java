@@ -0,0 +1,190 @@
+package miniplc0java.analyser;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import miniplc0java.error.AnalyzeError;
+import miniplc0java.error.CompileError;
+import miniplc0java.error.ErrorCode;
+import miniplc0java.error.TokenizeError;
+import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.InstructionBuffer;
+import miniplc0java.instruction.SourceMap;
+import miniplc0java.tokenizer.Token;
+import miniplc0java.tokenizer.TokenSource;
+import miniplc0java.tokenizer.TokenType;
+
+/**
+ * 并行的语法分析器
+ * 
+ * 语句都以 ';' 结尾并且互不嵌套，所以声明部分串行分析完之后，
+ * 可以在 ';' 处把剩下的 token 切成若干块，在 fork-join 池上分别分析。
+ * 块之间唯一的依赖是变量有没有被赋值，这个在最后按顺序合并时检查。
+ * 生成的指令和报的错（包括先报哪个错）都和 Analyser 完全一样。
+ */
+public final class ParallelAnalyser {
+    /** 每个语句块至少包含的 token 数 */
+    static final int DEFAULT_CHUNK_TOKENS = 4096;
+
+    TokenSource tokenizer;
+    ForkJoinPool pool;
+    int chunkTokens;
+
+    /** 分析完之后每条指令对应的源码位置 */
+    SourceMap sourceMap = null;
+
+    public ParallelAnalyser(TokenSource tokenizer) {
+        this(tokenizer, ForkJoinPool.commonPool());
+    }
+
+    public ParallelAnalyser(TokenSource tokenizer, ForkJoinPool pool) {
+        this(tokenizer, pool, DEFAULT_CHUNK_TOKENS);
+    }
+
+    public ParallelAnalyser(TokenSource tokenizer, ForkJoinPool pool, int chunkTokens) {
+        this.tokenizer = tokenizer;
+        this.pool = pool;
+        this.chunkTokens = chunkTokens;
+    }
+
+    public List<Instruction> analyse() throws CompileError {
+        return analyseToBuffer().toList();
+    }
+
+    /**
+     * 分析程序，生成紧凑形式的指令
+     * 
+     * @return
+     * @throws CompileError
+     */
+    public InstructionBuffer analyseToBuffer() throws CompileError {
+        // 先把所有 token 读进来，词法错误留到读到那里时再抛
+        var tokens = new ArrayList<Token>();
+        TokenizeError error = null;
+        try {
+            while (true) {
+                var token = tokenizer.nextToken();
+                tokens.add(token);
+                if (token.getTokenType() == TokenType.EOF) {
+                    break;
+                }
+            }
+        } catch (TokenizeError e) {
+            error = e;
+        }
+
+        // 声明部分串行分析
+        var cursor = new TokenCursor(tokens, error, 0);
+        var head = new Analyser(cursor);
+        head.analyseDeclarations();
+        // 声明分析完之后总会偷看一个 token，语句从那个 token 开始
+        int start = cursor.position() - (head.peekedToken != null ? 1 : 0);
+
+        var chunks = split(tokens, start);
+        if (chunks.size() == 1) {
+            analyseChunk(tokens, error, head.symbolTable, chunks.get(0));
+        } else {
+            pool.invoke(new ChunkTask(tokens, error, head.symbolTable, chunks, 0, chunks.size()));
+        }
+
+        // 按顺序合并，先检查变量在使用之前有没有被前面的块赋值，再看这个块自己有没有出错
+        var instructions = head.instructions;
+        var sourceMap = head.sourceMap;
+        var initialized = new HashSet<String>();
+        for (var chunk : chunks) {
+            for (var use : chunk.pendingUses.entrySet()) {
+                if (!initialized.contains(use.getKey())) {
+                    throw new AnalyzeError(ErrorCode.NotInitialized, use.getValue());
+                }
+            }
+            if (chunk.error != null) {
+                throw chunk.error;
+            }
+            initialized.addAll(chunk.assigned);
+            instructions.addAll(chunk.instructions);
+            sourceMap.addAll(chunk.sourceMap);
+            if (chunk.finished) {
+                break;
+            }
+        }
+        this.sourceMap = sourceMap;
+        return instructions;
+    }
+
+    /**
+     * @return 分析完之后，每条指令对应的源码位置
+     */
+    public SourceMap getSourceMap() {
+        return sourceMap;
+    }
+
+    /**
+     * 从 start 开始，在 ';' 后面把 token 切成块
+     */
+    private List<StatementChunk> split(List<Token> tokens, int start) {
+        var chunks = new ArrayList<StatementChunk>();
+        int chunkStart = start;
+        for (int i = start; i < tokens.size(); i++) {
+            if (tokens.get(i).getTokenType() == TokenType.Semicolon && i + 1 - chunkStart >= chunkTokens) {
+                chunks.add(new StatementChunk(chunkStart, i + 1));
+                chunkStart = i + 1;
+            }
+        }
+        chunks.add(new StatementChunk(chunkStart, -1));
+        return chunks;
+    }
+
+    private static void analyseChunk(List<Token> tokens, TokenizeError error,
+            HashMap<String, SymbolEntry> symbolTable, StatementChunk chunk) {
+        var cursor = new TokenCursor(tokens, error, chunk.start);
+        var analyser = new Analyser(cursor, symbolTable, chunk);
+        try {
+            // 语句不会跨过 ';'，所以每个语句分析完时恰好停在块的边界上
+            while (chunk.isLast() || cursor.position() < chunk.end) {
+                if (!analyser.analyseStatement()) {
+                    // 语句序列在这里结束了
+                    analyser.analyseProgramEnd();
+                    chunk.finished = true;
+                    break;
+                }
+            }
+        } catch (CompileError e) {
+            chunk.error = e;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static final class ChunkTask extends RecursiveAction {
+        final List<Token> tokens;
+        final TokenizeError error;
+        final HashMap<String, SymbolEntry> symbolTable;
+        final List<StatementChunk> chunks;
+        final int from;
+        final int to;
+
+        ChunkTask(List<Token> tokens, TokenizeError error, HashMap<String, SymbolEntry> symbolTable,
+                List<StatementChunk> chunks, int from, int to) {
+            this.tokens = tokens;
+            this.error = error;
+            this.symbolTable = symbolTable;
+            this.chunks = chunks;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                analyseChunk(tokens, error, symbolTable, chunks.get(from));
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new ChunkTask(tokens, error, symbolTable, chunks, from, mid),
+                    new ChunkTask(tokens, error, symbolTable, chunks, mid, to));
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package miniplc0java.analyser;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+
+import miniplc0java.error.CompileError;
+import miniplc0java.instruction.InstructionBuffer;
+import miniplc0java.instruction.SourceMap;
+import miniplc0java.util.Pos;
+
+/**
+ * 并行分析时的一个语句块，以及它的分析结果
+ */
+final class StatementChunk {
+    /** 块的第一个 token 的下标 */
+    final int start;
+    /** 块结束的下标（不含），最后一块为 -1，表示一直分析到文件尾 */
+    final int end;
+
+    /** 这个块生成的指令 */
+    final InstructionBuffer instructions = new InstructionBuffer();
+    /** 这些指令对应的源码位置 */
+    final SourceMap sourceMap = new SourceMap();
+    /** 在块内被赋值的变量 */
+    final HashSet<String> assigned = new HashSet<>();
+    /** 在块内赋值之前就被使用的、声明时没有初始化的变量，以及第一次使用的位置，按出现顺序排列 */
+    final LinkedHashMap<String, Pos> pendingUses = new LinkedHashMap<>();
+
+    /** 分析这个块时遇到的错误 */
+    CompileError error = null;
+    /** 程序是否在这个块里结束了（已经分析完 'end' 和文件尾） */
+    boolean finished = false;
+
+    StatementChunk(int start, int end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    boolean isLast() {
+        return end < 0;
+    }
+
+    /**
+     * 记录一次对声明时没有初始化的变量的使用
+     * 
+     * @param name 变量名
+     * @param pos  使用的位置（报错用）
+     */
+    void use(String name, Pos pos) {
+        if (!assigned.contains(name)) {
+            pendingUses.putIfAbsent(name, pos);
+        }
+    }
+}
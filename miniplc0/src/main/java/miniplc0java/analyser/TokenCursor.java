@@ -0,0 +1,40 @@
+package miniplc0java.analyser;
+
+import java.util.List;
+
+import miniplc0java.error.TokenizeError;
+import miniplc0java.tokenizer.Token;
+import miniplc0java.tokenizer.TokenSource;
+
+/**
+ * 在预先读好的 token 序列上移动的指针，给并行分析用
+ */
+final class TokenCursor implements TokenSource {
+    private final List<Token> tokens;
+    /** 词法分析遇到的错误，读完 tokens 之后抛出，没有错误时 tokens 以 EOF 结尾 */
+    private final TokenizeError error;
+    /** 指向下一个要读取的 token */
+    private int position;
+
+    TokenCursor(List<Token> tokens, TokenizeError error, int position) {
+        this.tokens = tokens;
+        this.error = error;
+        this.position = position;
+    }
+
+    int position() {
+        return position;
+    }
+
+    @Override
+    public Token nextToken() throws TokenizeError {
+        if (position < tokens.size()) {
+            return tokens.get(position++);
+        }
+        if (error != null) {
+            throw error;
+        }
+        // 和 Tokenizer 一样，文件尾之后一直返回 EOF
+        return tokens.get(tokens.size() - 1);
+    }
+}
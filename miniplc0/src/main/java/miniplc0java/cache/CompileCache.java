@@ -0,0 +1,344 @@
+package miniplc0java.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+
+import miniplc0java.instruction.InstructionBuffer;
+import miniplc0java.instruction.ObjectFile;
+import miniplc0java.instruction.SourceMap;
+
+/**
+ * 按内容寻址的编译缓存，存在本地目录里，源码一样的程序不用再做词法分析和语法分析
+ *
+ * 键是源码、COMPILER_VERSION 和编译选项的 SHA-256，值是编译结果：编译成功时是带调试信息的目标文件，
+ * 编译出错时是错误信息。每项一个文件，放在键的前两个十六进制字符命名的子目录里。
+ *
+ * 多个 JVM 可以同时使用同一个目录：写入时先写临时文件再原子地改名，读的一方要么看不到，要么看到完整的文件；
+ * 读到校验和不对的文件当作没有命中并删掉。命中时更新文件的修改时间，目录超过大小上限时按修改时间删掉
+ * 最久没有用过的项，直到降到上限的 90%。缓存只是为了快，读写出错都当作没有命中，不影响编译。
+ *
+ * 目录的大小记在目录下的 size 文件里，每次写入时加上新写的字节数，超过上限才重新统计整个目录，
+ * 免得每个只编译一个文件的 JVM 都要把目录列一遍。多个 JVM 同时更新时可能丢掉一部分，
+ * 所以另外每次写入有 1/RESCAN_ONE_IN 的概率重新统计。
+ */
+public final class CompileCache {
+    /** 编译器生成的代码有变化时要改这个版本，让旧的缓存失效 */
+    public static final String COMPILER_VERSION = "miniplc0-java 1";
+    /** 默认的大小上限 */
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+    /** 编译错误的文件以 "MERR" 开头，后面是 UTF-8 的错误信息 */
+    private static final int ERROR_MAGIC = 0x5252454d;
+    private static final String TEMP_SUFFIX = ".tmp";
+    // 比这更旧的临时文件是写入的进程中途退出留下的
+    private static final Duration STALE_TEMP = Duration.ofHours(1);
+    private static final String SIZE_FILE = "size";
+    private static final int RESCAN_ONE_IN = 1024;
+
+    private final Path directory;
+    private final long maxBytes;
+
+    /**
+     * @param directory 缓存目录，不存在时自动创建
+     * @param maxBytes  大小上限
+     */
+    public CompileCache(Path directory, long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Invalid cache size: " + maxBytes);
+        }
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return 默认的缓存目录，$XDG_CACHE_HOME/miniplc0-java 或者 ~/.cache/miniplc0-java
+     */
+    public static Path defaultDirectory() {
+        var base = System.getenv("XDG_CACHE_HOME");
+        if (base == null || base.isEmpty()) {
+            return Path.of(System.getProperty("user.home"), ".cache", "miniplc0-java");
+        }
+        return Path.of(base, "miniplc0-java");
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * 缓存里的一项
+     */
+    public static final class Entry {
+        private final ObjectFile object;
+        private final String diagnostics;
+
+        private Entry(ObjectFile object, String diagnostics) {
+            this.object = object;
+            this.diagnostics = diagnostics;
+        }
+
+        /**
+         * @return 是不是编译出错的结果
+         */
+        public boolean isFailed() {
+            return object == null;
+        }
+
+        /**
+         * @return 编译出错时的错误信息，编译成功时为 null
+         */
+        public String getDiagnostics() {
+            return diagnostics;
+        }
+
+        /**
+         * @return 编译出的指令，编译出错时为 null
+         */
+        public LongBuffer instructions() {
+            return object == null ? null : object.instructions();
+        }
+
+        /**
+         * @return 编译出的指令的副本，编译出错时为 null
+         */
+        public InstructionBuffer toBuffer() {
+            return object == null ? null : object.toBuffer();
+        }
+
+        /**
+         * @return 每条指令的源码位置，编译出错时为 null
+         */
+        public SourceMap getSourceMap() {
+            return object == null ? null : object.getSourceMap();
+        }
+    }
+
+    /**
+     * 计算缓存的键
+     *
+     * @param source  源码
+     * @param options 影响编译结果的选项，不影响的不要放进来，免得同一个程序存好几份
+     * @return 64 个十六进制字符
+     */
+    public static String key(byte[] source, String options) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // 每个 Java 实现都必须支持 SHA-256
+            throw new IllegalStateException(e);
+        }
+        digest.update(COMPILER_VERSION.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(options.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(source);
+        var hash = digest.digest();
+        var hex = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * 查找
+     *
+     * @return 没有命中时为 null
+     */
+    public Entry get(String key) {
+        var path = path(key);
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(path);
+        } catch (IOException e) {
+            return null;
+        }
+        var buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        Entry entry = null;
+        if (bytes.length >= 4 && buffer.getInt(0) == ERROR_MAGIC) {
+            entry = new Entry(null, new String(bytes, 4, bytes.length - 4, StandardCharsets.UTF_8));
+        } else {
+            try {
+                var object = ObjectFile.wrap(buffer);
+                if (object.checksumMatches()) {
+                    entry = new Entry(object, null);
+                }
+            } catch (IOException e) {
+                // 不是目标文件
+            }
+        }
+        try {
+            if (entry == null) {
+                Files.deleteIfExists(path);
+            } else {
+                // 修改时间就是最后一次使用的时间
+                Files.setLastModifiedTime(path, FileTime.from(Instant.now()));
+            }
+        } catch (IOException e) {
+            // 可能已经被别的进程删掉了
+        }
+        return entry;
+    }
+
+    /**
+     * 存入编译成功的结果
+     *
+     * @param sourceMap 每条指令的源码位置，不能为 null
+     */
+    public void putCompiled(String key, InstructionBuffer instructions, SourceMap sourceMap) {
+        var bytes = new ByteArrayOutputStream(16 + instructions.size() * 16);
+        try {
+            ObjectFile.write(Channels.newChannel(bytes), instructions, sourceMap);
+        } catch (IOException e) {
+            // 写到内存里不会出错
+            throw new IllegalStateException(e);
+        }
+        put(key, bytes.toByteArray());
+    }
+
+    /**
+     * 存入编译出错的结果
+     *
+     * @param diagnostics 错误信息
+     */
+    public void putFailed(String key, String diagnostics) {
+        var message = diagnostics.getBytes(StandardCharsets.UTF_8);
+        var bytes = ByteBuffer.allocate(4 + message.length).order(ByteOrder.LITTLE_ENDIAN);
+        bytes.putInt(ERROR_MAGIC).put(message);
+        put(key, bytes.array());
+    }
+
+    private synchronized void put(String key, byte[] bytes) {
+        var path = path(key);
+        try {
+            Files.createDirectories(path.getParent());
+            var temp = Files.createTempFile(path.getParent(), key, TEMP_SUFFIX);
+            try {
+                Files.write(temp, bytes);
+                try {
+                    Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException e) {
+            // 只是没有缓存下来
+            return;
+        }
+        long total = readSize();
+        if (total < 0 || ThreadLocalRandom.current().nextInt(RESCAN_ONE_IN) == 0) {
+            evict();
+            return;
+        }
+        total += bytes.length;
+        if (total > maxBytes) {
+            evict();
+        } else {
+            writeSize(total);
+        }
+    }
+
+    /**
+     * @return size 文件里记的目录大小，没有或者读不出来时为 -1
+     */
+    private long readSize() {
+        try {
+            return Long.parseLong(Files.readString(directory.resolve(SIZE_FILE), StandardCharsets.US_ASCII).trim());
+        } catch (IOException | NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void writeSize(long total) {
+        try {
+            // 写了一半的文件读出来不是数字，下次重新统计
+            Files.writeString(directory.resolve(SIZE_FILE), Long.toString(total), StandardCharsets.US_ASCII);
+        } catch (IOException e) {
+            // 下次重新统计
+        }
+    }
+
+    /**
+     * 重新统计目录大小，超过上限时按修改时间从旧到新删除，直到降到上限的 90%
+     */
+    private void evict() {
+        var files = new ArrayList<Path>();
+        var times = new ArrayList<FileTime>();
+        var sizes = new ArrayList<Long>();
+        long total = 0;
+        var staleTemp = FileTime.from(Instant.now().minus(STALE_TEMP));
+        try (DirectoryStream<Path> shards = Files.newDirectoryStream(directory, Files::isDirectory)) {
+            for (var shard : shards) {
+                try (DirectoryStream<Path> entries = Files.newDirectoryStream(shard)) {
+                    for (var entry : entries) {
+                        try {
+                            var time = Files.getLastModifiedTime(entry);
+                            long size = Files.size(entry);
+                            if (entry.getFileName().toString().endsWith(TEMP_SUFFIX)) {
+                                if (time.compareTo(staleTemp) < 0) {
+                                    Files.deleteIfExists(entry);
+                                }
+                                continue;
+                            }
+                            files.add(entry);
+                            times.add(time);
+                            sizes.add(size);
+                            total += size;
+                        } catch (NoSuchFileException e) {
+                            // 别的进程刚删掉
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            return;
+        }
+
+        if (total > maxBytes) {
+            var order = new ArrayList<Integer>(files.size());
+            for (int i = 0; i < files.size(); i++) {
+                order.add(i);
+            }
+            order.sort(Comparator.comparing(times::get));
+            long target = maxBytes / 10 * 9;
+            for (int i : order) {
+                if (total <= target) {
+                    break;
+                }
+                try {
+                    Files.deleteIfExists(files.get(i));
+                } catch (IOException e) {
+                    // 下次再删
+                }
+                total -= sizes.get(i);
+            }
+        }
+        writeSize(total);
+    }
+
+    private Path path(String key) {
+        return directory.resolve(key.substring(0, 2)).resolve(key.substring(2));
+    }
+}
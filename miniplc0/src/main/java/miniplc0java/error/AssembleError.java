@@ -0,0 +1,35 @@
+package miniplc0java.error;
+
+import miniplc0java.util.Pos;
+
+public class AssembleError extends CompileError {
+    private static final long serialVersionUID = 1L;
+
+    ErrorCode code;
+    Pos pos;
+
+    @Override
+    public ErrorCode getErr() {
+        return code;
+    }
+
+    @Override
+    public Pos getPos() {
+        return pos;
+    }
+
+    /**
+     * @param code
+     * @param pos  出错的行号和列号，从 0 开始
+     */
+    public AssembleError(ErrorCode code, Pos pos) {
+        this.code = code;
+        this.pos = pos;
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder().append("Assemble Error: ").append(code).append(", at line ").append(pos.row + 1)
+                .append(", column ").append(pos.col + 1).toString();
+    }
+}
@@ -0,0 +1,33 @@
+package miniplc0java.error;
+
+/**
+ * 指令没有通过 Verifier 的校验
+ */
+public class VerificationError extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    ErrorCode code;
+    int offset;
+
+    public ErrorCode getErr() {
+        return code;
+    }
+
+    /**
+     * @return 出错的指令下标，从 0 开始
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    public VerificationError(ErrorCode code, int offset) {
+        this.code = code;
+        this.offset = offset;
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder().append("Verification Error: ").append(code).append(", at instruction ")
+                .append(offset).toString();
+    }
+}
@@ -0,0 +1,213 @@
+package miniplc0java.instruction;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import miniplc0java.error.AssembleError;
+import miniplc0java.error.ErrorCode;
+import miniplc0java.util.Pos;
+
+/**
+ * 把 --analyse 输出的指令列表读回来
+ * 
+ * 每行一条指令，格式和 Instruction.toString() 一样，比如 "LIT 1"、"ADD"。
+ * 直接在字节上扫描，不创建字符串。允许多余的空格、\r\n 换行和空行。
+ */
+public final class Assembler {
+    private Assembler() {
+    }
+
+    // 三个字母的指令名拼成一个 int，方便 switch
+    private static final int ILL = ('I' << 16) | ('L' << 8) | 'L';
+    private static final int LIT = ('L' << 16) | ('I' << 8) | 'T';
+    private static final int LOD = ('L' << 16) | ('O' << 8) | 'D';
+    private static final int STO = ('S' << 16) | ('T' << 8) | 'O';
+    private static final int ADD = ('A' << 16) | ('D' << 8) | 'D';
+    private static final int SUB = ('S' << 16) | ('U' << 8) | 'B';
+    private static final int MUL = ('M' << 16) | ('U' << 8) | 'L';
+    private static final int DIV = ('D' << 16) | ('I' << 8) | 'V';
+    private static final int WRT = ('W' << 16) | ('R' << 8) | 'T';
+
+    private static int key(int a, int b, int c) {
+        return (a << 16) | (b << 8) | c;
+    }
+
+    /**
+     * mmap 一个指令列表文件并汇编
+     */
+    public static InstructionBuffer assemble(Path path) throws IOException, AssembleError {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long length = channel.size();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("listing too large");
+            }
+            return assemble(channel.map(FileChannel.MapMode.READ_ONLY, 0, length));
+        }
+    }
+
+    public static InstructionBuffer assemble(byte[] bytes) throws AssembleError {
+        return assemble(ByteBuffer.wrap(bytes));
+    }
+
+    public static List<Instruction> assembleToList(byte[] bytes) throws AssembleError {
+        return assemble(bytes).toList();
+    }
+
+    /**
+     * 汇编 buffer 从 position 到 limit 的内容，不改变 buffer 的 position
+     * 
+     * @return 汇编出的指令
+     * @throws AssembleError 指令名或操作数不对时抛出，带有行号和列号
+     */
+    public static InstructionBuffer assemble(ByteBuffer buffer) throws AssembleError {
+        int end = buffer.limit();
+        int i = buffer.position();
+        // 一条指令一般 4 到 8 个字节
+        var instructions = new InstructionBuffer((end - i) / 5 + 1);
+        int row = 0;
+        int lineStart = i;
+
+        while (i < end) {
+            // 跳过行首的空白
+            byte b = buffer.get(i);
+            while (b == ' ' || b == '\t') {
+                if (++i == end) {
+                    return instructions;
+                }
+                b = buffer.get(i);
+            }
+            if (b == '\n' || b == '\r') {
+                // 空行
+                i = skipNewline(buffer, i, end);
+                row++;
+                lineStart = i;
+                continue;
+            }
+
+            // 指令名
+            if (i + 3 > end || !isDelimiter(buffer, i + 3, end)) {
+                throw new AssembleError(ErrorCode.InvalidInstruction, new Pos(row, i - lineStart));
+            }
+            int name = key(buffer.get(i) & 0xff, buffer.get(i + 1) & 0xff, buffer.get(i + 2) & 0xff);
+            Operation opt;
+            switch (name) {
+                case LIT:
+                    opt = Operation.LIT;
+                    break;
+                case LOD:
+                    opt = Operation.LOD;
+                    break;
+                case STO:
+                    opt = Operation.STO;
+                    break;
+                case ADD:
+                    opt = Operation.ADD;
+                    break;
+                case SUB:
+                    opt = Operation.SUB;
+                    break;
+                case MUL:
+                    opt = Operation.MUL;
+                    break;
+                case DIV:
+                    opt = Operation.DIV;
+                    break;
+                case WRT:
+                    opt = Operation.WRT;
+                    break;
+                case ILL:
+                    opt = Operation.ILL;
+                    break;
+                default:
+                    throw new AssembleError(ErrorCode.InvalidInstruction, new Pos(row, i - lineStart));
+            }
+            // 只有这三条指令有操作数
+            boolean hasOperand = opt == Operation.LIT || opt == Operation.LOD || opt == Operation.STO;
+            i += 3;
+            i = skipSpaces(buffer, i, end);
+
+            int x = 0;
+            if (hasOperand) {
+                // 操作数：可选的负号加上十进制数字
+                int operandStart = i;
+                boolean negative = false;
+                if (i < end && buffer.get(i) == '-') {
+                    negative = true;
+                    i++;
+                }
+                int digitsStart = i;
+                long value = 0;
+                while (i < end) {
+                    int d = buffer.get(i) - '0';
+                    if (d < 0 || d > 9) {
+                        break;
+                    }
+                    value = value * 10 + d;
+                    if (value > 0x80000000L) {
+                        throw new AssembleError(ErrorCode.IntegerOverflow, new Pos(row, operandStart - lineStart));
+                    }
+                    i++;
+                }
+                if (i == digitsStart || !isDelimiter(buffer, i, end)) {
+                    throw new AssembleError(ErrorCode.InvalidOperand, new Pos(row, operandStart - lineStart));
+                }
+                if (negative) {
+                    value = -value;
+                }
+                if (value > Integer.MAX_VALUE) {
+                    throw new AssembleError(ErrorCode.IntegerOverflow, new Pos(row, operandStart - lineStart));
+                }
+                // 栈偏移不能是负数
+                if (value < 0 && opt != Operation.LIT) {
+                    throw new AssembleError(ErrorCode.InvalidOperand, new Pos(row, operandStart - lineStart));
+                }
+                x = (int) value;
+                i = skipSpaces(buffer, i, end);
+            }
+
+            // 行尾
+            if (i < end) {
+                b = buffer.get(i);
+                if (b != '\n' && b != '\r') {
+                    throw new AssembleError(ErrorCode.InvalidOperand, new Pos(row, i - lineStart));
+                }
+                i = skipNewline(buffer, i, end);
+            }
+            instructions.addWord(InstructionBuffer.encode(opt, x));
+            row++;
+            lineStart = i;
+        }
+        return instructions;
+    }
+
+    private static boolean isDelimiter(ByteBuffer buffer, int i, int end) {
+        if (i >= end) {
+            return true;
+        }
+        byte b = buffer.get(i);
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+
+    private static int skipSpaces(ByteBuffer buffer, int i, int end) {
+        while (i < end) {
+            byte b = buffer.get(i);
+            if (b != ' ' && b != '\t') {
+                break;
+            }
+            i++;
+        }
+        return i;
+    }
+
+    /** i 指向 '\n' 或 '\r'，跳过这个换行 */
+    private static int skipNewline(ByteBuffer buffer, int i, int end) {
+        if (buffer.get(i) == '\r' && i + 1 < end && buffer.get(i + 1) == '\n') {
+            return i + 2;
+        }
+        return i + 1;
+    }
+}
@@ -0,0 +1,189 @@
+package miniplc0java.instruction;
+
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 紧凑的指令序列
+ * 
+ * 每条指令打包成一个 long：低 32 位是操作码（Operation 的序号），高 32 位是操作数，
+ * 没有操作数的指令操作数为 0。和 List&lt;Instruction&gt; 相比没有对象头和装箱的 Integer，
+ * 一百万条指令只要 8 MB。
+ */
+public final class InstructionBuffer {
+    private static final Operation[] OPERATIONS = Operation.values();
+
+    private long[] code;
+    private int size;
+
+    public InstructionBuffer() {
+        this(16);
+    }
+
+    public InstructionBuffer(int capacity) {
+        this.code = new long[Math.max(capacity, 1)];
+        this.size = 0;
+    }
+
+    /**
+     * 打包一条指令
+     * 
+     * @param opt 操作
+     * @param x   操作数
+     * @return 打包后的指令
+     */
+    public static long encode(Operation opt, int x) {
+        return ((long) x << 32) | opt.ordinal();
+    }
+
+    /**
+     * @return 打包的指令的操作码，即 Operation 的序号
+     */
+    public static int opcode(long word) {
+        return (int) word;
+    }
+
+    /**
+     * @return 打包的指令的操作数
+     */
+    public static int operand(long word) {
+        return (int) (word >>> 32);
+    }
+
+    /**
+     * @return 操作码对应的操作，不认识的操作码当作 ILL
+     */
+    public static Operation operation(int opcode) {
+        if (opcode < 0 || opcode >= OPERATIONS.length) {
+            return Operation.ILL;
+        }
+        return OPERATIONS[opcode];
+    }
+
+    /**
+     * 从 List&lt;Instruction&gt; 转换
+     */
+    public static InstructionBuffer of(List<Instruction> instructions) {
+        var buffer = new InstructionBuffer(instructions.size());
+        for (var instruction : instructions) {
+            buffer.add(instruction);
+        }
+        return buffer;
+    }
+
+    /**
+     * 转换成 List&lt;Instruction&gt;
+     */
+    public List<Instruction> toList() {
+        var list = new ArrayList<Instruction>(size);
+        for (int i = 0; i < size; i++) {
+            list.add(get(i));
+        }
+        return list;
+    }
+
+    public void add(Operation opt) {
+        addWord(encode(opt, 0));
+    }
+
+    public void add(Operation opt, int x) {
+        addWord(encode(opt, x));
+    }
+
+    public void add(Instruction instruction) {
+        var x = instruction.getX();
+        addWord(encode(instruction.getOpt(), x == null ? 0 : x));
+    }
+
+    /**
+     * 添加一条已经打包好的指令
+     */
+    public void addWord(long word) {
+        if (size == code.length) {
+            code = Arrays.copyOf(code, code.length * 2);
+        }
+        code[size++] = word;
+    }
+
+    public void addAll(InstructionBuffer other) {
+        ensureCapacity(size + other.size);
+        System.arraycopy(other.code, 0, code, size, other.size);
+        size += other.size;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > code.length) {
+            code = Arrays.copyOf(code, Math.max(capacity, code.length * 2));
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * @return 第 index 条打包的指令
+     */
+    public long getWord(int index) {
+        return code[index];
+    }
+
+    public Operation getOpt(int index) {
+        return operation(opcode(code[index]));
+    }
+
+    public int getX(int index) {
+        return operand(code[index]);
+    }
+
+    /**
+     * @return 第 index 条指令的对象形式
+     */
+    public Instruction get(int index) {
+        return new Instruction(getOpt(index), getX(index));
+    }
+
+    /**
+     * @return 以 LongBuffer 的形式访问这些指令，和 ObjectFile.instructions() 的格式相同
+     */
+    public LongBuffer asLongBuffer() {
+        return LongBuffer.wrap(code, 0, size).slice();
+    }
+
+    /**
+     * 底层数组，只有前 size() 个元素有效，调用者不应该修改它
+     */
+    public long[] array() {
+        return code;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (o == null || getClass() != o.getClass())
+            return false;
+        InstructionBuffer that = (InstructionBuffer) o;
+        return size == that.size && Arrays.equals(code, 0, size, that.code, 0, that.size);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = 1;
+        for (int i = 0; i < size; i++) {
+            result = 31 * result + Long.hashCode(code[i]);
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return toList().toString();
+    }
+}
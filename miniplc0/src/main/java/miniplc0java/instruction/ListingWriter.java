@@ -0,0 +1,102 @@
+package miniplc0java.instruction;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+import miniplc0java.util.IntFormat;
+
+/**
+ * 输出指令列表，结果和对每条指令调用 println(instruction.toString()) 完全一样
+ * 
+ * 指令名预先编码成字节，整数直接写成 ASCII，攒满一大块之后再写到 channel 里，
+ * 每条指令不分配任何对象。
+ */
+public final class ListingWriter {
+    /** 默认的缓冲区大小 */
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+    /** 每个操作码对应的指令名，有操作数的后面带一个空格 */
+    private static final byte[][] NAMES;
+    /** println 用的换行 */
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+    /** 一条指令最长的长度 */
+    private static final int MAX_LINE = 4 + IntFormat.MAX_LENGTH + NEWLINE.length;
+
+    static {
+        var operations = Operation.values();
+        NAMES = new byte[operations.length][];
+        for (var opt : operations) {
+            var name = hasOperand(opt) ? opt + " " : opt.toString();
+            NAMES[opt.ordinal()] = name.getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    /** 和 Instruction.toString() 一致：只有这三条指令输出操作数 */
+    private static boolean hasOperand(Operation opt) {
+        return opt == Operation.LIT || opt == Operation.LOD || opt == Operation.STO;
+    }
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer;
+    private final byte[] bytes;
+    private int pos = 0;
+
+    public ListingWriter(WritableByteChannel channel) {
+        this(channel, DEFAULT_BUFFER_SIZE);
+    }
+
+    public ListingWriter(WritableByteChannel channel, int bufferSize) {
+        this.channel = channel;
+        this.bytes = new byte[Math.max(bufferSize, MAX_LINE)];
+        this.buffer = ByteBuffer.wrap(bytes);
+    }
+
+    /**
+     * 写出所有指令并 flush
+     */
+    public static void write(WritableByteChannel channel, InstructionBuffer instructions) throws IOException {
+        var writer = new ListingWriter(channel);
+        writer.write(instructions);
+        writer.flush();
+    }
+
+    public void write(InstructionBuffer instructions) throws IOException {
+        var words = instructions.array();
+        int n = instructions.size();
+        for (int i = 0; i < n; i++) {
+            write(words[i]);
+        }
+    }
+
+    /**
+     * 写一条打包好的指令
+     */
+    public void write(long word) throws IOException {
+        if (pos + MAX_LINE > bytes.length) {
+            flush();
+        }
+        var opt = InstructionBuffer.operation(InstructionBuffer.opcode(word));
+        var name = NAMES[opt.ordinal()];
+        System.arraycopy(name, 0, bytes, pos, name.length);
+        pos += name.length;
+        if (hasOperand(opt)) {
+            pos = IntFormat.write(bytes, pos, InstructionBuffer.operand(word));
+        }
+        for (byte b : NEWLINE) {
+            bytes[pos++] = b;
+        }
+    }
+
+    /**
+     * 把缓冲区里的内容写到 channel
+     */
+    public void flush() throws IOException {
+        buffer.clear().limit(pos);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        pos = 0;
+    }
+}
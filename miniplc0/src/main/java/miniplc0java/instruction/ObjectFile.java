@@ -0,0 +1,243 @@
+package miniplc0java.instruction;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+import miniplc0java.util.Pos;
+
+/**
+ * 二进制目标文件
+ * 
+ * 所有数字都是小端序：
+ * 
+ * <pre>
+ * | 偏移   | 长度 | 内容                                           |
+ * | 0      | 4    | 魔数 "MPC0"                                    |
+ * | 4      | 2    | 版本号，目前是 1                               |
+ * | 6      | 2    | 标志位，FLAG_DEBUG 表示有调试信息段            |
+ * | 8      | 4    | 指令条数 n                                     |
+ * | 12     | 4    | CRC32C 校验和，覆盖除这 4 个字节以外的整个文件 |
+ * | 16     | 8n   | 指令段，每条指令的格式和 InstructionBuffer 一样 |
+ * | 16+8n  | 8n   | 调试信息段（可选），每条指令的行号和列号各 4 字节 |
+ * </pre>
+ * 
+ * 读取时直接 mmap 整个文件，指令段以 LongBuffer 的形式交给 MiniVm，不复制也不创建对象。
+ */
+public final class ObjectFile {
+    /** "MPC0" */
+    public static final int MAGIC = 0x3043504d;
+    public static final int VERSION = 1;
+    public static final int FLAG_DEBUG = 1;
+
+    static final int HEADER_SIZE = 16;
+    /** 写文件时每次编码多少条指令 */
+    private static final int BLOCK_INSTRUCTIONS = 8192;
+
+    /** 整个文件 */
+    private final ByteBuffer buffer;
+    private final int size;
+    private final int flags;
+
+    private ObjectFile(ByteBuffer buffer, int size, int flags) {
+        this.buffer = buffer;
+        this.size = size;
+        this.flags = flags;
+    }
+
+    /**
+     * 写一个目标文件
+     * 
+     * @param channel      输出
+     * @param instructions 指令
+     * @param sourceMap    每条指令的源码位置，为 null 时不写调试信息段
+     * @throws IOException
+     */
+    public static void write(WritableByteChannel channel, InstructionBuffer instructions, SourceMap sourceMap)
+            throws IOException {
+        if (sourceMap != null && sourceMap.size() != instructions.size()) {
+            throw new IllegalArgumentException("source map does not match instructions");
+        }
+        var header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC);
+        header.putShort((short) VERSION);
+        header.putShort((short) (sourceMap != null ? FLAG_DEBUG : 0));
+        header.putInt(instructions.size());
+
+        // 先算一遍校验和，这样输出不需要支持 seek，可以是标准输出
+        var crc = new CRC32C();
+        crc.update(header.array(), 0, 12);
+        var block = ByteBuffer.allocate(BLOCK_INSTRUCTIONS * 8).order(ByteOrder.LITTLE_ENDIAN);
+        encodeBody(instructions, sourceMap, block, b -> crc.update(b));
+        header.putInt((int) crc.getValue());
+
+        header.flip();
+        writeFully(channel, header);
+        encodeBody(instructions, sourceMap, block, b -> writeFully(channel, b));
+    }
+
+    private interface BlockSink {
+        void accept(ByteBuffer block) throws IOException;
+    }
+
+    private static void encodeBody(InstructionBuffer instructions, SourceMap sourceMap, ByteBuffer block,
+            BlockSink sink) throws IOException {
+        var words = instructions.array();
+        int n = instructions.size();
+        for (int i = 0; i < n; i += BLOCK_INSTRUCTIONS) {
+            int end = Math.min(n, i + BLOCK_INSTRUCTIONS);
+            block.clear();
+            block.asLongBuffer().put(words, i, end - i);
+            block.limit((end - i) * 8);
+            sink.accept(block);
+        }
+        if (sourceMap != null) {
+            for (int i = 0; i < n; i += BLOCK_INSTRUCTIONS) {
+                int end = Math.min(n, i + BLOCK_INSTRUCTIONS);
+                block.clear();
+                for (int j = i; j < end; j++) {
+                    block.putInt(sourceMap.getRow(j));
+                    block.putInt(sourceMap.getCol(j));
+                }
+                block.flip();
+                sink.accept(block);
+            }
+        }
+    }
+
+    private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * mmap 一个目标文件，只检查文件头，不检查校验和
+     * 
+     * @param path 文件路径
+     * @return
+     * @throws IOException 如果文件格式不对
+     */
+    public static ObjectFile map(Path path) throws IOException {
+        return map(path, false);
+    }
+
+    /**
+     * mmap 一个目标文件
+     * 
+     * @param path           文件路径
+     * @param verifyChecksum 是否检查校验和，这需要读一遍整个文件
+     * @return
+     * @throws IOException 如果文件格式不对或者校验和不对
+     */
+    public static ObjectFile map(Path path, boolean verifyChecksum) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long length = channel.size();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("object file too large");
+            }
+            var file = wrap(channel.map(FileChannel.MapMode.READ_ONLY, 0, length));
+            if (verifyChecksum && !file.checksumMatches()) {
+                throw new IOException("object file checksum mismatch");
+            }
+            return file;
+        }
+    }
+
+    /**
+     * 从内存中的数据读取目标文件，不检查校验和
+     * 
+     * @param buffer 整个文件，从 position 开始
+     * @return
+     * @throws IOException 如果文件格式不对
+     */
+    public static ObjectFile wrap(ByteBuffer buffer) throws IOException {
+        buffer = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("not a miniplc0 object file");
+        }
+        int version = Short.toUnsignedInt(buffer.getShort(4));
+        if (version != VERSION) {
+            throw new IOException("unsupported object file version " + version);
+        }
+        int flags = Short.toUnsignedInt(buffer.getShort(6));
+        int size = buffer.getInt(8);
+        long expected = HEADER_SIZE + (long) size * ((flags & FLAG_DEBUG) != 0 ? 16 : 8);
+        if (size < 0 || buffer.limit() != expected) {
+            throw new IOException("object file is truncated or corrupt");
+        }
+        return new ObjectFile(buffer, size, flags);
+    }
+
+    /**
+     * @return 指令条数
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return 指令段，格式和 InstructionBuffer 一样，直接指向文件的内容
+     */
+    public LongBuffer instructions() {
+        return buffer.slice(HEADER_SIZE, size * 8).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+    }
+
+    /**
+     * @return 复制一份指令
+     */
+    public InstructionBuffer toBuffer() {
+        var instructions = new InstructionBuffer(size);
+        var words = instructions();
+        for (int i = 0; i < size; i++) {
+            instructions.addWord(words.get(i));
+        }
+        return instructions;
+    }
+
+    public boolean hasDebugInfo() {
+        return (flags & FLAG_DEBUG) != 0;
+    }
+
+    /**
+     * @return 第 index 条指令的源码位置，没有调试信息时返回 null
+     */
+    public Pos getPos(int index) {
+        if (!hasDebugInfo()) {
+            return null;
+        }
+        int offset = HEADER_SIZE + size * 8 + index * 8;
+        return new Pos(buffer.getInt(offset), buffer.getInt(offset + 4));
+    }
+
+    /**
+     * @return 调试信息段的内容，没有调试信息时返回 null
+     */
+    public SourceMap getSourceMap() {
+        if (!hasDebugInfo()) {
+            return null;
+        }
+        var sourceMap = new SourceMap(size);
+        int offset = HEADER_SIZE + size * 8;
+        for (int i = 0; i < size; i++) {
+            sourceMap.add(buffer.getInt(offset + i * 8), buffer.getInt(offset + i * 8 + 4));
+        }
+        return sourceMap;
+    }
+
+    /**
+     * 重新计算校验和并和文件头里的比较
+     */
+    public boolean checksumMatches() {
+        var crc = new CRC32C();
+        crc.update(buffer.slice(0, 12));
+        crc.update(buffer.slice(HEADER_SIZE, buffer.limit() - HEADER_SIZE));
+        return (int) crc.getValue() == buffer.getInt(12);
+    }
+}
@@ -0,0 +1,21 @@
+package miniplc0java.instruction;
+
+/**
+ * 打包的指令里用的操作码，和 Operation 的序号一一对应
+ * 
+ * 虚拟机直接对这些 int 常量 switch，不需要先转换成 Operation。
+ */
+public final class Opcode {
+    private Opcode() {
+    }
+
+    public static final int ILL = 0;
+    public static final int LIT = 1;
+    public static final int LOD = 2;
+    public static final int STO = 3;
+    public static final int ADD = 4;
+    public static final int SUB = 5;
+    public static final int MUL = 6;
+    public static final int DIV = 7;
+    public static final int WRT = 8;
+}
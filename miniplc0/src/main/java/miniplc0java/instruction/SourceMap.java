@@ -0,0 +1,69 @@
+package miniplc0java.instruction;
+
+import java.util.Arrays;
+
+import miniplc0java.util.Pos;
+
+/**
+ * 指令到源码位置的映射，第 i 项是第 i 条指令对应的源码位置
+ */
+public final class SourceMap {
+    private int[] rows;
+    private int[] cols;
+    private int size;
+
+    public SourceMap() {
+        this(16);
+    }
+
+    public SourceMap(int capacity) {
+        this.rows = new int[Math.max(capacity, 1)];
+        this.cols = new int[Math.max(capacity, 1)];
+        this.size = 0;
+    }
+
+    public void add(Pos pos) {
+        add(pos.row, pos.col);
+    }
+
+    public void add(int row, int col) {
+        if (size == rows.length) {
+            rows = Arrays.copyOf(rows, rows.length * 2);
+            cols = Arrays.copyOf(cols, cols.length * 2);
+        }
+        rows[size] = row;
+        cols[size] = col;
+        size++;
+    }
+
+    public void addAll(SourceMap other) {
+        if (size + other.size > rows.length) {
+            int capacity = Math.max(size + other.size, rows.length * 2);
+            rows = Arrays.copyOf(rows, capacity);
+            cols = Arrays.copyOf(cols, capacity);
+        }
+        System.arraycopy(other.rows, 0, rows, size, other.size);
+        System.arraycopy(other.cols, 0, cols, size, other.size);
+        size += other.size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int getRow(int index) {
+        return rows[index];
+    }
+
+    public int getCol(int index) {
+        return cols[index];
+    }
+
+    public Pos getPos(int index) {
+        return new Pos(rows[index], cols[index]);
+    }
+}
@@ -0,0 +1,140 @@
+package miniplc0java.server;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.SocketChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import miniplc0java.App;
+
+/**
+ * CompileServer 的客户端：把命令行、工作目录和标准输入转发给服务器，把服务器发回来的输出写出来，
+ * 退出码和服务器上的 App 一样
+ *
+ * 连不上服务器（没有启动或者已经空闲退出）时在本进程里运行，结果一样，只是没有省掉启动的时间。
+ * 套接字文件不属于当前用户时不连接，因为那是别的用户的进程在监听。
+ */
+public final class CompileClient {
+    private CompileClient() {
+    }
+
+    /**
+     * 参数是 [--socket PATH] 加上 App 的参数
+     *
+     * @return 退出码
+     */
+    public static int main(String[] args) {
+        var socket = CompileServer.defaultSocket();
+        if (args.length >= 2 && args[0].equals("--socket")) {
+            socket = Path.of(args[1]);
+            args = Arrays.copyOfRange(args, 2, args.length);
+        }
+        SocketChannel channel;
+        try {
+            channel = connect(socket);
+        } catch (IOException e) {
+            if (e instanceof AccessDeniedException) {
+                System.err.println("Not using compile server: " + e.getMessage());
+            }
+            return new App(System.in, System.out, System.err, null).run(args);
+        }
+        try (channel) {
+            return exchange(channel, Path.of("").toAbsolutePath(), args, System.in, System.out, System.err);
+        } catch (IOException e) {
+            System.err.println("Lost connection to compile server: " + e.getMessage());
+            return 2;
+        } finally {
+            System.out.flush();
+            System.err.flush();
+        }
+    }
+
+    /**
+     * 让服务器运行一次 App
+     *
+     * @param socket           服务器的套接字文件
+     * @param workingDirectory 相对路径相对于这个目录
+     * @param args             App 的参数
+     * @param stdin            转发给服务器的标准输入，只在服务器需要的时候读，读完以前一直占着一个线程
+     * @param stdout           服务器的标准输出写到这里
+     * @param stderr           服务器的标准错误写到这里
+     * @return 退出码
+     * @throws IOException 连不上服务器，或者套接字文件属于别的用户。连上以后服务器断开了也是这个异常，这时可能已经写出了一部分输出
+     */
+    public static int run(Path socket, Path workingDirectory, String[] args, InputStream stdin,
+            OutputStream stdout, OutputStream stderr) throws IOException {
+        try (var channel = connect(socket)) {
+            return exchange(channel, workingDirectory, args, stdin, stdout, stderr);
+        }
+    }
+
+    /**
+     * 只连接当前用户自己的服务器
+     *
+     * @throws AccessDeniedException 套接字文件属于别的用户
+     */
+    private static SocketChannel connect(Path socket) throws IOException {
+        if (!UnixSockets.isOwnedByCurrentUser(socket)) {
+            throw new AccessDeniedException(socket.toString(), null, "not owned by the current user");
+        }
+        return UnixSockets.connect(socket);
+    }
+
+    private static int exchange(SocketChannel channel, Path workingDirectory, String[] args, InputStream stdin,
+            OutputStream stdout, OutputStream stderr) throws IOException {
+        var frames = new Protocol.FrameWriter(channel);
+        frames.writeArgs(workingDirectory.toString(), args);
+
+        var forwarder = new Thread(() -> {
+            var buffer = new byte[Protocol.CHUNK_SIZE];
+            try {
+                int n;
+                while ((n = stdin.read(buffer)) > 0) {
+                    frames.write(Protocol.STDIN, buffer, 0, n);
+                }
+                frames.write(Protocol.STDIN, buffer, 0, 0);
+            } catch (IOException e) {
+                // 服务器已经结束了这次请求，不再需要输入
+            }
+        }, "miniplc0-client-stdin");
+        forwarder.setDaemon(true);
+        forwarder.start();
+
+        var in = new DataInputStream(new BufferedInputStream(new Protocol.ChannelInputStream(channel)));
+        var buffer = new byte[Protocol.CHUNK_SIZE];
+        while (true) {
+            var header = Protocol.readHeader(in);
+            if (header == null) {
+                throw new IOException("compile server closed the connection");
+            }
+            switch (header.type) {
+                case Protocol.STDOUT:
+                case Protocol.STDERR: {
+                    var out = header.type == Protocol.STDOUT ? stdout : stderr;
+                    int remaining = header.length;
+                    while (remaining > 0) {
+                        int n = in.read(buffer, 0, Math.min(remaining, buffer.length));
+                        if (n < 0) {
+                            throw new IOException("compile server closed the connection");
+                        }
+                        out.write(buffer, 0, n);
+                        remaining -= n;
+                    }
+                }
+                    break;
+                case Protocol.EXIT:
+                    if (header.length != 4) {
+                        throw new IOException("invalid exit frame");
+                    }
+                    return in.readInt();
+                default:
+                    throw new IOException("unexpected frame type " + header.type);
+            }
+        }
+    }
+}
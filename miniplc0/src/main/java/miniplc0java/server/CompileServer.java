@@ -0,0 +1,249 @@
+package miniplc0java.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import miniplc0java.App;
+
+/**
+ * 常驻的编译服务器，在 Unix 域套接字上接受 CompileClient 转发过来的命令行，用同一个 JVM 处理，
+ * 省掉每次启动 JVM、加载类和预热 JIT 的时间
+ *
+ * 每个连接在自己的线程里运行一个 App，App 的标准输入输出和工作目录都是客户端的，
+ * 所以支持的参数和单独运行时一样，退出码也一样。多个连接同时处理。
+ * 超过 idleTimeout 没有连接时自动退出，退出时删掉套接字文件。
+ */
+public final class CompileServer implements AutoCloseable {
+    /** 默认的空闲时间 */
+    public static final Duration DEFAULT_IDLE_TIMEOUT = Duration.ofMinutes(10);
+
+    private final Path socket;
+    private final Duration idleTimeout;
+    private final ExecutorService workers;
+    // 正在处理的连接数
+    private final AtomicInteger active = new AtomicInteger();
+    // 最后一个连接结束的时间
+    private volatile long lastActivity = System.nanoTime();
+    private volatile ServerSocketChannel server;
+
+    /**
+     * @param socket      套接字文件的路径
+     * @param idleTimeout 超过这么久没有连接就退出
+     */
+    public CompileServer(Path socket, Duration idleTimeout) {
+        this.socket = socket;
+        this.idleTimeout = idleTimeout;
+        var count = new AtomicInteger();
+        this.workers = Executors.newCachedThreadPool(r -> {
+            var thread = new Thread(r, "miniplc0-server-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return 当前的 Java 是否支持 Unix 域套接字（需要 Java 16）
+     */
+    public static boolean isSupported() {
+        return UnixSockets.isSupported();
+    }
+
+    /**
+     * 默认的套接字文件，每个用户一个。有 $XDG_RUNTIME_DIR 时放在里面，否则放在临时目录下只有自己能访问的
+     * miniplc0-用户名 目录里。不能直接放在共享的临时目录里：别的用户可以抢先在那里监听，收下客户端的参数、
+     * 工作目录和标准输入，再返回伪造的输出和退出码
+     */
+    public static Path defaultSocket() {
+        var runtime = System.getenv("XDG_RUNTIME_DIR");
+        if (runtime != null && !runtime.isEmpty()) {
+            return Path.of(runtime, "miniplc0-java.sock");
+        }
+        return Path.of(System.getProperty("java.io.tmpdir"), "miniplc0-" + System.getProperty("user.name"),
+                "server.sock");
+    }
+
+    /**
+     * 开始监听，之后客户端就能连上了，但是要等 serve() 才处理连接
+     *
+     * @throws IOException 不能监听，比如已经有一个服务器在用这个套接字
+     */
+    public void listen() throws IOException {
+        var directory = socket.toAbsolutePath().getParent();
+        if (socket.equals(defaultSocket()) || Files.notExists(directory)) {
+            // 默认的目录必须是自己的，别人不能在里面放套接字
+            UnixSockets.createPrivateDirectory(directory);
+        }
+        if (Files.exists(socket)) {
+            // 能连上说明已经有一个服务器在运行，连不上是上次没有正常退出留下的文件
+            boolean running;
+            try {
+                UnixSockets.connect(socket).close();
+                running = true;
+            } catch (IOException e) {
+                running = false;
+            }
+            if (running) {
+                throw new IOException("a compile server is already listening on " + socket);
+            }
+            Files.deleteIfExists(socket);
+        }
+        server = UnixSockets.listen(socket);
+        try {
+            UnixSockets.restrictToOwner(socket);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * 处理连接，直到空闲超时或者 close()，还没有 listen() 时先 listen()
+     *
+     * @throws IOException 不能监听
+     */
+    public void serve() throws IOException {
+        if (server == null) {
+            listen();
+        }
+        ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+            var thread = new Thread(r, "miniplc0-server-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(10, Math.min(1000, idleTimeout.toMillis() / 4));
+        watchdog.scheduleAtFixedRate(this::checkIdle, period, period, TimeUnit.MILLISECONDS);
+        try {
+            while (true) {
+                SocketChannel channel;
+                try {
+                    channel = server.accept();
+                } catch (ClosedChannelException e) {
+                    // 空闲超时或者 close()
+                    break;
+                }
+                active.incrementAndGet();
+                workers.execute(() -> {
+                    try {
+                        handle(channel);
+                    } finally {
+                        lastActivity = System.nanoTime();
+                        active.decrementAndGet();
+                    }
+                });
+            }
+        } finally {
+            watchdog.shutdownNow();
+            server.close();
+            Files.deleteIfExists(socket);
+            // 等正在处理的连接结束
+            workers.shutdown();
+            try {
+                workers.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void checkIdle() {
+        if (active.get() == 0 && System.nanoTime() - lastActivity > idleTimeout.toNanos()) {
+            close();
+        }
+    }
+
+    /**
+     * 不再接受新的连接并删掉套接字文件，serve() 等正在处理的连接结束以后返回
+     */
+    @Override
+    public void close() {
+        var server = this.server;
+        if (server != null) {
+            try {
+                server.close();
+                Files.deleteIfExists(socket);
+            } catch (IOException e) {
+                // 下次启动时会删掉
+            }
+        }
+    }
+
+    private void handle(SocketChannel channel) {
+        try (channel) {
+            var in = new DataInputStream(new BufferedInputStream(new Protocol.ChannelInputStream(channel)));
+            var frames = new Protocol.FrameWriter(channel);
+            var args = Protocol.readArgs(in);
+            var workingDirectory = Path.of(args[0]);
+            var stdin = new Protocol.StdinStream(in);
+            var stdout = new PrintStream(
+                    new BufferedOutputStream(new Protocol.FrameOutputStream(frames, Protocol.STDOUT),
+                            Protocol.CHUNK_SIZE));
+            var stderr = new PrintStream(new Protocol.FrameOutputStream(frames, Protocol.STDERR), true);
+            int status;
+            try {
+                var app = new App(stdin, stdout, stderr, workingDirectory);
+                status = app.run(Arrays.copyOfRange(args, 1, args.length));
+            } catch (RuntimeException e) {
+                // 单独运行时这是未捕获的异常，JVM 的退出码是 1
+                e.printStackTrace(stderr);
+                status = 1;
+            }
+            stdout.flush();
+            stderr.flush();
+            if (stdout.checkError() || stderr.checkError()) {
+                // 客户端已经断开了
+                return;
+            }
+            frames.writeExit(status);
+        } catch (IOException e) {
+            // 客户端断开了或者发来的不是合法的请求，只影响这个连接
+        }
+    }
+
+    /**
+     * 启动服务器，参数是 [--socket PATH] [--idle-timeout SECONDS]
+     */
+    public static void main(String[] args) {
+        var socket = defaultSocket();
+        var idleTimeout = DEFAULT_IDLE_TIMEOUT;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("--socket") && i + 1 < args.length) {
+                    socket = Path.of(args[++i]);
+                } else if (args[i].equals("--idle-timeout") && i + 1 < args.length) {
+                    idleTimeout = Duration.ofSeconds(Long.parseLong(args[++i]));
+                } else {
+                    throw new IllegalArgumentException(args[i]);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("usage: miniplc0-java --daemon [--socket PATH] [--idle-timeout SECONDS]");
+            System.exit(2);
+            return;
+        }
+
+        var server = new CompileServer(socket, idleTimeout);
+        // 被 kill 时也删掉套接字文件
+        Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+        try {
+            server.serve();
+        } catch (IOException e) {
+            System.err.println("Cannot start compile server: " + e.getMessage());
+            System.exit(2);
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package miniplc0java.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+
+/**
+ * 编译服务器和客户端之间的协议
+ *
+ * 双方都发送帧，每帧是 1 字节类型、4 字节长度（大端序）和数据。客户端先发一个 ARGS 帧，
+ * 内容是工作目录和命令行参数，然后把标准输入切成 STDIN 帧发过去，长度为 0 的 STDIN 帧表示输入结束；
+ * 服务器把输出放在 STDOUT 和 STDERR 帧里发回来，最后发一个 EXIT 帧，内容是 4 字节的退出码。
+ * 服务器只在 App 要读标准输入的时候才读 STDIN 帧。
+ */
+final class Protocol {
+    static final int ARGS = 1;
+    static final int STDIN = 2;
+    static final int STDOUT = 3;
+    static final int STDERR = 4;
+    static final int EXIT = 5;
+
+    /** 标准输入输出每帧最多多少字节 */
+    static final int CHUNK_SIZE = 64 * 1024;
+    /** ARGS 帧最多多少字节 */
+    private static final int MAX_ARGS_SIZE = 1024 * 1024;
+
+    private Protocol() {
+    }
+
+    /**
+     * 帧的头
+     */
+    static final class Header {
+        final int type;
+        final int length;
+
+        Header(int type, int length) {
+            this.type = type;
+            this.length = length;
+        }
+    }
+
+    /**
+     * 读一个帧头
+     *
+     * @return 对方关掉了连接时为 null
+     */
+    static Header readHeader(DataInputStream in) throws IOException {
+        int type = in.read();
+        if (type < 0) {
+            return null;
+        }
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("invalid frame length " + length);
+        }
+        return new Header(type, length);
+    }
+
+    /**
+     * 写帧，可以在多个线程里同时调用
+     */
+    static final class FrameWriter {
+        private final ByteChannel channel;
+
+        FrameWriter(ByteChannel channel) {
+            this.channel = channel;
+        }
+
+        synchronized void write(int type, byte[] data, int offset, int length) throws IOException {
+            var header = ByteBuffer.allocate(5);
+            header.put((byte) type).putInt(length).flip();
+            var body = ByteBuffer.wrap(data, offset, length);
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            while (body.hasRemaining()) {
+                channel.write(body);
+            }
+        }
+
+        void writeArgs(String workingDirectory, String[] args) throws IOException {
+            var bytes = new ByteArrayOutputStream();
+            var out = new DataOutputStream(bytes);
+            out.writeUTF(workingDirectory);
+            out.writeInt(args.length);
+            for (var arg : args) {
+                out.writeUTF(arg);
+            }
+            write(ARGS, bytes.toByteArray(), 0, bytes.size());
+        }
+
+        void writeExit(int status) throws IOException {
+            write(EXIT, ByteBuffer.allocate(4).putInt(status).array(), 0, 4);
+        }
+    }
+
+    /**
+     * ARGS 帧的内容，第一项是工作目录，后面是命令行参数
+     */
+    static String[] readArgs(DataInputStream in) throws IOException {
+        var header = readHeader(in);
+        if (header == null || header.type != ARGS || header.length > MAX_ARGS_SIZE) {
+            throw new IOException("expected an ARGS frame");
+        }
+        var data = new DataInputStream(new java.io.ByteArrayInputStream(in.readNBytes(header.length)));
+        var workingDirectory = data.readUTF();
+        int count = data.readInt();
+        if (count < 0 || count > header.length) {
+            throw new IOException("invalid argument count " + count);
+        }
+        var result = new String[count + 1];
+        result[0] = workingDirectory;
+        for (int i = 0; i < count; i++) {
+            result[i + 1] = data.readUTF();
+        }
+        return result;
+    }
+
+    /**
+     * 把写进来的字节切成某种类型的帧
+     */
+    static final class FrameOutputStream extends OutputStream {
+        private final FrameWriter writer;
+        private final int type;
+
+        FrameOutputStream(FrameWriter writer, int type) {
+            this.writer = writer;
+            this.type = type;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, CHUNK_SIZE);
+                writer.write(type, b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+    }
+
+    /**
+     * 服务器这边的标准输入，用到的时候才读 STDIN 帧
+     */
+    static final class StdinStream extends InputStream {
+        private final DataInputStream in;
+        // 当前帧还剩多少字节
+        private int remaining;
+        private boolean eof;
+
+        StdinStream(DataInputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            var b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (remaining == 0) {
+                if (eof) {
+                    return -1;
+                }
+                var header = readHeader(in);
+                if (header == null) {
+                    throw new EOFException("client closed the connection");
+                }
+                if (header.type != STDIN) {
+                    throw new IOException("expected a STDIN frame");
+                }
+                remaining = header.length;
+                eof = header.length == 0;
+            }
+            int n = in.read(b, off, Math.min(len, remaining));
+            if (n < 0) {
+                throw new EOFException("client closed the connection");
+            }
+            remaining -= n;
+            return n;
+        }
+    }
+
+    /**
+     * 直接读 channel 的输入流，不像 Channels.newInputStream 那样在读的时候锁住整个 channel，
+     * 另一个线程可以同时写
+     */
+    static final class ChannelInputStream extends InputStream {
+        private final ByteChannel channel;
+
+        ChannelInputStream(ByteChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int read() throws IOException {
+            var b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            return channel.read(ByteBuffer.wrap(b, off, len));
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package miniplc0java.server;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+
+/**
+ * Unix 域套接字，Java 16 才有，编译时的目标版本还没有这些 API，所以都通过反射调用
+ */
+final class UnixSockets {
+    private static final ProtocolFamily UNIX;
+    private static final Method ADDRESS_OF;
+    private static final Method OPEN_SERVER;
+    private static final Method OPEN_CLIENT;
+
+    static {
+        ProtocolFamily family = null;
+        Method addressOf = null;
+        Method openServer = null;
+        Method openClient = null;
+        try {
+            family = StandardProtocolFamily.valueOf("UNIX");
+            addressOf = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", Path.class);
+            openServer = ServerSocketChannel.class.getMethod("open", ProtocolFamily.class);
+            openClient = SocketChannel.class.getMethod("open", ProtocolFamily.class);
+        } catch (IllegalArgumentException | ReflectiveOperationException e) {
+            family = null;
+        }
+        UNIX = family;
+        ADDRESS_OF = addressOf;
+        OPEN_SERVER = openServer;
+        OPEN_CLIENT = openClient;
+    }
+
+    private UnixSockets() {
+    }
+
+    static boolean isSupported() {
+        return UNIX != null;
+    }
+
+    /**
+     * 在 path 上监听
+     */
+    static ServerSocketChannel listen(Path path) throws IOException {
+        var server = (ServerSocketChannel) invoke(OPEN_SERVER);
+        try {
+            server.bind(address(path));
+        } catch (IOException e) {
+            server.close();
+            throw e;
+        }
+        return server;
+    }
+
+    /**
+     * 连接到 path 上的服务器
+     */
+    static SocketChannel connect(Path path) throws IOException {
+        var channel = (SocketChannel) invoke(OPEN_CLIENT);
+        try {
+            channel.connect(address(path));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    /**
+     * 创建只有自己能访问的目录，已经存在时检查它属于当前用户并且别的用户不能访问
+     *
+     * @throws AccessDeniedException 目录不安全
+     */
+    static void createPrivateDirectory(Path directory) throws IOException {
+        var posix = directory.getFileSystem().supportedFileAttributeViews().contains("posix");
+        if (Files.notExists(directory, LinkOption.NOFOLLOW_LINKS)) {
+            if (posix) {
+                Files.createDirectories(directory,
+                        PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+            } else {
+                Files.createDirectories(directory);
+            }
+        }
+        if (!Files.isDirectory(directory, LinkOption.NOFOLLOW_LINKS) || !isOwnedByCurrentUser(directory)) {
+            throw new AccessDeniedException(directory.toString(), null, "not a directory owned by the current user");
+        }
+        if (posix) {
+            var permissions = Files.getPosixFilePermissions(directory, LinkOption.NOFOLLOW_LINKS);
+            permissions.retainAll(PosixFilePermissions.fromString("---rwxrwx"));
+            if (!permissions.isEmpty()) {
+                throw new AccessDeniedException(directory.toString(), null, "accessible by other users");
+            }
+        }
+    }
+
+    /**
+     * 让套接字只有自己能连接，不支持 POSIX 权限的文件系统上什么也不做
+     */
+    static void restrictToOwner(Path path) throws IOException {
+        if (path.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            Files.setPosixFilePermissions(path, PosixFilePermissions.fromString("rw-------"));
+        }
+    }
+
+    /**
+     * @return path 本身（不跟随符号链接）是否属于当前用户
+     */
+    static boolean isOwnedByCurrentUser(Path path) throws IOException {
+        return Files.getOwner(path, LinkOption.NOFOLLOW_LINKS).equals(currentUser(path));
+    }
+
+    private static UserPrincipal currentUser(Path path) throws IOException {
+        return path.getFileSystem().getUserPrincipalLookupService()
+                .lookupPrincipalByName(System.getProperty("user.name"));
+    }
+
+    private static SocketAddress address(Path path) throws IOException {
+        try {
+            return (SocketAddress) ADDRESS_OF.invoke(null, path);
+        } catch (IllegalAccessException e) {
+            throw new IOException(e);
+        } catch (InvocationTargetException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static Object invoke(Method open) throws IOException {
+        if (!isSupported()) {
+            throw new IOException("Unix domain sockets require Java 16 or later");
+        }
+        try {
+            return open.invoke(null, UNIX);
+        } catch (IllegalAccessException e) {
+            throw new IOException(e);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+}
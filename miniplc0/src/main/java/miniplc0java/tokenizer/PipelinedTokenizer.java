@@ -0,0 +1,145 @@
+package miniplc0java.tokenizer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import miniplc0java.error.TokenizeError;
+
+/**
+ * 在另一个线程里做词法分析的 Tokenizer
+ * 
+ * 生产者线程不停地调用 Tokenizer.nextToken()，把 token 放进一个单生产者单消费者的环形缓冲区，
+ * Analyser 在自己的线程里从缓冲区取。缓冲区满了生产者就等，空了消费者就等。
+ * 词法错误（以及其他异常）放在最后一个槽位的位置上，消费者读到那里时再抛出，
+ * 所以报错的时机和直接用 Tokenizer 时一样。
+ * 
+ * 用完之后要 close()，否则分析提前出错时生产者线程会一直等在满的缓冲区上。
+ */
+public class PipelinedTokenizer implements TokenSource, AutoCloseable {
+    /** 默认的缓冲区大小，必须是 2 的幂 */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /** 等待时先自旋这么多次，再开始 park */
+    private static final int SPIN_TRIES = 100;
+    private static final long PARK_NANOS = 20_000;
+
+    private final Tokenizer tokenizer;
+    private final Token[] slots;
+    private final int mask;
+
+    /** 下一个要读的位置，只有消费者写 */
+    private final AtomicLong head = new AtomicLong();
+    /** 下一个要写的位置，只有生产者写 */
+    private final AtomicLong tail = new AtomicLong();
+
+    /** 生产者遇到的异常，在 tail 指向它之前写入，消费者读完所有 token 之后抛出 */
+    private volatile Throwable failure = null;
+    /** 生产者是否已经结束（读到 EOF 或出错） */
+    private volatile boolean done = false;
+    private volatile boolean closed = false;
+
+    private final Thread producer;
+
+    /** 消费者读到的 EOF，之后一直返回它 */
+    private Token eof = null;
+
+    public PipelinedTokenizer(Tokenizer tokenizer) {
+        this(tokenizer, DEFAULT_CAPACITY);
+    }
+
+    public PipelinedTokenizer(Tokenizer tokenizer, int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two");
+        }
+        this.tokenizer = tokenizer;
+        this.slots = new Token[capacity];
+        this.mask = capacity - 1;
+        this.producer = new Thread(this::produce, "miniplc0-tokenizer");
+        this.producer.setDaemon(true);
+        this.producer.start();
+    }
+
+    private void produce() {
+        long t = 0;
+        long cachedHead = 0;
+        try {
+            while (true) {
+                var token = tokenizer.nextToken();
+                // 缓冲区满了就等消费者
+                if (t - cachedHead == slots.length) {
+                    int tries = 0;
+                    while (t - (cachedHead = head.get()) == slots.length) {
+                        if (closed) {
+                            return;
+                        }
+                        tries = backoff(tries);
+                    }
+                }
+                slots[(int) t & mask] = token;
+                tail.lazySet(++t);
+                if (token.getTokenType() == TokenType.EOF) {
+                    break;
+                }
+            }
+        } catch (Throwable e) {
+            failure = e;
+        } finally {
+            done = true;
+        }
+    }
+
+    @Override
+    public Token nextToken() throws TokenizeError {
+        if (eof != null) {
+            return eof;
+        }
+        long h = head.get();
+        if (h == tail.get()) {
+            int tries = 0;
+            while (h == tail.get()) {
+                // 先看 done 再看 tail，保证 done 之前放进去的 token 不会漏掉
+                if (done && h == tail.get()) {
+                    return fail();
+                }
+                tries = backoff(tries);
+            }
+        }
+        int index = (int) h & mask;
+        var token = slots[index];
+        slots[index] = null;
+        head.lazySet(h + 1);
+        if (token.getTokenType() == TokenType.EOF) {
+            eof = token;
+        }
+        return token;
+    }
+
+    private Token fail() throws TokenizeError {
+        var e = failure;
+        if (e instanceof TokenizeError) {
+            throw (TokenizeError) e;
+        } else if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        } else if (e instanceof Error) {
+            throw (Error) e;
+        }
+        throw new Error("tokenizer thread stopped unexpectedly", e);
+    }
+
+    private static int backoff(int tries) {
+        if (tries < SPIN_TRIES) {
+            Thread.onSpinWait();
+        } else {
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+        return tries + 1;
+    }
+
+    /**
+     * 停止生产者线程
+     */
+    @Override
+    public void close() {
+        closed = true;
+    }
+}
@@ -1,7 +1,6 @@
 package miniplc0java.tokenizer;
 
-import java.util.ArrayList;
-import java.util.Optional;
+import java.util.Arrays;
 import java.util.Scanner;
 
 import miniplc0java.util.Pos;
@@ -10,23 +9,93 @@ import miniplc0java.util.Pos;
  * 这是一个从 C++ 版本抄过来的字符迭代器
  */
 public class StringIter {
-    // 以行为基础的缓冲区
-    ArrayList<String> linesBuffer = new ArrayList<>();
+    // 以行为基础的缓冲区：所有行（包括结尾的 \n）连在一起放在 chars 里，第 i 行从 lineStarts[i] 开始，
+    // 到 lineStarts[i + 1] 结束。reset 以后数组留着给下一个源码用
+    char[] chars = new char[256];
+    int[] lineStarts = new int[17];
+    int lineCount = 0;
 
     Scanner scanner;
-    // 指向下一个要读取的字符
-    Pos ptrNext = new Pos(0, 0);
+    // 指向下一个要读取的字符，行号和列号分开存，移动时不分配 Pos
+    int nextRow = 0;
+    int nextCol = 0;
 
-    Pos ptr = new Pos(0, 0);
+    int row = 0;
+    int col = 0;
 
     boolean initialized = false;
 
-    Optional<Character> peeked = Optional.empty();
+    boolean hasPeeked = false;
+    char peeked;
 
     public StringIter(Scanner scanner) {
         this.scanner = scanner;
     }
 
+    /**
+     * 换成另一个源码，从头开始读，已经分配的缓冲区留着
+     *
+     * 分行的规则和用 Scanner 时一样：行分隔符是 \r\n、\n、\r、\u2028、\u2029 和 \u0085，
+     * 最后只剩空白字符时不再读
+     *
+     * @param source 源码
+     */
+    public void reset(CharSequence source) {
+        scanner = null;
+        lineCount = 0;
+        lineStarts[0] = 0;
+        nextRow = nextCol = row = col = 0;
+        hasPeeked = false;
+
+        // 最后一个不是空白的字符，它后面的行不读
+        int last = source.length() - 1;
+        while (last >= 0 && Character.isWhitespace(source.charAt(last))) {
+            last--;
+        }
+        int start = 0;
+        while (start <= last) {
+            int end = start;
+            while (end < source.length() && !isLineSeparator(source.charAt(end))) {
+                end++;
+            }
+            appendLine(source, start, end);
+            if (end < source.length() && source.charAt(end) == '\r' && end + 1 < source.length()
+                    && source.charAt(end + 1) == '\n') {
+                end++;
+            }
+            start = end + 1;
+        }
+        initialized = true;
+    }
+
+    private static boolean isLineSeparator(char c) {
+        return c == '\n' || c == '\r' || c == '\u2028' || c == '\u2029' || c == '\u0085';
+    }
+
+    /**
+     * 把 line 的 [start, end) 加到缓冲区末尾作为一行，后面加上 \n
+     */
+    private void appendLine(CharSequence line, int start, int end) {
+        int offset = lineStarts[lineCount];
+        int length = end - start + 1;
+        if (offset + length > chars.length) {
+            chars = Arrays.copyOf(chars, Math.max(chars.length * 2, offset + length));
+        }
+        for (int i = start; i < end; i++) {
+            chars[offset++] = line.charAt(i);
+        }
+        chars[offset++] = '\n';
+        if (lineCount + 2 > lineStarts.length) {
+            lineStarts = Arrays.copyOf(lineStarts, lineStarts.length * 2);
+        }
+        lineCount++;
+        lineStarts[lineCount] = offset;
+    }
+
+    private int lineLength(int row) {
+        return lineStarts[row + 1] - lineStarts[row];
+    }
+
     // 从这里开始其实是一个基于行号的缓冲区的实现
     // 为了简单起见，我们没有单独拿出一个类实现
     // 核心思想和 C 的文件输入输出类似，就是一个 buffer 加一个指针，有三个细节
@@ -41,7 +110,8 @@ public class StringIter {
             return;
         }
         while (scanner.hasNext()) {
-            linesBuffer.add(scanner.nextLine() + '\n');
+            var line = scanner.nextLine();
+            appendLine(line, 0, line.length());
         }
         // todo:check read \n?
         initialized = true;
@@ -62,64 +132,81 @@ public class StringIter {
      * 获取下一个字符的位置
      */
     public Pos nextPos() {
-        if (ptr.row >= linesBuffer.size()) {
-            // linesBuffer储存了行，如果当前行号已经大于的总的行数，抛出异常
+        if (row >= lineCount) {
+            // 缓冲区储存了行，如果当前行号已经大于的总的行数，抛出异常
             throw new Error("advance after EOF");
         }
-        if (ptr.col == linesBuffer.get(ptr.row).length() - 1) {
+        if (col == lineLength(row) - 1) {
             // 如果当前列为该行最后一个，返回下一行的第一个。
-            return new Pos(ptr.row + 1, 0);
+            return new Pos(row + 1, 0);
         }
         // 返回同一行的后一列
-        return new Pos(ptr.row, ptr.col + 1);
+        return new Pos(row, col + 1);
+    }
+
+    /**
+     * 把 next 设成当前字符的下一个位置，和 nextPos() 一样但是不创建 Pos
+     */
+    private void advanceNext() {
+        if (row >= lineCount) {
+            throw new Error("advance after EOF");
+        }
+        if (col == lineLength(row) - 1) {
+            nextRow = row + 1;
+            nextCol = 0;
+        } else {
+            nextRow = row;
+            nextCol = col + 1;
+        }
     }
 
     /**
      * 获取当前字符的位置
      */
     public Pos currentPos() {
-        // ptr指向当前的字符
-        return ptr;
+        // 指针指向当前的字符
+        return new Pos(row, col);
     }
 
     /**
      * 获取上一个字符的位置
      */
     public Pos previousPos() {
-        if (ptr.row == 0 && ptr.col == 0) {
+        if (row == 0 && col == 0) {
             // 如果当前的字符为第一个，则没有上一个字符，抛出异常
             throw new Error("previous position from beginning");
         }
-        if (ptr.col == 0) {
+        if (col == 0) {
             // 如果当前字符为某一行第一个，则返回上一行最后一个。
-            return new Pos(ptr.row - 1, linesBuffer.get(ptr.row - 1).length() - 1);
+            return new Pos(row - 1, lineLength(row - 1) - 1);
         }
         // 返回同一行上一个
-        return new Pos(ptr.row, ptr.col - 1);
+        return new Pos(row, col - 1);
     }
 
     /**
      * 将指针指向下一个字符，并返回当前字符
      */
     public char nextChar() {
-        if (this.peeked.isPresent()) {
-            char ch = this.peeked.get();
-            this.peeked = Optional.empty();// 将peeked值为空？
-            this.ptr = ptrNext;// 向下移动一个字符
-            return ch;
+        char ch;
+        if (hasPeeked) {
+            ch = peeked;
+            hasPeeked = false;
         } else {
-            char ch = this.getNextChar();// 获取下一个字符
-            this.ptr = ptrNext; // ptr向后移动一个
-            return ch;
+            ch = getNextChar();// 获取下一个字符
         }
+        // 向下移动一个字符
+        row = nextRow;
+        col = nextCol;
+        return ch;
     }
 
     private char getNextChar() {
         if (isEOF()) {
             return 0;
         }
-        char result = linesBuffer.get(ptrNext.row).charAt(ptrNext.col);
-        ptrNext = nextPos();
+        char result = chars[lineStarts[nextRow] + nextCol];
+        advanceNext();
         return result;
     }
 
@@ -127,23 +214,23 @@ public class StringIter {
      * 查看下一个字符，但不移动指针
      */
     public char peekChar() {
-        if (peeked.isPresent()) {
-            return peeked.get();
-        } else {
-            char ch = getNextChar();
-            this.peeked = Optional.of(ch);
-            return ch;
+        if (!hasPeeked) {
+            peeked = getNextChar();
+            hasPeeked = true;
         }
+        return peeked;
     }
 
     public Boolean isEOF() {
-        return ptr.row >= linesBuffer.size();
+        return row >= lineCount;
     }
 
     // Note: Is it evil to unread a buffer?
     public void unreadLast() {
         // 撤回最后一次读取
-        ptr = previousPos();
+        var previous = previousPos();
+        row = previous.row;
+        col = previous.col;
     }
 
-}
+}
\ No newline at end of file
@@ -0,0 +1,16 @@
+package miniplc0java.tokenizer;
+
+import miniplc0java.error.TokenizeError;
+
+/**
+ * 能够逐个给出 Token 的东西，Analyser 从这里读 token
+ */
+public interface TokenSource {
+    /**
+     * 获取下一个 Token，到达文件尾之后一直返回 EOF
+     * 
+     * @return
+     * @throws TokenizeError 如果解析有异常则抛出
+     */
+    Token nextToken() throws TokenizeError;
+}
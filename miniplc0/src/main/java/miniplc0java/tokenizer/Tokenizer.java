@@ -7,9 +7,11 @@ import miniplc0java.util.Pos;
 
 import miniplc0java.error.ErrorCode;
 
-public class Tokenizer {
+public class Tokenizer implements TokenSource {
 
     private StringIter it;
+    // 拼标识符用，每个 token 重新 setLength(0)
+    private final StringBuilder identifier = new StringBuilder();
 
     public Tokenizer(StringIter it) {
         this.it = it;
@@ -22,6 +24,7 @@ public class Tokenizer {
      * @return
      * @throws TokenizeError 如果解析有异常则抛出
      */
+    @Override
     public Token nextToken() throws TokenizeError {
         it.readAll();
 
@@ -80,13 +83,14 @@ public class Tokenizer {
         // -- 否则，返回标识符
         //
         // Token 的 Value 应填写标识符或关键字的字符串
-        String value = "";
+        identifier.setLength(0);
         var st = it.currentPos();
         while(!it.isEOF()&&Character.isLetterOrDigit(it.peekChar()))
         {
-            value += it.peekChar();
+            identifier.append(it.peekChar());
             it.nextChar();
         }
+        String value = identifier.toString();
         switch(value)
         {
             case "begin":
@@ -0,0 +1,73 @@
+package miniplc0java.util;
+
+/**
+ * 不分配内存地把 int 写成十进制 ASCII，和 Integer.toString 的结果一样
+ */
+public final class IntFormat {
+    private IntFormat() {
+    }
+
+    /** 最长的 int 是 -2147483648，11 个字节 */
+    public static final int MAX_LENGTH = 11;
+
+    // 00 到 99 的十位和个位，一次处理两位
+    private static final byte[] TENS = new byte[100];
+    private static final byte[] ONES = new byte[100];
+
+    static {
+        for (int i = 0; i < 100; i++) {
+            TENS[i] = (byte) ('0' + i / 10);
+            ONES[i] = (byte) ('0' + i % 10);
+        }
+    }
+
+    /**
+     * @return value 写成十进制需要的字节数
+     */
+    public static int length(int value) {
+        int d = 1;
+        if (value >= 0) {
+            d = 0;
+            value = -value;
+        }
+        int p = -10;
+        for (int i = 1; i < 10; i++) {
+            if (value > p) {
+                return i + d;
+            }
+            p = 10 * p;
+        }
+        return 10 + d;
+    }
+
+    /**
+     * 把 value 写到 dst[pos] 开始的位置
+     * 
+     * @return 写完之后的位置
+     */
+    public static int write(byte[] dst, int pos, int value) {
+        int end = pos + length(value);
+        int i = end;
+        boolean negative = value < 0;
+        // 用负数算，这样 Integer.MIN_VALUE 也不会溢出
+        if (!negative) {
+            value = -value;
+        }
+        while (value <= -100) {
+            int q = value / 100;
+            int r = q * 100 - value;
+            value = q;
+            dst[--i] = ONES[r];
+            dst[--i] = TENS[r];
+        }
+        int q = value / 10;
+        dst[--i] = (byte) ('0' + q * 10 - value);
+        if (q < 0) {
+            dst[--i] = (byte) ('0' - q);
+        }
+        if (negative) {
+            dst[--i] = '-';
+        }
+        return end;
+    }
+}
@@ -0,0 +1,373 @@
+package miniplc0java.vm;
+
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+import miniplc0java.error.VerificationError;
+import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.InstructionBuffer;
+import miniplc0java.instruction.Opcode;
+
+/**
+ * 把指令编译成 JVM 字节码再执行的虚拟机
+ *
+ * 每 CHUNK_SIZE 条指令编译成一个静态方法 void chunkN(int[] slots, IntConsumer out)，保证不超过 JVM
+ * 64 KB 的方法大小限制。方法开头把要读的栈位置从 slots 读进局部变量，中间的计算都在 JVM 的操作数栈上，
+ * 要按偏移访问还在操作数栈上的位置时才先存进局部变量，结尾把改过的位置写回 slots。
+ *
+ * 生成的类用 Lookup.defineHiddenClass 加载，不用了就能被回收；运行在没有隐藏类的 JDK 上时退回
+ * Lookup.defineClass。没有通过 Verifier 校验的指令、或者栈深得放不进局部变量的，交给 MiniVm 运行。
+ * 每次 Run 都从空栈开始，适合同一个程序反复运行。
+ */
+public class BytecodeVm implements VirtualMachine {
+    // 每个方法最多编译多少条指令，最坏情况下一条指令不超过 42 字节
+    static final int CHUNK_SIZE = 1024;
+    // 每个类最多放多少个方法，常量池也不能太大
+    private static final int MAX_CHUNKS_PER_CLASS = 256;
+    private static final int MAX_POOL_SIZE = 65535 - CHUNK_SIZE - 64;
+    // 局部变量 0 和 1 是 slots 和 out
+    private static final int FIRST_LOCAL = 2;
+    private static final int MAX_LOCALS = 65535;
+
+    private static final String CLASS_NAME = "miniplc0java/vm/CompiledProgram";
+    private static final String CHUNK_DESCRIPTOR = "([ILjava/util/function/IntConsumer;)V";
+    private static final MethodType CHUNK_TYPE = MethodType.methodType(void.class, int[].class, IntConsumer.class);
+    private static final AtomicInteger CLASS_COUNTER = new AtomicInteger();
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    // Lookup.defineHiddenClass 和它的参数，JDK 15 以前没有，为 null
+    private static final Method DEFINE_HIDDEN_CLASS;
+    private static final Object NO_CLASS_OPTIONS;
+
+    static {
+        Method method = null;
+        Object options = null;
+        try {
+            var optionClass = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            options = Array.newInstance(optionClass, 0);
+            method = MethodHandles.Lookup.class.getMethod("defineHiddenClass", byte[].class, boolean.class,
+                    options.getClass());
+        } catch (ReflectiveOperationException e) {
+            method = null;
+        }
+        DEFINE_HIDDEN_CLASS = method;
+        NO_CLASS_OPTIONS = options;
+    }
+
+    private LongBuffer code;
+    private PrintStream out;
+    private OutputBuffer.FlushPolicy flushPolicy = OutputBuffer.FlushPolicy.BLOCK;
+    // 编译好的方法和需要的栈大小，没有编译时为 null
+    private MethodHandle[] chunks;
+    private int maxDepth;
+
+    public BytecodeVm(List<Instruction> instructions, PrintStream out) {
+        this(InstructionBuffer.of(instructions), out);
+    }
+
+    public BytecodeVm(InstructionBuffer instructions, PrintStream out) {
+        this(instructions.asLongBuffer(), out);
+    }
+
+    /**
+     * 校验并编译指令
+     *
+     * @param code 从 position 到 limit 的每个元素是一条打包好的指令
+     * @param out
+     */
+    public BytecodeVm(LongBuffer code, PrintStream out) {
+        this.code = code.slice();
+        this.out = out;
+        try {
+            this.maxDepth = Verifier.verify(this.code);
+        } catch (VerificationError e) {
+            return;
+        }
+        if (FIRST_LOCAL + maxDepth > MAX_LOCALS) {
+            return;
+        }
+        this.chunks = compile(this.code, maxDepth);
+    }
+
+    /**
+     * @return 是否编译成了字节码
+     */
+    public boolean isCompiled() {
+        return chunks != null;
+    }
+
+    @Override
+    public void Run() {
+        if (chunks == null) {
+            var vm = new MiniVm(code, out);
+            vm.setFlushPolicy(flushPolicy);
+            vm.Run();
+            return;
+        }
+        var output = new OutputBuffer(out, flushPolicy);
+        try {
+            run(output);
+        } finally {
+            output.flush();
+        }
+    }
+
+    @Override
+    public void setFlushPolicy(OutputBuffer.FlushPolicy policy) {
+        this.flushPolicy = policy;
+    }
+
+    /**
+     * 运行编译好的方法，输出交给 sink，可以在多个线程里同时运行
+     */
+    void run(IntConsumer sink) {
+        var chunks = this.chunks;
+        var slots = new int[maxDepth];
+        try {
+            for (int i = 0; i < chunks.length; i++) {
+                chunks[i].invokeExact(slots, sink);
+            }
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            // 生成的代码不会抛出受检异常
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle[] compile(LongBuffer code, int maxDepth) {
+        int length = code.limit();
+        var translator = new Translator(code, maxDepth);
+        var handles = new ArrayList<MethodHandle>();
+        int start = 0;
+        while (start < length) {
+            var classFile = new ClassFile();
+            int count = 0;
+            while (start < length && count < MAX_CHUNKS_PER_CLASS && classFile.poolSize() < MAX_POOL_SIZE) {
+                int end = Math.min(start + CHUNK_SIZE, length);
+                classFile.addMethod(ClassFile.ACC_STATIC, "chunk" + count, CHUNK_DESCRIPTOR,
+                        translator.translate(classFile, start, end));
+                start = end;
+                count++;
+            }
+            var lookup = define(classFile.toByteArray(ClassFile.ACC_FINAL | ClassFile.ACC_SUPER,
+                    CLASS_NAME + CLASS_COUNTER.getAndIncrement()));
+            for (int i = 0; i < count; i++) {
+                try {
+                    handles.add(lookup.findStatic(lookup.lookupClass(), "chunk" + i, CHUNK_TYPE));
+                } catch (ReflectiveOperationException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+        return handles.toArray(new MethodHandle[0]);
+    }
+
+    /**
+     * 加载生成的类，返回能访问它的 Lookup
+     */
+    private static MethodHandles.Lookup define(byte[] bytes) {
+        try {
+            if (DEFINE_HIDDEN_CLASS != null) {
+                return (MethodHandles.Lookup) DEFINE_HIDDEN_CLASS.invoke(LOOKUP, bytes, true, NO_CLASS_OPTIONS);
+            }
+            return LOOKUP.in(LOOKUP.defineClass(bytes));
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException(e.getCause());
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 把一段指令翻译成一个方法
+     *
+     * home 以下的栈位置在局部变量里，home 到 depth 之间的在 JVM 的操作数栈上。
+     */
+    private static final class Translator {
+        private final LongBuffer code;
+        private final int maxDepth;
+        // 翻译到的位置的栈深度
+        private int depth;
+        private int home;
+
+        // 当前块里读过、写过的位置，记录块号避免每块清空
+        private final int[] loadedIn;
+        private final int[] writtenIn;
+        private int stamp;
+        private final int[] loads = new int[2 * CHUNK_SIZE];
+        private final int[] writes = new int[2 * CHUNK_SIZE];
+        private int loadCount;
+        private int writeCount;
+
+        Translator(LongBuffer code, int maxDepth) {
+            this.code = code;
+            this.maxDepth = maxDepth;
+            this.loadedIn = new int[maxDepth];
+            this.writtenIn = new int[maxDepth];
+        }
+
+        ClassFile.Code translate(ClassFile classFile, int start, int end) {
+            int entryDepth = depth;
+            scan(start, end, entryDepth);
+
+            var body = new ClassFile.Code(classFile, FIRST_LOCAL + maxDepth);
+            // 开头把块外压入、块里先读后写的位置读进局部变量
+            for (int i = 0; i < loadCount; i++) {
+                int s = loads[i];
+                body.aload(0);
+                body.iconst(s);
+                body.op(ClassFile.Code.IALOAD, -1);
+                body.istore(FIRST_LOCAL + s);
+            }
+            home = depth;
+            for (int i = start; i < end; i++) {
+                long word = code.get(i);
+                int x = InstructionBuffer.operand(word);
+                int op = InstructionBuffer.opcode(word);
+                switch (op) {
+                    case Opcode.LIT:
+                        body.iconst(x);
+                        depth++;
+                        break;
+                    case Opcode.LOD:
+                        if (x >= home) {
+                            spill(body);
+                        }
+                        body.iload(FIRST_LOCAL + x);
+                        depth++;
+                        break;
+                    case Opcode.STO:
+                        if (x >= home) {
+                            spill(body);
+                        }
+                        onStack(body, 1);
+                        body.istore(FIRST_LOCAL + x);
+                        depth--;
+                        home = Math.min(home, depth);
+                        break;
+                    case Opcode.WRT:
+                        onStack(body, 1);
+                        body.aload(1);
+                        body.op(ClassFile.Code.SWAP, 0);
+                        body.invokeInterface("java/util/function/IntConsumer", "accept", "(I)V", 1, -2);
+                        depth--;
+                        home = Math.min(home, depth);
+                        break;
+                    default:
+                        // ADD、SUB、MUL、DIV，除以 0 时 idiv 抛出的异常和 MiniVm 一样
+                        onStack(body, 2);
+                        body.op(ClassFile.Code.IADD + 4 * (op - Opcode.ADD), -1);
+                        depth--;
+                        home = Math.min(home, depth - 1);
+                        break;
+                }
+            }
+            // 结尾操作数栈要清空，改过的位置写回 slots
+            spill(body);
+            for (int i = 0; i < writeCount; i++) {
+                int s = writes[i];
+                if (s < depth) {
+                    body.aload(0);
+                    body.iconst(s);
+                    body.iload(FIRST_LOCAL + s);
+                    body.op(ClassFile.Code.IASTORE, -3);
+                }
+            }
+            body.op(ClassFile.Code.RETURN, 0);
+            return body;
+        }
+
+        /**
+         * 先扫一遍，找出要从 slots 读进来的位置和要写回去的位置
+         */
+        private void scan(int start, int end, int entryDepth) {
+            stamp++;
+            loadCount = 0;
+            writeCount = 0;
+            int d = entryDepth;
+            for (int i = start; i < end; i++) {
+                long word = code.get(i);
+                int x = InstructionBuffer.operand(word);
+                switch (InstructionBuffer.opcode(word)) {
+                    case Opcode.LIT:
+                        write(d);
+                        d++;
+                        break;
+                    case Opcode.LOD:
+                        read(x, entryDepth);
+                        write(d);
+                        d++;
+                        break;
+                    case Opcode.STO:
+                        read(d - 1, entryDepth);
+                        d--;
+                        write(x);
+                        break;
+                    case Opcode.WRT:
+                        read(d - 1, entryDepth);
+                        d--;
+                        break;
+                    default:
+                        read(d - 2, entryDepth);
+                        read(d - 1, entryDepth);
+                        write(d - 2);
+                        d--;
+                        break;
+                }
+            }
+        }
+
+        private void read(int s, int entryDepth) {
+            if (s < entryDepth && writtenIn[s] != stamp && loadedIn[s] != stamp) {
+                loadedIn[s] = stamp;
+                loads[loadCount++] = s;
+            }
+        }
+
+        private void write(int s) {
+            if (writtenIn[s] != stamp) {
+                writtenIn[s] = stamp;
+                writes[writeCount++] = s;
+            }
+        }
+
+        /**
+         * 把操作数栈上的位置都存进局部变量
+         */
+        private void spill(ClassFile.Code body) {
+            for (int s = depth - 1; s >= home; s--) {
+                body.istore(FIRST_LOCAL + s);
+            }
+            home = depth;
+        }
+
+        /**
+         * 保证栈顶的 n 个位置在操作数栈上，n 为 1 或 2
+         */
+        private void onStack(ClassFile.Code body, int n) {
+            if (home > depth - n) {
+                if (n == 2 && home == depth - 1) {
+                    // 右边已经在操作数栈上，左边读进来再交换
+                    body.iload(FIRST_LOCAL + depth - 2);
+                    body.op(ClassFile.Code.SWAP, 0);
+                } else {
+                    for (int s = depth - n; s < depth; s++) {
+                        body.iload(FIRST_LOCAL + s);
+                    }
+                }
+                home = depth - n;
+            }
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package miniplc0java.vm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * 手写的 class 文件生成器，只支持 BytecodeVm 用到的那一点
+ *
+ * 生成的方法都是没有分支的直线代码，所以版本号用 52（Java 8），不需要 StackMapTable。
+ */
+final class ClassFile {
+    static final int ACC_STATIC = 0x0008;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    // 常量池，0 号不用
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final HashMap<String, Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+
+    private final ByteArrayOutputStream methods = new ByteArrayOutputStream();
+    private final DataOutputStream methodsOut = new DataOutputStream(methods);
+    private int methodCount = 0;
+
+    private final int codeAttribute = utf8("Code");
+
+    /**
+     * @return 常量池里已经有的项数，不能超过 65535
+     */
+    int poolSize() {
+        return poolCount;
+    }
+
+    int utf8(String value) {
+        var key = "U" + value;
+        var index = poolIndex.get(key);
+        if (index != null) {
+            return index;
+        }
+        try {
+            poolOut.writeByte(CONSTANT_UTF8);
+            poolOut.writeUTF(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return add(key);
+    }
+
+    int integer(int value) {
+        var key = "I" + value;
+        var index = poolIndex.get(key);
+        if (index != null) {
+            return index;
+        }
+        try {
+            poolOut.writeByte(CONSTANT_INTEGER);
+            poolOut.writeInt(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return add(key);
+    }
+
+    /**
+     * @param name 内部名，比如 java/lang/Object
+     */
+    int classRef(String name) {
+        return ref("C" + name, CONSTANT_CLASS, utf8(name), -1);
+    }
+
+    int interfaceMethodRef(String owner, String name, String descriptor) {
+        return ref("N" + owner + "." + name + descriptor, CONSTANT_INTERFACE_METHODREF, classRef(owner),
+                nameAndType(name, descriptor));
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        return ref("T" + name + ":" + descriptor, CONSTANT_NAME_AND_TYPE, utf8(name), utf8(descriptor));
+    }
+
+    private int ref(String key, int tag, int first, int second) {
+        var index = poolIndex.get(key);
+        if (index != null) {
+            return index;
+        }
+        try {
+            poolOut.writeByte(tag);
+            poolOut.writeShort(first);
+            if (second >= 0) {
+                poolOut.writeShort(second);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return add(key);
+    }
+
+    private int add(String key) {
+        int index = poolCount++;
+        poolIndex.put(key, index);
+        return index;
+    }
+
+    /**
+     * 加一个方法
+     */
+    void addMethod(int access, String name, String descriptor, Code code) {
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        try {
+            methodsOut.writeShort(access);
+            methodsOut.writeShort(nameIndex);
+            methodsOut.writeShort(descriptorIndex);
+            // 只有一个 Code 属性，里面没有异常表和别的属性
+            methodsOut.writeShort(1);
+            methodsOut.writeShort(codeAttribute);
+            methodsOut.writeInt(12 + code.size);
+            methodsOut.writeShort(code.maxStack);
+            methodsOut.writeShort(code.maxLocals);
+            methodsOut.writeInt(code.size);
+            methodsOut.write(code.bytes, 0, code.size);
+            methodsOut.writeShort(0);
+            methodsOut.writeShort(0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        methodCount++;
+    }
+
+    /**
+     * @param name  内部名，比如 miniplc0java/vm/CompiledProgram
+     * @param access 类的访问标志
+     */
+    byte[] toByteArray(int access, String name) {
+        int thisClass = classRef(name);
+        int superClass = classRef("java/lang/Object");
+        var bytes = new ByteArrayOutputStream(pool.size() + methods.size() + 32);
+        var out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(52);
+            out.writeShort(poolCount);
+            pool.writeTo(out);
+            out.writeShort(access);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            // 没有接口和字段
+            out.writeShort(0);
+            out.writeShort(0);
+            out.writeShort(methodCount);
+            methods.writeTo(out);
+            // 没有类属性
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * 一个方法的字节码，自动记录操作数栈的最大高度
+     */
+    static final class Code {
+        static final int IALOAD = 0x2e;
+        static final int IASTORE = 0x4f;
+        static final int SWAP = 0x5f;
+        static final int IADD = 0x60;
+        static final int ISUB = 0x64;
+        static final int IMUL = 0x68;
+        static final int IDIV = 0x6c;
+        static final int RETURN = 0xb1;
+
+        private static final int BIPUSH = 0x10;
+        private static final int SIPUSH = 0x11;
+        private static final int LDC = 0x12;
+        private static final int LDC_W = 0x13;
+        private static final int ILOAD = 0x15;
+        private static final int ALOAD = 0x19;
+        private static final int ISTORE = 0x36;
+        private static final int INVOKEINTERFACE = 0xb9;
+        private static final int WIDE = 0xc4;
+
+        private final ClassFile classFile;
+        private byte[] bytes = new byte[256];
+        private int size;
+        private int stack;
+        int maxStack;
+        int maxLocals;
+
+        Code(ClassFile classFile, int maxLocals) {
+            this.classFile = classFile;
+            this.maxLocals = maxLocals;
+        }
+
+        int size() {
+            return size;
+        }
+
+        /**
+         * 压入一个 int 常量
+         */
+        void iconst(int value) {
+            if (value >= -1 && value <= 5) {
+                // iconst_m1 到 iconst_5
+                u1(0x03 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                u1(BIPUSH);
+                u1(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                u1(SIPUSH);
+                u2(value);
+            } else {
+                int index = classFile.integer(value);
+                if (index < 256) {
+                    u1(LDC);
+                    u1(index);
+                } else {
+                    u1(LDC_W);
+                    u2(index);
+                }
+            }
+            push(1);
+        }
+
+        void iload(int local) {
+            local(ILOAD, local);
+            push(1);
+        }
+
+        void istore(int local) {
+            local(ISTORE, local);
+            push(-1);
+        }
+
+        void aload(int local) {
+            local(ALOAD, local);
+            push(1);
+        }
+
+        /**
+         * 没有操作数的指令
+         *
+         * @param opcode 操作码
+         * @param delta  执行后操作数栈高度的变化
+         */
+        void op(int opcode, int delta) {
+            u1(opcode);
+            push(delta);
+        }
+
+        /**
+         * @param argSlots 参数占的槽数，不含接收者
+         */
+        void invokeInterface(String owner, String name, String descriptor, int argSlots, int delta) {
+            u1(INVOKEINTERFACE);
+            u2(classFile.interfaceMethodRef(owner, name, descriptor));
+            u1(argSlots + 1);
+            u1(0);
+            push(delta);
+        }
+
+        private void local(int opcode, int local) {
+            if (local < 4 && opcode != ALOAD) {
+                // iload_0 到 iload_3，istore_0 到 istore_3
+                u1((opcode == ILOAD ? 0x1a : 0x3b) + local);
+            } else if (local < 4) {
+                // aload_0 到 aload_3
+                u1(0x2a + local);
+            } else if (local < 256) {
+                u1(opcode);
+                u1(local);
+            } else {
+                u1(WIDE);
+                u1(opcode);
+                u2(local);
+            }
+        }
+
+        private void push(int delta) {
+            stack += delta;
+            if (stack > maxStack) {
+                maxStack = stack;
+            }
+        }
+
+        private void u1(int value) {
+            if (size == bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        private void u2(int value) {
+            u1(value >>> 8);
+            u1(value);
+        }
+    }
+}
@@ -0,0 +1,328 @@
+package miniplc0java.vm;
+
+import java.io.PrintStream;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+import miniplc0java.error.VerificationError;
+import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.InstructionBuffer;
+import miniplc0java.instruction.Opcode;
+
+/**
+ * 把指令编译成闭包再执行的虚拟机
+ *
+ * 编译时对栈做符号执行，把每个语句（STO、WRT）还原成一棵表达式树，树上的每个节点是一个 lambda，
+ * 操作数作为捕获的常量。运行时只对语句数组循环一遍，表达式在 lambda 里直接求值，不用操作数栈，
+ * JIT 可以把整棵树内联进来。
+ *
+ * 表达式会推迟到要用它的语句才求值，但求值的顺序和解释执行时一样，所以输出和除以 0 的异常出现的位置
+ * 都和 MiniVm 相同。没有通过 Verifier 校验的指令交给 MiniVm 逐条检查着运行。每次 Run 都从空栈开始。
+ */
+public class ClosureVm implements VirtualMachine {
+    /**
+     * 表达式节点，slots 是栈
+     */
+    @FunctionalInterface
+    interface Expr {
+        int eval(int[] slots);
+    }
+
+    /**
+     * 语句节点，out 接收 WRT 的输出
+     */
+    @FunctionalInterface
+    interface Stmt {
+        void run(int[] slots, IntConsumer out);
+    }
+
+    private LongBuffer code;
+    private PrintStream out;
+    private OutputBuffer.FlushPolicy flushPolicy = OutputBuffer.FlushPolicy.BLOCK;
+    // 编译好的语句和需要的栈大小，没有通过校验时为 null
+    private Stmt[] program;
+    private int maxDepth;
+
+    public ClosureVm(List<Instruction> instructions, PrintStream out) {
+        this(InstructionBuffer.of(instructions), out);
+    }
+
+    public ClosureVm(InstructionBuffer instructions, PrintStream out) {
+        this(instructions.asLongBuffer(), out);
+    }
+
+    /**
+     * 校验并编译指令，不会复制
+     *
+     * @param code 从 position 到 limit 的每个元素是一条打包好的指令
+     * @param out
+     */
+    public ClosureVm(LongBuffer code, PrintStream out) {
+        this.code = code.slice();
+        this.out = out;
+        try {
+            this.maxDepth = Verifier.verify(this.code);
+        } catch (VerificationError e) {
+            return;
+        }
+        this.program = new Compiler(maxDepth).compile(this.code);
+    }
+
+    /**
+     * @return 是否通过了校验，编译成了闭包
+     */
+    public boolean isCompiled() {
+        return program != null;
+    }
+
+    @Override
+    public void Run() {
+        if (program == null) {
+            var vm = new MiniVm(code, out);
+            vm.setFlushPolicy(flushPolicy);
+            vm.Run();
+            return;
+        }
+        var output = new OutputBuffer(out, flushPolicy);
+        try {
+            run(output);
+        } finally {
+            output.flush();
+        }
+    }
+
+    @Override
+    public void setFlushPolicy(OutputBuffer.FlushPolicy policy) {
+        this.flushPolicy = policy;
+    }
+
+    /**
+     * 运行编译好的语句，输出交给 out，可以在多个线程里同时运行
+     */
+    void run(IntConsumer out) {
+        var program = this.program;
+        var slots = new int[maxDepth];
+        for (int i = 0; i < program.length; i++) {
+            program[i].run(slots, out);
+        }
+    }
+
+    /**
+     * 符号执行，把指令还原成语句
+     */
+    private static final class Compiler {
+        private static final int CONST = 0;
+        private static final int LOAD = 1;
+        private static final int OTHER = 2;
+        // 表达式树最多这么高，再高就先存进栈上的位置，免得很长的表达式求值时递归太深栈溢出
+        private static final int MAX_TREE_HEIGHT = 32;
+
+        // 栈上每个位置的表达式，kind 是 CONST 或 LOAD 时 value 是常量或偏移
+        private final Expr[] exprs;
+        private final int[] kinds;
+        private final int[] values;
+        // 表达式树的高度
+        private final int[] heights;
+        // 从这个位置到栈顶的值都还不在 slots 里，包括 LOD 压入的副本，下面的都已经求过值
+        private int pending;
+        private int depth;
+
+        private final List<Stmt> stmts = new ArrayList<>();
+
+        Compiler(int maxDepth) {
+            this.exprs = new Expr[maxDepth];
+            this.kinds = new int[maxDepth];
+            this.values = new int[maxDepth];
+            this.heights = new int[maxDepth];
+        }
+
+        Stmt[] compile(LongBuffer code) {
+            int length = code.limit();
+            for (int i = 0; i < length; i++) {
+                long word = code.get(i);
+                int x = InstructionBuffer.operand(word);
+                switch (InstructionBuffer.opcode(word)) {
+                    case Opcode.LIT:
+                        push(constant(x), CONST, x);
+                        break;
+                    case Opcode.LOD:
+                        // 要读的位置和它下面的表达式先求值
+                        flush(x + 1);
+                        push(load(x), LOAD, x);
+                        break;
+                    case Opcode.STO: {
+                        depth--;
+                        var value = exprs[depth];
+                        int kind = kinds[depth];
+                        int v = values[depth];
+                        flush(depth);
+                        stmts.add(store(x, value, kind, v));
+                    }
+                        break;
+                    case Opcode.WRT: {
+                        depth--;
+                        var value = exprs[depth];
+                        flush(depth);
+                        stmts.add((slots, out) -> out.accept(value.eval(slots)));
+                    }
+                        break;
+                    default:
+                        // ADD、SUB、MUL、DIV，校验过不会有别的
+                        binary(InstructionBuffer.opcode(word));
+                        break;
+                }
+            }
+            flush(depth);
+            return stmts.toArray(new Stmt[0]);
+        }
+
+        private void push(Expr expr, int kind, int value) {
+            exprs[depth] = expr;
+            kinds[depth] = kind;
+            values[depth] = value;
+            heights[depth] = 1;
+            if (depth < pending) {
+                pending = depth;
+            }
+            depth++;
+        }
+
+        /**
+         * 按从下往上的顺序给 0 到 limit - 1 里还没求值的位置求值，也就是原来执行的顺序
+         *
+         * 只从 pending 开始，不然每条 LOD、STO 都要从栈底扫一遍，变量多时编译要平方的时间
+         */
+        private void flush(int limit) {
+            for (int s = pending; s < limit; s++) {
+                stmts.add(store(s, exprs[s], kinds[s], values[s]));
+                exprs[s] = load(s);
+                kinds[s] = LOAD;
+                values[s] = s;
+                heights[s] = 1;
+            }
+            if (limit > pending) {
+                pending = limit;
+            }
+        }
+
+        private void binary(int op) {
+            depth--;
+            int r = depth;
+            int l = depth - 1;
+            var left = exprs[l];
+            var right = exprs[r];
+            int lk = kinds[l];
+            int rk = kinds[r];
+            int lv = values[l];
+            int rv = values[r];
+            // 结果放在左边的位置，要等语句求值
+            if (lk == CONST && rk == CONST && !(op == Opcode.DIV && rv == 0)) {
+                int v = fold(op, lv, rv);
+                exprs[l] = constant(v);
+                kinds[l] = CONST;
+                values[l] = v;
+                heights[l] = 1;
+            } else {
+                exprs[l] = combine(op, left, lk, lv, right, rk, rv);
+                kinds[l] = OTHER;
+                heights[l] = Math.max(heights[l], heights[r]) + 1;
+            }
+            if (l < pending) {
+                pending = l;
+            }
+            if (heights[l] > MAX_TREE_HEIGHT) {
+                // 和 LOD 一样，连同下面的位置按顺序求值，之后从 slots 里读
+                flush(l + 1);
+            }
+        }
+
+        private static int fold(int op, int a, int b) {
+            switch (op) {
+                case Opcode.ADD:
+                    return a + b;
+                case Opcode.SUB:
+                    return a - b;
+                case Opcode.MUL:
+                    return a * b;
+                default:
+                    return a / b;
+            }
+        }
+
+        private static Expr constant(int k) {
+            return slots -> k;
+        }
+
+        private static Expr load(int x) {
+            return slots -> slots[x];
+        }
+
+        private static Stmt store(int x, Expr value, int kind, int v) {
+            if (kind == CONST) {
+                return (slots, out) -> slots[x] = v;
+            }
+            if (kind == LOAD) {
+                return (slots, out) -> slots[x] = slots[v];
+            }
+            return (slots, out) -> slots[x] = value.eval(slots);
+        }
+
+        /**
+         * 按操作数的形状挑专门的 lambda，常见的 a op b、e op k、e op a 不用再调一层
+         */
+        private static Expr combine(int op, Expr left, int lk, int a, Expr right, int rk, int b) {
+            if (lk == LOAD && rk == LOAD) {
+                switch (op) {
+                    case Opcode.ADD:
+                        return slots -> slots[a] + slots[b];
+                    case Opcode.SUB:
+                        return slots -> slots[a] - slots[b];
+                    case Opcode.MUL:
+                        return slots -> slots[a] * slots[b];
+                    default:
+                        return slots -> slots[a] / slots[b];
+                }
+            }
+            if (rk == CONST) {
+                switch (op) {
+                    case Opcode.ADD:
+                        return slots -> left.eval(slots) + b;
+                    case Opcode.SUB:
+                        return slots -> left.eval(slots) - b;
+                    case Opcode.MUL:
+                        return slots -> left.eval(slots) * b;
+                    default:
+                        return slots -> left.eval(slots) / b;
+                }
+            }
+            if (rk == LOAD) {
+                switch (op) {
+                    case Opcode.ADD:
+                        return slots -> left.eval(slots) + slots[b];
+                    case Opcode.SUB:
+                        return slots -> left.eval(slots) - slots[b];
+                    case Opcode.MUL:
+                        return slots -> left.eval(slots) * slots[b];
+                    default:
+                        return slots -> left.eval(slots) / slots[b];
+                }
+            }
+            if (lk == CONST && a == 0 && op == Opcode.SUB) {
+                // 取负
+                return slots -> -right.eval(slots);
+            }
+            switch (op) {
+                case Opcode.ADD:
+                    return slots -> left.eval(slots) + right.eval(slots);
+                case Opcode.SUB:
+                    return slots -> left.eval(slots) - right.eval(slots);
+                case Opcode.MUL:
+                    return slots -> left.eval(slots) * right.eval(slots);
+                default:
+                    return slots -> left.eval(slots) / right.eval(slots);
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package miniplc0java.vm;
+
+import java.io.PrintStream;
+import java.nio.LongBuffer;
+import java.util.Locale;
+
+/**
+ * 执行引擎，语义和输出完全一样，只是运行方式不同
+ */
+public enum Engine {
+    /** 逐条解释执行，见 MiniVm */
+    INTERPRETER {
+        @Override
+        public VirtualMachine create(LongBuffer code, PrintStream out) {
+            return new MiniVm(code, out);
+        }
+    },
+    /** 先把指令编译成闭包再执行，见 ClosureVm */
+    CLOSURE {
+        @Override
+        public VirtualMachine create(LongBuffer code, PrintStream out) {
+            return new ClosureVm(code, out);
+        }
+    },
+    /** 先翻译成寄存器指令再解释执行，见 RegisterVm */
+    REGISTER {
+        @Override
+        public VirtualMachine create(LongBuffer code, PrintStream out) {
+            return new RegisterVm(code, out);
+        }
+    },
+    /** 先把指令编译成 JVM 字节码再执行，见 BytecodeVm */
+    BYTECODE {
+        @Override
+        public VirtualMachine create(LongBuffer code, PrintStream out) {
+            return new BytecodeVm(code, out);
+        }
+    };
+
+    /**
+     * @param code 从 position 到 limit 的每个元素是一条打包好的指令
+     * @param out  WRT 的输出
+     */
+    public abstract VirtualMachine create(LongBuffer code, PrintStream out);
+
+    /**
+     * @return 小写的名字，命令行里用
+     */
+    public String getName() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @param name 小写的名字，比如 closure
+     */
+    public static Engine of(String name) {
+        return valueOf(name.toUpperCase(Locale.ROOT));
+    }
+}
@@ -0,0 +1,126 @@
+package miniplc0java.vm;
+
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.LongBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 同时运行很多程序的执行服务，每个任务是一段指令和它的输出，结果是 RunResult
+ *
+ * 任务在有界的线程池里运行，或者每个任务一个虚拟线程（需要 Java 21，更早的版本退回到线程池）。
+ * 用过的 MiniVm 放回池子里，下一个任务接着用它已经分配好的栈，不用每次重新分配和扩大。池子最多放
+ * 和工作线程（虚拟线程时是 CPU 核数）一样多的虚拟机，同时运行的任务更多时，多出来的用完就丢掉。
+ * 同一个 PrintStream 被多个任务同时使用时，输出会交错在一起。
+ */
+public final class ExecutionService implements AutoCloseable {
+    // 栈比这个大的虚拟机不放回池子里，免得一个大程序一直占着内存
+    private static final int MAX_POOLED_STACK = 64 * 1024;
+    private static final LongBuffer EMPTY = LongBuffer.allocate(0);
+
+    private final ExecutorService executor;
+    private final boolean virtualThreads;
+    // 空闲的虚拟机，满了以后还回来的直接丢掉
+    private final ArrayBlockingQueue<MiniVm> idle;
+
+    /**
+     * @param workers 线程池里的线程数
+     */
+    public ExecutionService(int workers) {
+        this(newWorkerPool(workers), false, workers);
+    }
+
+    private ExecutionService(ExecutorService executor, boolean virtualThreads, int pooled) {
+        this.executor = executor;
+        this.virtualThreads = virtualThreads;
+        this.idle = new ArrayBlockingQueue<>(pooled);
+    }
+
+    /**
+     * 每个任务一个虚拟线程，当前的 Java 不支持虚拟线程时用和 CPU 核数一样多的线程
+     */
+    public static ExecutionService withVirtualThreads() {
+        try {
+            // Java 21 才有，编译时的目标版本还没有这个方法
+            var factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return new ExecutionService((ExecutorService) factory.invoke(null), true,
+                    Runtime.getRuntime().availableProcessors());
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            return new ExecutionService(Runtime.getRuntime().availableProcessors());
+        }
+    }
+
+    private static ExecutorService newWorkerPool(int workers) {
+        var count = new AtomicInteger();
+        return Executors.newFixedThreadPool(workers, r -> {
+            var thread = new Thread(r, "miniplc0-worker-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return 任务是不是在虚拟线程里运行
+     */
+    public boolean usesVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * 不限制资源地运行
+     *
+     * @param code 从 position 到 limit 的每个元素是一条打包好的指令，运行完之前不能修改
+     * @param out  WRT 的输出
+     */
+    public CompletableFuture<RunResult> submit(LongBuffer code, PrintStream out) {
+        return submit(code, out, RunLimits.UNLIMITED);
+    }
+
+    /**
+     * @param code   从 position 到 limit 的每个元素是一条打包好的指令，运行完之前不能修改
+     * @param out    WRT 的输出
+     * @param limits 资源限制
+     * @return 运行的结果，程序出错也是正常完成，见 RunResult.getFault()
+     */
+    public CompletableFuture<RunResult> submit(LongBuffer code, PrintStream out, RunLimits limits) {
+        var task = code.slice();
+        return CompletableFuture.supplyAsync(() -> run(task, out, limits), executor);
+    }
+
+    private RunResult run(LongBuffer code, PrintStream out, RunLimits limits) {
+        var vm = idle.poll();
+        if (vm == null) {
+            vm = new MiniVm(code, out);
+        } else {
+            vm.reset(code, out);
+        }
+        var result = vm.Run(limits);
+        if (vm.stackSize() <= MAX_POOLED_STACK) {
+            // 不再引用程序和输出
+            vm.reset(EMPTY, null);
+            idle.offer(vm);
+        }
+        return result;
+    }
+
+    /**
+     * 不再接受新的任务，等已经提交的任务运行完
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                // 继续等
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
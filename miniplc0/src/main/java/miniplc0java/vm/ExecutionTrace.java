@@ -0,0 +1,216 @@
+package miniplc0java.vm;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import miniplc0java.instruction.InstructionBuffer;
+import miniplc0java.instruction.Opcode;
+import miniplc0java.instruction.Operation;
+
+/**
+ * 记录最近执行的 N 条指令，出错以后用来看出错之前发生了什么
+ *
+ * 每条记录是指令的下标、打包好的指令和执行这条指令之前的栈顶（栈空时为 0），存在预先分配好的环形数组里，
+ * 记录时不分配内存也不做 I/O。出错时最后一条记录就是出错的那条指令。用 MiniVm.setTrace 打开。
+ *
+ * write 写出的二进制格式，整数都是小端序：
+ *
+ * <pre>
+ * | 偏移 | 长度 | 内容                                             |
+ * | 0    | 4    | 魔数 "MTRC"                                      |
+ * | 4    | 2    | 版本号，目前是 2                                 |
+ * | 6    | 2    | 保留，为 0                                       |
+ * | 8    | 8    | 一共记录过多少条指令                             |
+ * | 16   | 4    | 后面的记录条数 n                                 |
+ * | 20   | 16n  | 从旧到新的记录：下标、操作码、操作数、栈顶，各 4 字节 |
+ * </pre>
+ */
+public final class ExecutionTrace {
+    /** "MTRC" */
+    public static final int MAGIC = 0x4352544d;
+    // 版本 1 的操作码只有 1 字节，不认识的操作码会被截断成别的指令
+    public static final int VERSION = 2;
+    /** 最多能保留的条数 */
+    public static final int MAX_CAPACITY = 1 << 30;
+
+    private static final int HEADER_SIZE = 20;
+    private static final int RECORD_SIZE = 16;
+    // write 每次最多攒这么多条再写出，整个记录有 16n 字节，n 大时放不进一个数组
+    private static final int WRITE_CHUNK = 4096;
+
+    private final int[] ips;
+    private final long[] words;
+    private final int[] tops;
+    private final int mask;
+    // 一共记录过多少条，下一条记在 count & mask
+    private long count;
+
+    /**
+     * @param capacity 最多保留多少条，向上取到 2 的幂
+     */
+    public ExecutionTrace(int capacity) {
+        if (capacity <= 0 || capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("Invalid trace capacity: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.ips = new int[size];
+        this.words = new long[size];
+        this.tops = new int[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * 第 ip 条指令 word 要执行了，执行之前的栈顶是 top
+     */
+    void record(int ip, long word, int top) {
+        int i = (int) count & mask;
+        ips[i] = ip;
+        words[i] = word;
+        tops[i] = top;
+        count++;
+    }
+
+    /**
+     * @return 最多保留多少条
+     */
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * @return 一共记录过多少条
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return 现在保留着多少条
+     */
+    public int size() {
+        return (int) Math.min(count, mask + 1);
+    }
+
+    /**
+     * @param index 0 是保留着的最旧的一条，size() - 1 是最新的一条
+     */
+    public int getIp(int index) {
+        return ips[slot(index)];
+    }
+
+    public Operation getOperation(int index) {
+        return InstructionBuffer.operation(InstructionBuffer.opcode(words[slot(index)]));
+    }
+
+    public int getOperand(int index) {
+        return InstructionBuffer.operand(words[slot(index)]);
+    }
+
+    /**
+     * @return 执行这条指令之前的栈顶，栈空时为 0
+     */
+    public int getTop(int index) {
+        return tops[slot(index)];
+    }
+
+    private int slot(int index) {
+        int size = size();
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + size);
+        }
+        return (int) (count - size + index) & mask;
+    }
+
+    public void clear() {
+        count = 0;
+    }
+
+    /**
+     * 按上面的二进制格式写出保留着的记录，分块写出，保留多少条都可以
+     */
+    public void write(OutputStream out) throws IOException {
+        int size = size();
+        var buffer = ByteBuffer.allocate(HEADER_SIZE + Math.min(size, WRITE_CHUNK) * RECORD_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC);
+        buffer.putShort((short) VERSION);
+        buffer.putShort((short) 0);
+        buffer.putLong(count);
+        buffer.putInt(size);
+        for (int index = 0; index < size; index++) {
+            if (buffer.remaining() < RECORD_SIZE) {
+                out.write(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            }
+            int i = (int) (count - size + index) & mask;
+            buffer.putInt(ips[i]);
+            buffer.putInt(InstructionBuffer.opcode(words[i]));
+            buffer.putInt(InstructionBuffer.operand(words[i]));
+            buffer.putInt(tops[i]);
+        }
+        out.write(buffer.array(), 0, buffer.position());
+        out.flush();
+    }
+
+    /**
+     * 把 write 写出的二进制记录转成文本，每条一行，比如“#41 12: DIV top=0”
+     *
+     * @param in  二进制记录
+     * @param out 文本输出
+     * @throws IOException 读取出错或者格式不对
+     */
+    public static void decode(InputStream in, PrintStream out) throws IOException {
+        var header = ByteBuffer.wrap(readFully(in, HEADER_SIZE)).order(ByteOrder.LITTLE_ENDIAN);
+        if (header.getInt() != MAGIC) {
+            throw new IOException("not an execution trace");
+        }
+        int version = header.getShort();
+        if (version != VERSION) {
+            throw new IOException("unsupported execution trace version " + version);
+        }
+        header.getShort();
+        long count = header.getLong();
+        int size = header.getInt();
+        if (size < 0 || size > count) {
+            throw new IOException("corrupted execution trace");
+        }
+        out.printf("%d instructions executed, last %d:%n", count, size);
+        var record = ByteBuffer.allocate(RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        for (long sequence = count - size; sequence < count; sequence++) {
+            record.clear();
+            record.put(readFully(in, RECORD_SIZE));
+            record.flip();
+            int ip = record.getInt();
+            int opcode = record.getInt();
+            var operation = InstructionBuffer.operation(opcode);
+            int operand = record.getInt();
+            int top = record.getInt();
+            var line = new StringBuilder().append('#').append(sequence).append(' ').append(ip).append(": ")
+                    .append(operation);
+            if (operation == Operation.LIT || operation == Operation.LOD || operation == Operation.STO) {
+                line.append(' ').append(operand);
+            } else if (operation == Operation.ILL && opcode != Opcode.ILL) {
+                // 不认识的操作码，出错时要看的往往就是它
+                line.append(" opcode=").append(opcode);
+            }
+            line.append(" top=").append(top);
+            out.println(line);
+        }
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        var bytes = in.readNBytes(length);
+        if (bytes.length < length) {
+            throw new EOFException("truncated execution trace");
+        }
+        return bytes;
+    }
+}
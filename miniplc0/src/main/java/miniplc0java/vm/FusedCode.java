@@ -0,0 +1,208 @@
+package miniplc0java.vm;
+
+import java.nio.LongBuffer;
+
+import miniplc0java.instruction.InstructionBuffer;
+import miniplc0java.instruction.Opcode;
+
+/**
+ * 把通过校验的指令里常见的指令序列合并成超级指令
+ *
+ * 只在虚拟机内部使用，指令列表的文本格式和 Operation 都不变。序列是按 Analyser 生成的代码统计出来的：
+ *
+ * <ul>
+ * <li>LIT 0; 表达式; SUB 是取负，去掉 LIT 0，SUB 换成 NEG</li>
+ * <li>LOD a; LOD b; op 换成 op_LOD_LOD a, b</li>
+ * <li>LOD b; op; STO x 换成 op_LOD_STO b, x</li>
+ * <li>LOD b; op 换成 op_LOD b，LIT k; op 换成 op_LIT k</li>
+ * <li>op; STO x 换成 op_STO x</li>
+ * </ul>
+ *
+ * 其中 op 是 ADD、SUB、MUL、DIV 之一。WRT 的开销主要在输出上，合并没有意义。
+ */
+final class FusedCode {
+    // 和 Opcode 里的基本操作码不重叠，同一组里按 ADD、SUB、MUL、DIV 的顺序排
+    static final int NEG = 16;
+    static final int ADD_LIT = 17;
+    static final int SUB_LIT = 18;
+    static final int MUL_LIT = 19;
+    static final int DIV_LIT = 20;
+    static final int ADD_LOD = 21;
+    static final int SUB_LOD = 22;
+    static final int MUL_LOD = 23;
+    static final int DIV_LOD = 24;
+    static final int ADD_LOD_LOD = 25;
+    static final int SUB_LOD_LOD = 26;
+    static final int MUL_LOD_LOD = 27;
+    static final int DIV_LOD_LOD = 28;
+    static final int ADD_LOD_STO = 29;
+    static final int SUB_LOD_STO = 30;
+    static final int MUL_LOD_STO = 31;
+    static final int DIV_LOD_STO = 32;
+    static final int ADD_STO = 33;
+    static final int SUB_STO = 34;
+    static final int MUL_STO = 35;
+    static final int DIV_STO = 36;
+
+    // 第 i 条指令的操作码和两个操作数，没有用到的操作数为 0
+    final int[] ops;
+    final int[] a;
+    final int[] b;
+    // 执行完第 i 条指令时，原来的指令一共执行了多少条
+    final int[] ends;
+    final int length;
+
+    private FusedCode(int[] ops, int[] a, int[] b, int[] ends, int length) {
+        this.ops = ops;
+        this.a = a;
+        this.b = b;
+        this.ends = ends;
+        this.length = length;
+    }
+
+    /**
+     * @param code         通过了 Verifier 校验的指令
+     * @param initialDepth 开始运行时栈里已经有的元素个数
+     * @param maxDepth     Verifier 算出来的最大深度
+     */
+    static FusedCode fuse(LongBuffer code, int initialDepth, int maxDepth) {
+        int base = code.position();
+        int length = code.limit() - base;
+        var ops = new int[length];
+        var xs = new int[length];
+        for (int i = 0; i < length; i++) {
+            long word = code.get(base + i);
+            ops[i] = InstructionBuffer.opcode(word);
+            xs[i] = InstructionBuffer.operand(word);
+        }
+        foldNegation(ops, xs, initialDepth, maxDepth);
+
+        var fusedOps = new int[length];
+        var fusedA = new int[length];
+        var fusedB = new int[length];
+        var ends = new int[length];
+        int n = 0;
+        int i = 0;
+        while (i < length) {
+            int op = ops[i];
+            if (op == Opcode.ILL) {
+                // 取负时去掉的 LIT 0
+                i++;
+                continue;
+            }
+            // 跳过被去掉的指令，找后面两条
+            int j = next(ops, i + 1, length);
+            int k = next(ops, j + 1, length);
+            int opJ = j < length ? ops[j] : Opcode.ILL;
+            int opK = k < length ? ops[k] : Opcode.ILL;
+            if (op == Opcode.LOD && opJ == Opcode.LOD && isArithmetic(opK)) {
+                fusedOps[n] = ADD_LOD_LOD + (opK - Opcode.ADD);
+                fusedA[n] = xs[i];
+                fusedB[n] = xs[j];
+                i = k + 1;
+            } else if (op == Opcode.LOD && isArithmetic(opJ) && opK == Opcode.STO) {
+                fusedOps[n] = ADD_LOD_STO + (opJ - Opcode.ADD);
+                fusedA[n] = xs[i];
+                fusedB[n] = xs[k];
+                i = k + 1;
+            } else if (op == Opcode.LOD && isArithmetic(opJ)) {
+                fusedOps[n] = ADD_LOD + (opJ - Opcode.ADD);
+                fusedA[n] = xs[i];
+                i = j + 1;
+            } else if (op == Opcode.LIT && isArithmetic(opJ)) {
+                fusedOps[n] = ADD_LIT + (opJ - Opcode.ADD);
+                fusedA[n] = xs[i];
+                i = j + 1;
+            } else if (isArithmetic(op) && opJ == Opcode.STO) {
+                fusedOps[n] = ADD_STO + (op - Opcode.ADD);
+                fusedA[n] = xs[j];
+                i = j + 1;
+            } else {
+                fusedOps[n] = op;
+                fusedA[n] = xs[i];
+                i++;
+            }
+            ends[n] = i;
+            n++;
+        }
+        return new FusedCode(fusedOps, fusedA, fusedB, ends, n);
+    }
+
+    /**
+     * 找到 LIT 0; 表达式; SUB 形式的取负，把 LIT 0 标成 ILL，SUB 换成 NEG
+     *
+     * 去掉 LIT 0 以后表达式用到的栈位置都会往下挪一格，所以表达式里的 LOD/STO 只要访问到了 LIT 0
+     * 所在的位置或者更高的位置就不能合并。为此对每个栈位置记录它在栈顶期间 LOD/STO 访问到的最大偏移，
+     * 出栈时合并到下面一格。
+     */
+    private static void foldNegation(int[] ops, int[] xs, int initialDepth, int maxDepth) {
+        // 栈上每个位置是由哪条 LIT 0 压入的，不是 LIT 0 则为 -1
+        var zero = new int[maxDepth];
+        var maxRef = new int[maxDepth];
+        for (int s = 0; s < initialDepth; s++) {
+            zero[s] = -1;
+            maxRef[s] = -1;
+        }
+        int depth = initialDepth;
+        for (int i = 0; i < ops.length; i++) {
+            int x = xs[i];
+            switch (ops[i]) {
+                case Opcode.LIT:
+                    zero[depth] = x == 0 ? i : -1;
+                    maxRef[depth] = -1;
+                    depth++;
+                    break;
+                case Opcode.LOD:
+                    if (depth > 0) {
+                        maxRef[depth - 1] = Math.max(maxRef[depth - 1], x);
+                    }
+                    zero[depth] = -1;
+                    maxRef[depth] = -1;
+                    depth++;
+                    break;
+                case Opcode.STO:
+                    maxRef[depth - 1] = Math.max(maxRef[depth - 1], x);
+                    pop(maxRef, depth);
+                    depth--;
+                    zero[x] = -1;
+                    break;
+                case Opcode.WRT:
+                    pop(maxRef, depth);
+                    depth--;
+                    break;
+                default: {
+                    // ADD、SUB、MUL、DIV，结果放在 depth - 2
+                    pop(maxRef, depth);
+                    depth--;
+                    int s = depth - 1;
+                    if (ops[i] == Opcode.SUB && zero[s] >= 0 && maxRef[s] < s) {
+                        ops[zero[s]] = Opcode.ILL;
+                        ops[i] = NEG;
+                    }
+                    zero[s] = -1;
+                }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * 弹出栈顶，把它记录的最大偏移合并到下面一格
+     */
+    private static void pop(int[] maxRef, int depth) {
+        if (depth >= 2) {
+            maxRef[depth - 2] = Math.max(maxRef[depth - 2], maxRef[depth - 1]);
+        }
+    }
+
+    private static int next(int[] ops, int i, int length) {
+        while (i < length && ops[i] == Opcode.ILL) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isArithmetic(int op) {
+        return op >= Opcode.ADD && op <= Opcode.DIV;
+    }
+}
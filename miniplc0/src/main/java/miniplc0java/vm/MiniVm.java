@@ -1,13 +1,20 @@
 package miniplc0java.vm;
 
 import java.io.PrintStream;
-import java.util.ArrayList;
+import java.nio.LongBuffer;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Objects;
 
+import miniplc0java.error.VerificationError;
 import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.InstructionBuffer;
+import miniplc0java.instruction.Opcode;
 
-public class MiniVm {
-    private List<Instruction> instructions;
+public class MiniVm implements VirtualMachine {
+    // 打包好的指令，见 InstructionBuffer，可能直接指向 mmap 的目标文件
+    private LongBuffer code;
+    private int codeLength;
     private PrintStream out;
 
     /**
@@ -15,92 +22,542 @@ public class MiniVm {
      * @param out
      */
     public MiniVm(List<Instruction> instructions, PrintStream out) {
-        this.instructions = instructions;
-        this.out = out;
+        this(InstructionBuffer.of(instructions), out);
     }
 
     public MiniVm(List<Instruction> instructions) {
-        this.instructions = instructions;
-        this.out = System.out;
+        this(instructions, System.out);
+    }
+
+    /**
+     * 直接运行紧凑形式的指令
+     * 
+     * @param instructions
+     * @param out
+     */
+    public MiniVm(InstructionBuffer instructions, PrintStream out) {
+        this(instructions.asLongBuffer(), out);
     }
-    // 模拟的栈
-    private ArrayList<Integer> stack = new ArrayList<>();
+
+    public MiniVm(InstructionBuffer instructions) {
+        this(instructions, System.out);
+    }
+
+    /**
+     * 运行打包好的指令，比如 ObjectFile.instructions()，不会复制
+     * 
+     * @param code 从 position 到 limit 的每个元素是一条打包好的指令。校验和合并的结果会留给下一次运行，
+     *             所以运行过以后不能再修改，要换指令用新的 MiniVm
+     * @param out
+     */
+    public MiniVm(LongBuffer code, PrintStream out) {
+        this.code = code.slice();
+        this.codeLength = this.code.limit();
+        this.out = out;
+    }
+
+    /**
+     * 用别的 MiniVm 对同一段指令做好的校验和合并结果，见 getPrepared()
+     */
+    MiniVm(LongBuffer code, PrintStream out, Prepared prepared) {
+        this(code, out);
+        this.prepared = prepared;
+    }
+
+    /**
+     * 一段指令校验和合并超级指令的结果，只和指令、运行的长度和开始时的栈深度有关，可以在多个 MiniVm 之间共用
+     */
+    static final class Prepared {
+        private final int length;
+        private final int initialDepth;
+        // 没有通过校验时为 null
+        private final FusedCode fused;
+        private final int maxDepth;
+
+        private Prepared(int length, int initialDepth, FusedCode fused, int maxDepth) {
+            this.length = length;
+            this.initialDepth = initialDepth;
+            this.fused = fused;
+            this.maxDepth = maxDepth;
+        }
+    }
+
+    /**
+     * 换成另一段指令和输出重新使用，已经分配的栈留着，从空栈开始运行，见 ExecutionService
+     */
+    void reset(LongBuffer code, PrintStream out) {
+        this.code = code.slice();
+        this.codeLength = this.code.limit();
+        this.out = out;
+        this.sp = 0;
+        this.ip = 0;
+        this.verified = false;
+        this.prepared = null;
+    }
+
+    /**
+     * @return 已经分配的栈的大小
+     */
+    int stackSize() {
+        return stack.length;
+    }
+
+    // 模拟的栈，stack[0] 到 stack[sp - 1] 有效
+    private int[] stack = new int[INITIAL_STACK_SIZE];
+    private int sp = 0;
     // 指令指针
     private int ip;
 
+    private static final int INITIAL_STACK_SIZE = 64;
+    // 没有时间限制
+    private static final long NO_DEADLINE = Long.MIN_VALUE;
+
+    // 上一次 Run 是否通过了校验，走的快速路径
+    private boolean verified;
+    // 上一次校验和合并的结果，反复运行同一段指令时不用每次重新做，换指令时清掉
+    private Prepared prepared;
+    private OutputBuffer.FlushPolicy flushPolicy = OutputBuffer.FlushPolicy.BLOCK;
+    // 不为 null 时 Run() 每条指令单独计时
+    private Profiler profiler;
+    // 不为 null 时记录执行过的指令
+    private ExecutionTrace trace;
+
+    @Override
     public void Run() {
-        ip = 0;
-        while (ip < instructions.size()) {
-            // 获取位于ip的指令
-            var inst = instructions.get(ip);
-            // 运行该指令
-            RunStep(inst);
-            // ip指向下一条指令
-            ip++;
+        // WRT 的输出先攒起来，运行结束或者出错时再写出去
+        var output = new OutputBuffer(out, flushPolicy);
+        try {
+            if (profiler != null) {
+                verified = false;
+                runProfiled(code, output);
+            } else {
+                execute(code, output, NO_DEADLINE, Integer.MAX_VALUE);
+            }
+        } finally {
+            output.flush();
         }
     }
 
-    private Integer pop() {
-        var val = this.stack.get(this.stack.size() - 1);
-        this.stack.remove(this.stack.size() - 1);
-        return val;
+    /**
+     * 在限制之内运行，超出限制时停下来，出错也不抛异常，都放在结果里
+     *
+     * 执行的指令数和栈的深度在运行前就算好，只运行限制之内的那一段指令；输出和时间每执行
+     * limits.getCheckInterval() 条指令检查一次，快速路径的热循环里没有额外的检查。
+     */
+    public RunResult Run(RunLimits limits) {
+        long start = System.nanoTime();
+        long deadline = NO_DEADLINE;
+        if (limits.getTimeout() != null) {
+            deadline = start + limits.getTimeout().toNanos();
+        }
+        var status = RunResult.Status.COMPLETED;
+        int stop = codeLength;
+        if (limits.getMaxInstructions() < stop) {
+            stop = (int) limits.getMaxInstructions();
+            status = RunResult.Status.INSTRUCTION_LIMIT;
+        }
+        int overflow = Verifier.firstOverflow(code, sp, limits.getMaxStackDepth());
+        if (overflow >= 0 && overflow < stop) {
+            stop = overflow;
+            status = RunResult.Status.STACK_LIMIT;
+        }
+        var output = new OutputBuffer(out, flushPolicy, OutputBuffer.DEFAULT_CAPACITY, limits.getMaxOutputBytes());
+        Throwable fault = null;
+        try {
+            try {
+                var stopped = execute(code.duplicate().limit(stop), output, deadline, limits.getCheckInterval());
+                if (stopped != RunResult.Status.COMPLETED) {
+                    status = stopped;
+                }
+            } finally {
+                output.flush();
+            }
+        } catch (RuntimeException | Error e) {
+            status = RunResult.Status.FAULT;
+            fault = e;
+        }
+        return new RunResult(status, ip, output.getBytesWritten(), System.nanoTime() - start, fault);
     }
 
-    private void push(Integer i) {
-        this.stack.add(i);
+    /**
+     * 先校验，通过了就走没有检查的快速路径，否则按原来的方式边运行边检查，要记录执行过程时也边运行边检查
+     *
+     * @return COMPLETED，或者输出、时间超出限制时的状态
+     */
+    private RunResult.Status execute(LongBuffer code, OutputBuffer output, long deadline, int interval) {
+        if (trace != null) {
+            verified = false;
+            return runChecked(code, 0, code.limit(), output, deadline, interval);
+        }
+        var prepared = prepare(code);
+        if (prepared.fused == null) {
+            verified = false;
+            return runChecked(code, 0, code.limit(), output, deadline, interval);
+        }
+        verified = true;
+        return runVerified(prepared, output, deadline, interval);
     }
 
-    private void RunStep(Instruction inst) {
-        switch (inst.getOpt()) {
-            case ADD: {
-                var a = pop();
-                var b = pop();
-                push(a + b);
-            }
-                break;
-            case DIV: {
-                var b = pop();
-                var a = pop();
-                push(a / b);
-            }
-                break;
-            case ILL: {
-                throw new Error("Illegal instruction");
-            }
-            case LIT: {
-                push(inst.getX());
-            }
-                break;
-            case LOD: {
-                var x = stack.get(inst.getX());
-                push(x);
-            }
-                break;
-            case MUL: {
-                var b = pop();
-                var a = pop();
-                push(a * b);
-            }
-                break;
-            case STO: {
-                var x = pop();
-                stack.set(inst.getX(), x);
+    /**
+     * @return code 的校验和合并结果，和上一次的长度、开始时的栈深度都一样时直接用上一次的
+     */
+    private Prepared prepare(LongBuffer code) {
+        var prepared = this.prepared;
+        if (prepared != null && prepared.length == code.limit() && prepared.initialDepth == sp) {
+            return prepared;
+        }
+        try {
+            int maxDepth = Verifier.verify(code, sp);
+            prepared = new Prepared(code.limit(), sp, FusedCode.fuse(code, sp, maxDepth), maxDepth);
+        } catch (VerificationError e) {
+            prepared = new Prepared(code.limit(), sp, null, 0);
+        }
+        this.prepared = prepared;
+        return prepared;
+    }
+
+    /**
+     * @return 最近一次校验和合并的结果，还没有运行过时为 null
+     */
+    Prepared getPrepared() {
+        return prepared;
+    }
+
+    @Override
+    public void setFlushPolicy(OutputBuffer.FlushPolicy policy) {
+        this.flushPolicy = policy;
+    }
+
+    /**
+     * 之后的 Run() 把每条指令的执行次数和时间记到 profiler 里，为 null 时关掉
+     */
+    public void setProfiler(Profiler profiler) {
+        this.profiler = profiler;
+    }
+
+    /**
+     * 之后的运行把执行的每条指令记到 trace 里，为 null 时关掉
+     *
+     * 打开以后走边运行边检查的路径，不合并超级指令，记录里的下标和原来的指令一一对应。
+     */
+    public void setTrace(ExecutionTrace trace) {
+        this.trace = trace;
+    }
+
+    /**
+     * @return 上一次 Run 是否通过了 Verifier 的校验
+     */
+    public boolean isVerified() {
+        return verified;
+    }
+
+    /**
+     * 运行通过校验、合并成超级指令的指令，栈的大小正好是最大深度，不做下溢和越界检查
+     *
+     * 每执行 interval 条合并后的指令检查一次输出和时间，没有限制时 interval 是 Integer.MAX_VALUE，只有一段
+     */
+    private RunResult.Status runVerified(Prepared prepared, OutputBuffer output, long deadline, int interval) {
+        if (stack.length < prepared.maxDepth) {
+            stack = Arrays.copyOf(stack, prepared.maxDepth);
+        }
+        var fused = prepared.fused;
+        var ops = fused.ops;
+        var a = fused.a;
+        var b = fused.b;
+        int length = fused.length;
+        var stack = this.stack;
+        int sp = this.sp;
+        int ip = 0;
+        try {
+            while (ip < length) {
+                int end = length - ip > interval ? ip + interval : length;
+                while (ip < end) {
+                    switch (ops[ip]) {
+                        case Opcode.LIT:
+                            stack[sp++] = a[ip];
+                            break;
+                        case Opcode.LOD:
+                            stack[sp] = stack[a[ip]];
+                            sp++;
+                            break;
+                        case Opcode.STO:
+                            sp--;
+                            stack[a[ip]] = stack[sp];
+                            break;
+                        case Opcode.ADD:
+                            sp--;
+                            stack[sp - 1] = stack[sp - 1] + stack[sp];
+                            break;
+                        case Opcode.SUB:
+                            sp--;
+                            stack[sp - 1] = stack[sp - 1] - stack[sp];
+                            break;
+                        case Opcode.MUL:
+                            sp--;
+                            stack[sp - 1] = stack[sp - 1] * stack[sp];
+                            break;
+                        case Opcode.DIV:
+                            sp--;
+                            stack[sp - 1] = stack[sp - 1] / stack[sp];
+                            break;
+                        case Opcode.WRT:
+                            sp--;
+                            output.accept(stack[sp]);
+                            break;
+                        case FusedCode.NEG:
+                            stack[sp - 1] = -stack[sp - 1];
+                            break;
+                        case FusedCode.ADD_LIT:
+                            stack[sp - 1] = stack[sp - 1] + a[ip];
+                            break;
+                        case FusedCode.SUB_LIT:
+                            stack[sp - 1] = stack[sp - 1] - a[ip];
+                            break;
+                        case FusedCode.MUL_LIT:
+                            stack[sp - 1] = stack[sp - 1] * a[ip];
+                            break;
+                        case FusedCode.DIV_LIT:
+                            stack[sp - 1] = stack[sp - 1] / a[ip];
+                            break;
+                        case FusedCode.ADD_LOD:
+                            stack[sp - 1] = stack[sp - 1] + stack[a[ip]];
+                            break;
+                        case FusedCode.SUB_LOD:
+                            stack[sp - 1] = stack[sp - 1] - stack[a[ip]];
+                            break;
+                        case FusedCode.MUL_LOD:
+                            stack[sp - 1] = stack[sp - 1] * stack[a[ip]];
+                            break;
+                        case FusedCode.DIV_LOD:
+                            stack[sp - 1] = stack[sp - 1] / stack[a[ip]];
+                            break;
+                        case FusedCode.ADD_LOD_LOD:
+                            // b 可能正好是刚压入的 a
+                            stack[sp] = stack[a[ip]];
+                            stack[sp] = stack[sp] + stack[b[ip]];
+                            sp++;
+                            break;
+                        case FusedCode.SUB_LOD_LOD:
+                            // b 可能正好是刚压入的 a
+                            stack[sp] = stack[a[ip]];
+                            stack[sp] = stack[sp] - stack[b[ip]];
+                            sp++;
+                            break;
+                        case FusedCode.MUL_LOD_LOD:
+                            // b 可能正好是刚压入的 a
+                            stack[sp] = stack[a[ip]];
+                            stack[sp] = stack[sp] * stack[b[ip]];
+                            sp++;
+                            break;
+                        case FusedCode.DIV_LOD_LOD:
+                            // b 可能正好是刚压入的 a
+                            stack[sp] = stack[a[ip]];
+                            stack[sp] = stack[sp] / stack[b[ip]];
+                            sp++;
+                            break;
+                        case FusedCode.ADD_LOD_STO:
+                            sp--;
+                            stack[b[ip]] = stack[sp] + stack[a[ip]];
+                            break;
+                        case FusedCode.SUB_LOD_STO:
+                            sp--;
+                            stack[b[ip]] = stack[sp] - stack[a[ip]];
+                            break;
+                        case FusedCode.MUL_LOD_STO:
+                            sp--;
+                            stack[b[ip]] = stack[sp] * stack[a[ip]];
+                            break;
+                        case FusedCode.DIV_LOD_STO:
+                            sp--;
+                            stack[b[ip]] = stack[sp] / stack[a[ip]];
+                            break;
+                        case FusedCode.ADD_STO:
+                            sp -= 2;
+                            stack[a[ip]] = stack[sp] + stack[sp + 1];
+                            break;
+                        case FusedCode.SUB_STO:
+                            sp -= 2;
+                            stack[a[ip]] = stack[sp] - stack[sp + 1];
+                            break;
+                        case FusedCode.MUL_STO:
+                            sp -= 2;
+                            stack[a[ip]] = stack[sp] * stack[sp + 1];
+                            break;
+                        case FusedCode.DIV_STO:
+                            sp -= 2;
+                            stack[a[ip]] = stack[sp] / stack[sp + 1];
+                            break;
+                        default:
+                            // 校验过不会出现
+                            throw new Error("Illegal instruction");
+                    }
+                    ip++;
+                }
+                var stopped = checkLimits(output, ip < length ? deadline : NO_DEADLINE);
+                if (stopped != null) {
+                    return stopped;
+                }
             }
-                break;
-            case SUB: {
-                var b = pop();
-                var a = pop();
-                push(a - b);
+            return RunResult.Status.COMPLETED;
+        } finally {
+            this.sp = sp;
+            // 换算成原来的指令条数
+            this.ip = ip == 0 ? 0 : fused.ends[ip - 1];
+        }
+    }
+
+    /**
+     * 运行没有通过校验的指令，每条指令都检查，出错时的异常和原来一样
+     */
+    private RunResult.Status runChecked(LongBuffer code, int from, int length, OutputBuffer output, long deadline,
+            int interval) {
+        // 热循环里只用局部变量
+        var stack = this.stack;
+        var trace = this.trace;
+        int sp = this.sp;
+        int ip = from;
+        try {
+            while (ip < length) {
+                int end = length - ip > interval ? ip + interval : length;
+                while (ip < end) {
+                    // 获取位于ip的指令
+                    long word = code.get(ip);
+                    if (trace != null) {
+                        trace.record(ip, word, sp > 0 ? stack[sp - 1] : 0);
+                    }
+                    int x = InstructionBuffer.operand(word);
+                    // 运行该指令
+                    switch (InstructionBuffer.opcode(word)) {
+                        case Opcode.ADD: {
+                            if (sp < 2) {
+                                throw underflow();
+                            }
+                            sp--;
+                            stack[sp - 1] = stack[sp - 1] + stack[sp];
+                        }
+                            break;
+                        case Opcode.DIV: {
+                            if (sp < 2) {
+                                throw underflow();
+                            }
+                            sp--;
+                            stack[sp - 1] = stack[sp - 1] / stack[sp];
+                        }
+                            break;
+                        case Opcode.LIT: {
+                            if (sp == stack.length) {
+                                stack = grow();
+                            }
+                            stack[sp++] = x;
+                        }
+                            break;
+                        case Opcode.LOD: {
+                            // 和 ArrayList.get 一样的检查和异常
+                            Objects.checkIndex(x, sp);
+                            if (sp == stack.length) {
+                                stack = grow();
+                            }
+                            stack[sp] = stack[x];
+                            sp++;
+                        }
+                            break;
+                        case Opcode.MUL: {
+                            if (sp < 2) {
+                                throw underflow();
+                            }
+                            sp--;
+                            stack[sp - 1] = stack[sp - 1] * stack[sp];
+                        }
+                            break;
+                        case Opcode.STO: {
+                            if (sp < 1) {
+                                throw underflow();
+                            }
+                            sp--;
+                            Objects.checkIndex(x, sp);
+                            stack[x] = stack[sp];
+                        }
+                            break;
+                        case Opcode.SUB: {
+                            if (sp < 2) {
+                                throw underflow();
+                            }
+                            sp--;
+                            stack[sp - 1] = stack[sp - 1] - stack[sp];
+                        }
+                            break;
+                        case Opcode.WRT: {
+                            if (sp < 1) {
+                                throw underflow();
+                            }
+                            sp--;
+                            output.accept(stack[sp]);
+                        }
+                            break;
+                        default: {
+                            // ILL 和不认识的操作码
+                            throw new Error("Illegal instruction");
+                        }
+                    }
+                    // ip指向下一条指令
+                    ip++;
+                }
+                var stopped = checkLimits(output, ip < length ? deadline : NO_DEADLINE);
+                if (stopped != null) {
+                    return stopped;
+                }
             }
-                break;
-            case WRT: {
-                var b = pop();
-                out.printf("%d\n", b);
+            return RunResult.Status.COMPLETED;
+        } finally {
+            this.sp = sp;
+            this.ip = ip;
+        }
+    }
+
+    /**
+     * 一条一条地边检查边运行，分别计时
+     */
+    private void runProfiled(LongBuffer code, OutputBuffer output) {
+        var profiler = this.profiler;
+        int length = code.limit();
+        profiler.start(length);
+        for (int i = 0; i < length; i++) {
+            long start = System.nanoTime();
+            try {
+                runChecked(code, i, i + 1, output, NO_DEADLINE, Integer.MAX_VALUE);
+            } finally {
+                profiler.record(i, System.nanoTime() - start);
             }
-                break;
-            default:
-                break;
+        }
+    }
 
+    /**
+     * 每执行一段指令检查一次
+     *
+     * @return 超出限制时停下来的状态，没有超出时为 null
+     */
+    private static RunResult.Status checkLimits(OutputBuffer output, long deadline) {
+        if (output.isOverLimit()) {
+            return RunResult.Status.OUTPUT_LIMIT;
         }
+        if (deadline != NO_DEADLINE && System.nanoTime() - deadline >= 0) {
+            return RunResult.Status.DEADLINE;
+        }
+        return null;
+    }
+
+    /**
+     * 栈空了还要弹栈，异常和原来用 ArrayList 时一样
+     */
+    private static IndexOutOfBoundsException underflow() {
+        return new IndexOutOfBoundsException("Index -1 out of bounds for length 0");
+    }
+
+    /**
+     * 栈满了，扩大一倍
+     */
+    private int[] grow() {
+        stack = Arrays.copyOf(stack, stack.length * 2);
+        return stack;
     }
 }
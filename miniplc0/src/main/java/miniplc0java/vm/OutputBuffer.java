@@ -0,0 +1,134 @@
+package miniplc0java.vm;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+import miniplc0java.util.IntFormat;
+
+/**
+ * WRT 的输出缓冲，把数字直接写成 ASCII 攒在字节数组里，和 printf("%d\n") 的输出逐字节相同
+ *
+ * 虚拟机在运行结束或者出错时调用 flush，缓冲区满了也会写出去。交互使用时可以改成每个 WRT 都写出去。
+ */
+public final class OutputBuffer implements IntConsumer {
+    /**
+     * 什么时候把缓冲的输出写出去
+     */
+    public enum FlushPolicy {
+        /** 攒满一块或者运行结束时 */
+        BLOCK,
+        /** 每个 WRT 之后，交互使用 */
+        LINE
+    }
+
+    /** 默认最多攒多少字节 */
+    public static final int DEFAULT_CAPACITY = 64 * 1024;
+    private static final int INITIAL_SIZE = 256;
+
+    private final OutputStream out;
+    private final FlushPolicy policy;
+    private final int capacity;
+    // 从小的开始按需扩大，只运行一下的小程序不用分配整块
+    private byte[] buffer;
+    private int size;
+    // 一共输出了多少字节，超出 maxBytes 以后 maxBytes 变成 -1，之后的输出都丢掉
+    private long written;
+    private long maxBytes;
+
+    public OutputBuffer(OutputStream out) {
+        this(out, FlushPolicy.BLOCK);
+    }
+
+    public OutputBuffer(OutputStream out, FlushPolicy policy) {
+        this(out, policy, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param out      输出
+     * @param policy   什么时候写出去
+     * @param capacity 最多攒多少字节
+     */
+    public OutputBuffer(OutputStream out, FlushPolicy policy, int capacity) {
+        this(out, policy, capacity, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param out      输出
+     * @param policy   什么时候写出去
+     * @param capacity 最多攒多少字节
+     * @param maxBytes 一共最多输出多少字节，超出的那一行和之后的输出都丢掉
+     */
+    public OutputBuffer(OutputStream out, FlushPolicy policy, int capacity, long maxBytes) {
+        this.out = out;
+        this.policy = policy;
+        this.capacity = Math.max(capacity, IntFormat.MAX_LENGTH + 1);
+        this.buffer = new byte[Math.min(INITIAL_SIZE, this.capacity)];
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * 输出一个整数和换行
+     */
+    @Override
+    public void accept(int value) {
+        if (size + IntFormat.MAX_LENGTH + 1 > buffer.length) {
+            if (buffer.length < capacity) {
+                buffer = Arrays.copyOf(buffer, Math.min(buffer.length * 2, capacity));
+            } else {
+                flushBuffer();
+            }
+        }
+        int end = IntFormat.write(buffer, size, value);
+        buffer[end++] = '\n';
+        if (written + (end - size) > maxBytes) {
+            maxBytes = -1;
+            return;
+        }
+        written += end - size;
+        size = end;
+        if (policy == FlushPolicy.LINE) {
+            flush();
+        }
+    }
+
+    /**
+     * @return 有没有输出因为超出 maxBytes 被丢掉
+     */
+    public boolean isOverLimit() {
+        return maxBytes < 0;
+    }
+
+    /**
+     * @return 一共输出了多少字节，不含被丢掉的
+     */
+    public long getBytesWritten() {
+        return written;
+    }
+
+    /**
+     * 把缓冲的输出写出去并 flush
+     */
+    public void flush() {
+        flushBuffer();
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void flushBuffer() {
+        if (size == 0) {
+            return;
+        }
+        try {
+            out.write(buffer, 0, size);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        size = 0;
+    }
+}
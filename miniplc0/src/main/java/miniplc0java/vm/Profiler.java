@@ -0,0 +1,193 @@
+package miniplc0java.vm;
+
+import java.io.PrintStream;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.TreeMap;
+
+import miniplc0java.instruction.InstructionBuffer;
+import miniplc0java.instruction.Operation;
+import miniplc0java.instruction.SourceMap;
+
+/**
+ * MiniVm 的性能分析，记录每条指令执行的次数和花的时间，可以跨多次运行累计
+ *
+ * 用 MiniVm.setProfiler 打开。打开以后 MiniVm 每条指令单独计时，走的是边运行边检查的路径，
+ * 不合并超级指令，所以时间能对应到每一条原来的指令；没有打开时快速路径不受影响。
+ * 时间里包含 System.nanoTime 本身的开销，只适合比较各部分的相对大小。
+ * 按源码行汇总需要编译时的 SourceMap（Analyser.getSourceMap() 或者带调试信息的目标文件）。
+ */
+public final class Profiler {
+    // 按时间列出最多多少条指令
+    private static final int TOP_INSTRUCTIONS = 20;
+
+    private long[] counts = new long[0];
+    private long[] nanos = new long[0];
+    private long runs;
+
+    /**
+     * 开始一次运行
+     *
+     * @param length 这次运行的指令条数
+     */
+    void start(int length) {
+        runs++;
+        if (counts.length < length) {
+            counts = Arrays.copyOf(counts, length);
+            nanos = Arrays.copyOf(nanos, length);
+        }
+    }
+
+    /**
+     * 第 ip 条指令执行了一次，花了 elapsed 纳秒
+     */
+    void record(int ip, long elapsed) {
+        counts[ip]++;
+        nanos[ip] += elapsed;
+    }
+
+    /**
+     * @return 分析过的运行次数
+     */
+    public long getRuns() {
+        return runs;
+    }
+
+    /**
+     * @return 第 ip 条指令执行的次数
+     */
+    public long getCount(int ip) {
+        return ip < counts.length ? counts[ip] : 0;
+    }
+
+    /**
+     * @return 第 ip 条指令一共花的时间，单位纳秒
+     */
+    public long getNanos(int ip) {
+        return ip < nanos.length ? nanos[ip] : 0;
+    }
+
+    /**
+     * @return 执行次数按操作统计，下标是 Operation 的序号
+     */
+    public long[] getCountsByOperation(LongBuffer code) {
+        var result = new long[Operation.values().length];
+        int base = code.position();
+        int length = Math.min(code.limit() - base, counts.length);
+        for (int i = 0; i < length; i++) {
+            result[operation(code, base + i).ordinal()] += counts[i];
+        }
+        return result;
+    }
+
+    /**
+     * 写出文本形式的平面分析结果：按操作、按源码行和最耗时的指令
+     *
+     * @param code      分析的指令，从 position 到 limit
+     * @param sourceMap 每条指令的源码位置，为 null 时不按源码行汇总
+     */
+    public void writeFlat(PrintStream out, LongBuffer code, SourceMap sourceMap) {
+        int base = code.position();
+        int length = Math.min(code.limit() - base, counts.length);
+        long totalCount = 0;
+        long totalNanos = 0;
+        var operations = Operation.values();
+        var countsByOperation = new long[operations.length];
+        var nanosByOperation = new long[operations.length];
+        // 源码的行号从 1 开始
+        var countsByLine = new TreeMap<Integer, long[]>();
+        for (int i = 0; i < length; i++) {
+            totalCount += counts[i];
+            totalNanos += nanos[i];
+            int op = operation(code, base + i).ordinal();
+            countsByOperation[op] += counts[i];
+            nanosByOperation[op] += nanos[i];
+            if (sourceMap != null && i < sourceMap.size()) {
+                var line = countsByLine.computeIfAbsent(sourceMap.getRow(i) + 1, k -> new long[2]);
+                line[0] += counts[i];
+                line[1] += nanos[i];
+            }
+        }
+
+        out.printf(Locale.ROOT, "runs: %d, instructions: %d, time: %.3f ms%n", runs, totalCount, totalNanos / 1e6);
+        out.println();
+        out.printf(Locale.ROOT, "%-10s %14s %14s %8s%n", "operation", "count", "time (us)", "time %");
+        for (int op = 0; op < operations.length; op++) {
+            if (countsByOperation[op] != 0) {
+                printRow(out, operations[op].toString(), countsByOperation[op], nanosByOperation[op], totalNanos);
+            }
+        }
+        if (sourceMap != null) {
+            out.println();
+            out.printf(Locale.ROOT, "%-10s %14s %14s %8s%n", "line", "count", "time (us)", "time %");
+            for (var entry : countsByLine.entrySet()) {
+                var line = entry.getValue();
+                printRow(out, entry.getKey().toString(), line[0], line[1], totalNanos);
+            }
+        }
+
+        // 按时间从多到少排，时间一样时按下标
+        var order = new Integer[length];
+        for (int i = 0; i < length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (x, y) -> nanos[x] != nanos[y] ? Long.compare(nanos[y], nanos[x])
+                : Integer.compare(x, y));
+        out.println();
+        out.printf(Locale.ROOT, "%-10s %-14s %6s %14s %14s %8s%n", "index", "instruction", "line", "count",
+                "time (us)", "time %");
+        for (int k = 0; k < Math.min(TOP_INSTRUCTIONS, length); k++) {
+            int i = order[k];
+            var op = operation(code, base + i);
+            var instruction = op.toString();
+            if (op == Operation.LIT || op == Operation.LOD || op == Operation.STO) {
+                instruction += " " + InstructionBuffer.operand(code.get(base + i));
+            }
+            var line = sourceMap != null && i < sourceMap.size() ? Integer.toString(sourceMap.getRow(i) + 1) : "-";
+            out.printf(Locale.ROOT, "%-10d %-14s %6s %14d %14.3f %7.2f%%%n", i, instruction, line, counts[i],
+                    nanos[i] / 1e3, percent(nanos[i], totalNanos));
+        }
+    }
+
+    /**
+     * 写出火焰图工具（比如 flamegraph.pl）用的折叠栈格式，每行是“miniplc0;line N;操作 纳秒数”
+     *
+     * @param code      分析的指令，从 position 到 limit
+     * @param sourceMap 每条指令的源码位置，为 null 时只按操作分
+     */
+    public void writeCollapsed(PrintStream out, LongBuffer code, SourceMap sourceMap) {
+        int base = code.position();
+        int length = Math.min(code.limit() - base, counts.length);
+        // 相同的栈合并成一行
+        var stacks = new TreeMap<String, Long>();
+        for (int i = 0; i < length; i++) {
+            if (nanos[i] == 0) {
+                continue;
+            }
+            var stack = new StringBuilder("miniplc0;");
+            if (sourceMap != null && i < sourceMap.size()) {
+                stack.append("line ").append(sourceMap.getRow(i) + 1).append(';');
+            }
+            stack.append(operation(code, base + i));
+            stacks.merge(stack.toString(), nanos[i], Long::sum);
+        }
+        for (var entry : stacks.entrySet()) {
+            out.print(entry.getKey());
+            out.print(' ');
+            out.println(entry.getValue());
+        }
+    }
+
+    private static Operation operation(LongBuffer code, int index) {
+        return InstructionBuffer.operation(InstructionBuffer.opcode(code.get(index)));
+    }
+
+    private static void printRow(PrintStream out, String name, long count, long nanos, long totalNanos) {
+        out.printf(Locale.ROOT, "%-10s %14d %14.3f %7.2f%%%n", name, count, nanos / 1e3, percent(nanos, totalNanos));
+    }
+
+    private static double percent(long part, long total) {
+        return total == 0 ? 0 : part * 100.0 / total;
+    }
+}
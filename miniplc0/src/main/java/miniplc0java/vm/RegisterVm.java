@@ -0,0 +1,281 @@
+package miniplc0java.vm;
+
+import java.io.PrintStream;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+import miniplc0java.error.VerificationError;
+import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.InstructionBuffer;
+import miniplc0java.instruction.Opcode;
+
+/**
+ * 把栈式指令翻译成三地址的寄存器指令再解释执行的虚拟机
+ *
+ * 栈上第 i 个位置就是第 i 个寄存器，变量是寄存器，临时值按栈深度线性分配。常量放在栈后面的常量寄存器里，
+ * 每次运行开始时填好，所以每条寄存器指令的操作数都是寄存器。LIT 和 LOD 不生成指令，只记下操作数，
+ * 等用到它的运算或者 WRT 直接读；运算的结果马上被 STO 的话直接写进目标寄存器。这样一个表达式里
+ * 每个运算只剩一次分派，而栈式指令差不多要两次。
+ *
+ * 没有通过 Verifier 校验的指令交给 MiniVm 运行。每次 Run 都从空栈开始。
+ */
+public class RegisterVm implements VirtualMachine {
+    // 寄存器指令的操作码，每条指令占 code 里的 4 个 int：操作码、目标、两个源
+    static final int MOV = 0;
+    static final int ADD = 1;
+    static final int SUB = 2;
+    static final int MUL = 3;
+    static final int DIV = 4;
+    static final int WRT = 5;
+
+    private LongBuffer code;
+    private PrintStream out;
+    private OutputBuffer.FlushPolicy flushPolicy = OutputBuffer.FlushPolicy.BLOCK;
+    // 翻译好的指令，没有通过校验时为 null
+    private int[] program;
+    private int length;
+    // 常量寄存器从 constantBase 开始
+    private int[] constants;
+    private int constantBase;
+
+    public RegisterVm(List<Instruction> instructions, PrintStream out) {
+        this(InstructionBuffer.of(instructions), out);
+    }
+
+    public RegisterVm(InstructionBuffer instructions, PrintStream out) {
+        this(instructions.asLongBuffer(), out);
+    }
+
+    /**
+     * 校验并翻译指令
+     *
+     * @param code 从 position 到 limit 的每个元素是一条打包好的指令
+     * @param out
+     */
+    public RegisterVm(LongBuffer code, PrintStream out) {
+        this.code = code.slice();
+        this.out = out;
+        int maxDepth;
+        try {
+            maxDepth = Verifier.verify(this.code);
+        } catch (VerificationError e) {
+            return;
+        }
+        new Translator(this, maxDepth).translate(this.code);
+    }
+
+    /**
+     * @return 是否翻译成了寄存器指令
+     */
+    public boolean isCompiled() {
+        return program != null;
+    }
+
+    /**
+     * @return 寄存器指令的条数，也就是每次运行的分派次数
+     */
+    public int getInstructionCount() {
+        return length;
+    }
+
+    @Override
+    public void Run() {
+        if (program == null) {
+            var vm = new MiniVm(code, out);
+            vm.setFlushPolicy(flushPolicy);
+            vm.Run();
+            return;
+        }
+        var output = new OutputBuffer(out, flushPolicy);
+        try {
+            run(output);
+        } finally {
+            output.flush();
+        }
+    }
+
+    @Override
+    public void setFlushPolicy(OutputBuffer.FlushPolicy policy) {
+        this.flushPolicy = policy;
+    }
+
+    /**
+     * 运行翻译好的指令，输出交给 out，可以在多个线程里同时运行
+     */
+    void run(IntConsumer out) {
+        var program = this.program;
+        int end = length * 4;
+        var regs = new int[constantBase + constants.length];
+        System.arraycopy(constants, 0, regs, constantBase, constants.length);
+        for (int pc = 0; pc < end; pc += 4) {
+            int dst = program[pc + 1];
+            int a = program[pc + 2];
+            switch (program[pc]) {
+                case MOV:
+                    regs[dst] = regs[a];
+                    break;
+                case ADD:
+                    regs[dst] = regs[a] + regs[program[pc + 3]];
+                    break;
+                case SUB:
+                    regs[dst] = regs[a] - regs[program[pc + 3]];
+                    break;
+                case MUL:
+                    regs[dst] = regs[a] * regs[program[pc + 3]];
+                    break;
+                case DIV:
+                    regs[dst] = regs[a] / regs[program[pc + 3]];
+                    break;
+                default:
+                    out.accept(regs[a]);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * 栈式指令到寄存器指令的翻译
+     *
+     * 栈上每个位置记一个操作数：它的值现在在哪个寄存器里。LOD 只是复制操作数，所以某个寄存器被改写之前，
+     * 栈上还引用它的位置要先用 MOV 存下来。
+     */
+    private static final class Translator {
+        private final RegisterVm vm;
+        private final int maxDepth;
+        // 栈上每个位置的值在哪个寄存器里
+        private final int[] operands;
+        // 栈上有多少个位置引用了这个寄存器（不算位置本身）
+        private final int[] references;
+        private int depth;
+
+        private int[] program = new int[64];
+        private int length;
+        // 上一条指令的结果还没被别的地方引用，可以直接改它的目标寄存器
+        private int lastResult = -1;
+
+        private final HashMap<Integer, Integer> constantIndex = new HashMap<>();
+        private int[] constants = new int[8];
+        private int constantCount;
+
+        Translator(RegisterVm vm, int maxDepth) {
+            this.vm = vm;
+            this.maxDepth = maxDepth;
+            this.operands = new int[maxDepth];
+            this.references = new int[maxDepth];
+        }
+
+        void translate(LongBuffer code) {
+            int end = code.limit();
+            for (int i = 0; i < end; i++) {
+                long word = code.get(i);
+                int x = InstructionBuffer.operand(word);
+                int op = InstructionBuffer.opcode(word);
+                switch (op) {
+                    case Opcode.LIT:
+                        push(constant(x));
+                        break;
+                    case Opcode.LOD:
+                        push(operands[x]);
+                        break;
+                    case Opcode.STO: {
+                        int value = pop();
+                        if (value == lastResult && references[x] == 0) {
+                            // 运算的结果直接写进变量
+                            program[(length - 1) * 4 + 1] = x;
+                        } else if (value != x) {
+                            write(x);
+                            emit(MOV, x, value, 0);
+                        }
+                        if (operands[x] != x && operands[x] < maxDepth) {
+                            references[operands[x]]--;
+                        }
+                        operands[x] = x;
+                        lastResult = -1;
+                    }
+                        break;
+                    case Opcode.WRT:
+                        emit(WRT, 0, pop(), 0);
+                        lastResult = -1;
+                        break;
+                    default: {
+                        // ADD、SUB、MUL、DIV，结果放在左操作数的位置
+                        int right = pop();
+                        int left = pop();
+                        int dst = depth;
+                        write(dst);
+                        emit(ADD + (op - Opcode.ADD), dst, left, right);
+                        push(dst);
+                        lastResult = dst;
+                    }
+                        break;
+                }
+            }
+            vm.program = program;
+            vm.length = length;
+            vm.constants = Arrays.copyOf(constants, constantCount);
+            vm.constantBase = maxDepth;
+        }
+
+        private void push(int operand) {
+            operands[depth] = operand;
+            if (operand != depth && operand < maxDepth) {
+                references[operand]++;
+            }
+            depth++;
+            lastResult = -1;
+        }
+
+        private int pop() {
+            depth--;
+            int operand = operands[depth];
+            if (operand != depth && operand < maxDepth) {
+                references[operand]--;
+            }
+            return operand;
+        }
+
+        /**
+         * 要改写寄存器 r 了，栈上还引用它的位置先复制一份
+         */
+        private void write(int r) {
+            if (references[r] == 0) {
+                return;
+            }
+            for (int s = r + 1; s < depth; s++) {
+                if (operands[s] == r) {
+                    emit(MOV, s, r, 0);
+                    operands[s] = s;
+                    references[r]--;
+                }
+            }
+        }
+
+        private int constant(int value) {
+            var index = constantIndex.get(value);
+            if (index == null) {
+                if (constantCount == constants.length) {
+                    constants = Arrays.copyOf(constants, constantCount * 2);
+                }
+                index = constantCount;
+                constants[constantCount++] = value;
+                constantIndex.put(value, index);
+            }
+            return maxDepth + index;
+        }
+
+        private void emit(int op, int dst, int a, int b) {
+            if (length * 4 == program.length) {
+                program = Arrays.copyOf(program, program.length * 2);
+            }
+            int pc = length * 4;
+            program[pc] = op;
+            program[pc + 1] = dst;
+            program[pc + 2] = a;
+            program[pc + 3] = b;
+            length++;
+        }
+    }
+}
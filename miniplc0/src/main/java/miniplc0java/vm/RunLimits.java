@@ -0,0 +1,69 @@
+package miniplc0java.vm;
+
+import java.time.Duration;
+
+/**
+ * 一次运行的资源限制，见 MiniVm.Run(RunLimits)
+ *
+ * 程序没有跳转，执行的指令数和栈的深度在运行前就能算出来，所以这两项只截短要运行的指令，运行时没有开销。
+ * 输出的字节数和截止时间每执行 checkInterval 条指令才检查一次，超出时最多多跑这么多条指令。
+ */
+public final class RunLimits {
+    /** 默认每执行多少条指令检查一次输出和时间 */
+    public static final int DEFAULT_CHECK_INTERVAL = 4096;
+
+    /** 没有任何限制 */
+    public static final RunLimits UNLIMITED = new RunLimits(Long.MAX_VALUE, Integer.MAX_VALUE, Long.MAX_VALUE, null);
+
+    private final long maxInstructions;
+    private final int maxStackDepth;
+    private final long maxOutputBytes;
+    private final Duration timeout;
+    private final int checkInterval;
+
+    public RunLimits(long maxInstructions, int maxStackDepth, long maxOutputBytes, Duration timeout) {
+        this(maxInstructions, maxStackDepth, maxOutputBytes, timeout, DEFAULT_CHECK_INTERVAL);
+    }
+
+    /**
+     * @param maxInstructions 最多执行多少条指令
+     * @param maxStackDepth   栈最深多少，包括变量
+     * @param maxOutputBytes  WRT 最多输出多少字节，超出的那一行和之后的输出都丢掉
+     * @param timeout         从开始运行算起的时间限制，null 表示不限
+     * @param checkInterval   每执行多少条指令检查一次输出和时间
+     */
+    public RunLimits(long maxInstructions, int maxStackDepth, long maxOutputBytes, Duration timeout,
+            int checkInterval) {
+        if (maxInstructions < 0 || maxStackDepth < 0 || maxOutputBytes < 0 || checkInterval <= 0) {
+            throw new IllegalArgumentException("Invalid run limits");
+        }
+        this.maxInstructions = maxInstructions;
+        this.maxStackDepth = maxStackDepth;
+        this.maxOutputBytes = maxOutputBytes;
+        this.timeout = timeout;
+        this.checkInterval = checkInterval;
+    }
+
+    public long getMaxInstructions() {
+        return maxInstructions;
+    }
+
+    public int getMaxStackDepth() {
+        return maxStackDepth;
+    }
+
+    public long getMaxOutputBytes() {
+        return maxOutputBytes;
+    }
+
+    /**
+     * @return 时间限制，null 表示不限
+     */
+    public Duration getTimeout() {
+        return timeout;
+    }
+
+    public int getCheckInterval() {
+        return checkInterval;
+    }
+}
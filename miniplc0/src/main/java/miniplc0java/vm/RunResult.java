@@ -0,0 +1,82 @@
+package miniplc0java.vm;
+
+/**
+ * 有限制的一次运行的结果，出错也不抛异常，而是放在结果里
+ */
+public final class RunResult {
+    /**
+     * 运行是怎么结束的
+     */
+    public enum Status {
+        /** 正常运行完 */
+        COMPLETED,
+        /** 执行的指令数超出限制 */
+        INSTRUCTION_LIMIT,
+        /** 栈的深度超出限制 */
+        STACK_LIMIT,
+        /** 输出的字节数超出限制 */
+        OUTPUT_LIMIT,
+        /** 超时 */
+        DEADLINE,
+        /** 运行出错，见 getFault() */
+        FAULT
+    }
+
+    private final Status status;
+    private final long instructions;
+    private final long outputBytes;
+    private final long elapsedNanos;
+    private final Throwable fault;
+
+    RunResult(Status status, long instructions, long outputBytes, long elapsedNanos, Throwable fault) {
+        this.status = status;
+        this.instructions = instructions;
+        this.outputBytes = outputBytes;
+        this.elapsedNanos = elapsedNanos;
+        this.fault = fault;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public boolean isCompleted() {
+        return status == Status.COMPLETED;
+    }
+
+    /**
+     * @return 执行完的指令数，出错时不含出错的那条
+     */
+    public long getInstructions() {
+        return instructions;
+    }
+
+    /**
+     * @return 实际输出的字节数
+     */
+    public long getOutputBytes() {
+        return outputBytes;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * @return 运行时抛出的异常，状态不是 FAULT 时为 null
+     */
+    public Throwable getFault() {
+        return fault;
+    }
+
+    @Override
+    public String toString() {
+        var builder = new StringBuilder().append(status).append(": ").append(instructions)
+                .append(" instructions, ").append(outputBytes).append(" bytes of output, ")
+                .append(elapsedNanos / 1_000).append(" us");
+        if (fault != null) {
+            builder.append(", ").append(fault);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,339 @@
+package miniplc0java.vm;
+
+import java.io.PrintStream;
+import java.nio.LongBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 分层执行：同一个程序反复运行时，先解释执行，跑得多了再在后台编译成更快的引擎
+ *
+ * 每个程序记录运行次数和执行过的指令数（没有跳转，每次运行执行的指令数就是程序的长度），任一个超过阈值
+ * 就把编译任务交给后台的 Executor，编译好以后原子地换掉，之后的运行直接用编译好的版本，正在运行的不受影响。
+ * 只跑几次的程序不用等编译。各层的运行次数和升级的情况见 getMetrics()。
+ */
+public class TieredExecution implements AutoCloseable {
+    /** 默认运行多少次以后升级 */
+    public static final int DEFAULT_RUN_THRESHOLD = 10;
+    /** 默认执行多少条指令以后升级 */
+    public static final long DEFAULT_INSTRUCTION_THRESHOLD = 10_000_000;
+
+    /**
+     * 程序现在处在哪一层
+     */
+    public enum Tier {
+        /** 解释执行 */
+        INTERPRETED,
+        /** 正在后台编译，仍然解释执行 */
+        PROMOTING,
+        /** 已经换成编译好的版本 */
+        COMPILED,
+        /** 编译失败或者不能编译，一直解释执行 */
+        FAILED
+    }
+
+    /**
+     * 某一层的程序，可以在多个线程里同时运行
+     */
+    @FunctionalInterface
+    private interface Runner {
+        void run(PrintStream out);
+    }
+
+    private final Engine target;
+    private final int runThreshold;
+    private final long instructionThreshold;
+    private final Executor compiler;
+    // 自己创建的线程池，close 时关掉
+    private final ExecutorService ownedCompiler;
+
+    private final LongAdder programs = new LongAdder();
+    private final LongAdder interpretedRuns = new LongAdder();
+    private final LongAdder compiledRuns = new LongAdder();
+    private final LongAdder promotions = new LongAdder();
+    private final LongAdder compiled = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder compileNanos = new LongAdder();
+
+    /**
+     * 用默认的阈值，升级到 BytecodeVm，在一个后台线程里编译
+     */
+    public TieredExecution() {
+        this(Engine.BYTECODE, DEFAULT_RUN_THRESHOLD, DEFAULT_INSTRUCTION_THRESHOLD);
+    }
+
+    /**
+     * 在一个后台线程里编译
+     */
+    public TieredExecution(Engine target, int runThreshold, long instructionThreshold) {
+        this(target, runThreshold, instructionThreshold, newCompilerThread());
+    }
+
+    private TieredExecution(Engine target, int runThreshold, long instructionThreshold, ExecutorService compiler) {
+        this(target, runThreshold, instructionThreshold, compiler, compiler);
+    }
+
+    /**
+     * @param target               升级到哪个引擎，不能是 INTERPRETER
+     * @param runThreshold         运行多少次以后升级
+     * @param instructionThreshold 一共执行多少条指令以后升级
+     * @param compiler             在哪里编译
+     */
+    public TieredExecution(Engine target, int runThreshold, long instructionThreshold, Executor compiler) {
+        this(target, runThreshold, instructionThreshold, compiler, null);
+    }
+
+    private TieredExecution(Engine target, int runThreshold, long instructionThreshold, Executor compiler,
+            ExecutorService ownedCompiler) {
+        if (target == Engine.INTERPRETER) {
+            throw new IllegalArgumentException("Cannot promote to the interpreter");
+        }
+        this.target = target;
+        this.runThreshold = runThreshold;
+        this.instructionThreshold = instructionThreshold;
+        this.compiler = compiler;
+        this.ownedCompiler = ownedCompiler;
+    }
+
+    private static ExecutorService newCompilerThread() {
+        return Executors.newSingleThreadExecutor(r -> {
+            var thread = new Thread(r, "miniplc0-compiler");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @param code 从 position 到 limit 的每个元素是一条打包好的指令，不会复制，之后不能再修改
+     */
+    public Program load(LongBuffer code) {
+        programs.increment();
+        return new Program(code.slice());
+    }
+
+    /**
+     * 一个可以反复运行的程序
+     */
+    public final class Program {
+        private final LongBuffer code;
+        private final AtomicLong runs = new AtomicLong();
+        private final AtomicLong instructions = new AtomicLong();
+        private final AtomicInteger tier = new AtomicInteger(Tier.INTERPRETED.ordinal());
+        // 编译好以后换成编译好的版本
+        private volatile Runner runner;
+        // 解释执行时每次都新建 MiniVm，校验和合并超级指令的结果在它们之间共用
+        private volatile MiniVm.Prepared prepared;
+
+        private Program(LongBuffer code) {
+            this.code = code;
+            this.runner = out -> {
+                interpretedRuns.increment();
+                var vm = new MiniVm(this.code, out, prepared);
+                try {
+                    vm.Run();
+                } finally {
+                    prepared = vm.getPrepared();
+                }
+            };
+        }
+
+        /**
+         * 运行一次，出错时抛出和 MiniVm 一样的异常
+         *
+         * @param out WRT 的输出
+         */
+        public void run(PrintStream out) {
+            var runner = this.runner;
+            long count = runs.incrementAndGet();
+            long executed = instructions.addAndGet(code.limit());
+            if ((count >= runThreshold || executed >= instructionThreshold)
+                    && tier.compareAndSet(Tier.INTERPRETED.ordinal(), Tier.PROMOTING.ordinal())) {
+                promotions.increment();
+                try {
+                    compiler.execute(this::promote);
+                } catch (RuntimeException e) {
+                    // 线程池关掉了
+                    failed.increment();
+                    tier.set(Tier.FAILED.ordinal());
+                }
+            }
+            runner.run(out);
+        }
+
+        private void promote() {
+            long start = System.nanoTime();
+            Runner compiledRunner;
+            try {
+                compiledRunner = compile(target, code);
+            } catch (RuntimeException | Error e) {
+                compiledRunner = null;
+            }
+            compileNanos.add(System.nanoTime() - start);
+            if (compiledRunner == null) {
+                failed.increment();
+                tier.set(Tier.FAILED.ordinal());
+                return;
+            }
+            runner = compiledRunner;
+            compiled.increment();
+            tier.set(Tier.COMPILED.ordinal());
+        }
+
+        public Tier getTier() {
+            return Tier.values()[tier.get()];
+        }
+
+        public long getRuns() {
+            return runs.get();
+        }
+
+        public long getInstructions() {
+            return instructions.get();
+        }
+    }
+
+    /**
+     * @return 编译好的版本，不能编译时为 null
+     */
+    private Runner compile(Engine engine, LongBuffer code) {
+        switch (engine) {
+            case CLOSURE: {
+                var vm = new ClosureVm(code, null);
+                if (!vm.isCompiled()) {
+                    return null;
+                }
+                return out -> {
+                    compiledRuns.increment();
+                    var output = new OutputBuffer(out);
+                    try {
+                        vm.run(output);
+                    } finally {
+                        output.flush();
+                    }
+                };
+            }
+            case REGISTER: {
+                var vm = new RegisterVm(code, null);
+                if (!vm.isCompiled()) {
+                    return null;
+                }
+                return out -> {
+                    compiledRuns.increment();
+                    var output = new OutputBuffer(out);
+                    try {
+                        vm.run(output);
+                    } finally {
+                        output.flush();
+                    }
+                };
+            }
+            case BYTECODE: {
+                var vm = new BytecodeVm(code, null);
+                if (!vm.isCompiled()) {
+                    return null;
+                }
+                return out -> {
+                    compiledRuns.increment();
+                    var output = new OutputBuffer(out);
+                    try {
+                        vm.run(output);
+                    } finally {
+                        output.flush();
+                    }
+                };
+            }
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return 当前各项计数的快照
+     */
+    public Metrics getMetrics() {
+        return new Metrics(programs.sum(), interpretedRuns.sum(), compiledRuns.sum(), promotions.sum(),
+                compiled.sum(), failed.sum(), compileNanos.sum());
+    }
+
+    /**
+     * 分层执行的计数
+     */
+    public static final class Metrics {
+        private final long programs;
+        private final long interpretedRuns;
+        private final long compiledRuns;
+        private final long promotions;
+        private final long compiled;
+        private final long failed;
+        private final long compileNanos;
+
+        Metrics(long programs, long interpretedRuns, long compiledRuns, long promotions, long compiled,
+                long failed, long compileNanos) {
+            this.programs = programs;
+            this.interpretedRuns = interpretedRuns;
+            this.compiledRuns = compiledRuns;
+            this.promotions = promotions;
+            this.compiled = compiled;
+            this.failed = failed;
+            this.compileNanos = compileNanos;
+        }
+
+        /** 加载过的程序数 */
+        public long getPrograms() {
+            return programs;
+        }
+
+        /** 解释执行的次数 */
+        public long getInterpretedRuns() {
+            return interpretedRuns;
+        }
+
+        /** 用编译好的版本运行的次数 */
+        public long getCompiledRuns() {
+            return compiledRuns;
+        }
+
+        /** 开始升级的程序数 */
+        public long getPromotions() {
+            return promotions;
+        }
+
+        /** 升级成功的程序数 */
+        public long getCompiled() {
+            return compiled;
+        }
+
+        /** 升级失败的程序数 */
+        public long getFailed() {
+            return failed;
+        }
+
+        /** 编译花的总时间，单位纳秒 */
+        public long getCompileNanos() {
+            return compileNanos;
+        }
+
+        @Override
+        public String toString() {
+            return new StringBuilder().append("programs: ").append(programs).append(", interpreted runs: ")
+                    .append(interpretedRuns).append(", compiled runs: ").append(compiledRuns)
+                    .append(", promotions: ").append(promotions).append(", compiled: ").append(compiled)
+                    .append(", failed: ").append(failed).append(", compile time: ")
+                    .append(compileNanos / 1_000_000).append(" ms").toString();
+        }
+    }
+
+    /**
+     * 关掉自己创建的编译线程，正在编译的程序会一直解释执行
+     */
+    @Override
+    public void close() {
+        if (ownedCompiler != null) {
+            ownedCompiler.shutdownNow();
+        }
+    }
+}
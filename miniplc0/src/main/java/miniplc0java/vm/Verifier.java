@@ -0,0 +1,112 @@
+package miniplc0java.vm;
+
+import java.nio.LongBuffer;
+
+import miniplc0java.error.ErrorCode;
+import miniplc0java.error.VerificationError;
+import miniplc0java.instruction.InstructionBuffer;
+import miniplc0java.instruction.Opcode;
+
+/**
+ * 运行前对指令做一遍抽象解释，只跟踪栈的深度
+ * 
+ * miniplc0 的指令没有跳转，每条指令执行前的栈深度都是确定的，所以算出来的最大深度是精确的。
+ * 通过校验的程序运行时不会下溢，LOD/STO 的偏移也不会越界，虚拟机可以省掉这些检查。
+ */
+public final class Verifier {
+    private Verifier() {
+    }
+
+    /**
+     * @param code 从 position 到 limit 的每个元素是一条打包好的指令
+     * @return 运行过程中栈的最大深度
+     * @throws VerificationError 有指令会让栈下溢、偏移越界，或者是 ILL 等不认识的操作码
+     */
+    public static int verify(LongBuffer code) throws VerificationError {
+        return verify(code, 0);
+    }
+
+    /**
+     * @param code         从 position 到 limit 的每个元素是一条打包好的指令
+     * @param initialDepth 开始运行时栈里已经有的元素个数
+     * @return 运行过程中栈的最大深度，不小于 initialDepth
+     * @throws VerificationError 有指令会让栈下溢、偏移越界，或者是 ILL 等不认识的操作码
+     */
+    public static int verify(LongBuffer code, int initialDepth) throws VerificationError {
+        int base = code.position();
+        int length = code.limit() - base;
+        int depth = initialDepth;
+        int maxDepth = initialDepth;
+        for (int i = 0; i < length; i++) {
+            long word = code.get(base + i);
+            int x = InstructionBuffer.operand(word);
+            switch (InstructionBuffer.opcode(word)) {
+                case Opcode.LIT:
+                    depth++;
+                    break;
+                case Opcode.LOD:
+                    if (x < 0 || x >= depth) {
+                        throw new VerificationError(ErrorCode.InvalidOperand, i);
+                    }
+                    depth++;
+                    break;
+                case Opcode.STO:
+                    if (depth < 1) {
+                        throw new VerificationError(ErrorCode.StackUnderflow, i);
+                    }
+                    depth--;
+                    if (x < 0 || x >= depth) {
+                        throw new VerificationError(ErrorCode.InvalidOperand, i);
+                    }
+                    break;
+                case Opcode.ADD:
+                case Opcode.SUB:
+                case Opcode.MUL:
+                case Opcode.DIV:
+                    if (depth < 2) {
+                        throw new VerificationError(ErrorCode.StackUnderflow, i);
+                    }
+                    depth--;
+                    break;
+                case Opcode.WRT:
+                    if (depth < 1) {
+                        throw new VerificationError(ErrorCode.StackUnderflow, i);
+                    }
+                    depth--;
+                    break;
+                default:
+                    // ILL 和不认识的操作码
+                    throw new VerificationError(ErrorCode.InvalidInstruction, i);
+            }
+            if (depth > maxDepth) {
+                maxDepth = depth;
+            }
+        }
+        return maxDepth;
+    }
+
+    /**
+     * 找到第一条让栈的深度超过 limit 的指令，只在运行时的检查之前有用：出错的指令之后都不会执行，所以不用管
+     *
+     * @param code         从 position 到 limit 的每个元素是一条打包好的指令
+     * @param initialDepth 开始运行时栈里已经有的元素个数
+     * @return 指令的下标，没有这样的指令时为 -1
+     */
+    static int firstOverflow(LongBuffer code, int initialDepth, int limit) {
+        int base = code.position();
+        int length = code.limit() - base;
+        int depth = initialDepth;
+        for (int i = 0; i < length; i++) {
+            int op = InstructionBuffer.opcode(code.get(base + i));
+            if (op == Opcode.LIT || op == Opcode.LOD) {
+                depth++;
+                if (depth > limit) {
+                    return i;
+                }
+            } else {
+                depth--;
+            }
+        }
+        return -1;
+    }
+}
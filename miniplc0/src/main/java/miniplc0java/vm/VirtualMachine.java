@@ -0,0 +1,16 @@
+package miniplc0java.vm;
+
+/**
+ * 运行一段指令的虚拟机，不同的执行引擎见 Engine
+ */
+public interface VirtualMachine {
+    /**
+     * 运行全部指令，出错时抛出和 MiniVm 一样的异常
+     */
+    void Run();
+
+    /**
+     * 设置 WRT 的输出什么时候写出去，默认是 BLOCK
+     */
+    void setFlushPolicy(OutputBuffer.FlushPolicy policy);
+}
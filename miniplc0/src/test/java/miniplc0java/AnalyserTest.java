@@ -3,6 +3,112 @@ package miniplc0java;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.ForkJoinPool;
+
+import miniplc0java.analyser.Analyser;
+import miniplc0java.analyser.ParallelAnalyser;
+import miniplc0java.error.CompileError;
+import miniplc0java.instruction.Instruction;
+import miniplc0java.tokenizer.StringIter;
+import miniplc0java.tokenizer.Tokenizer;
+
 public class AnalyserTest {
 
+    private static Tokenizer tokenizer(String source) {
+        return new Tokenizer(new StringIter(new Scanner(source)));
+    }
+
+    /** 串行和并行（每块很小）分析的结果应该一模一样，出错时比较报的错 */
+    private static void assertSameAsSerial(String source) {
+        String expected;
+        try {
+            expected = new Analyser(tokenizer(source)).analyse().toString();
+        } catch (CompileError e) {
+            expected = e.toString();
+        }
+        String actual;
+        try {
+            List<Instruction> instructions = new ParallelAnalyser(tokenizer(source), ForkJoinPool.commonPool(), 3)
+                    .analyse();
+            actual = instructions.toString();
+        } catch (CompileError e) {
+            actual = e.toString();
+        }
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testParallelMatchesSerial() {
+        var sb = new StringBuilder("begin\nconst a = 3;\nvar b;\nvar c = a * 2;\n");
+        for (int i = 0; i < 200; i++) {
+            sb.append("b = a + ").append(i).append(" * (c - -b);\n");
+            sb.append("print(b / a);\n;\n");
+        }
+        sb.append("end\n");
+        assertSameAsSerial(sb.toString());
+    }
+
+    @Test
+    public void testParallelInitializationOrder() {
+        // b 在后面的块里才被赋值，前面的使用应该报 NotInitialized
+        assertSameAsSerial("begin var b; var c; print(1); print(2); c = b; print(3); b = 1; end");
+        // 赋值时右边可以用自己
+        assertSameAsSerial("begin var b; print(1); print(2); b = b + 1; print(b); end");
+        // 前面的块已经赋值
+        assertSameAsSerial("begin var b; b = 1; print(2); print(3); print(b); end");
+    }
+
+    @Test
+    public void testParallelFirstErrorWins() {
+        // 前面块里的未初始化错误比后面块里的语法错误先报
+        assertSameAsSerial("begin var b; print(b); print(2); print(3); print(; end");
+        assertSameAsSerial("begin var b; print(1); print(2); x = 1; print(b); end");
+        assertSameAsSerial("begin const a = 1; print(1); print(2); a = 2; end");
+        assertSameAsSerial("begin print(1); print(2); print(3); end end");
+        assertSameAsSerial("begin print(1); print(2); print(3); # end");
+        assertSameAsSerial("begin print(1); print(2); print(3);");
+    }
+
+    @Test
+    public void testCompilerReuse() throws Exception {
+        var compiler = new Compiler();
+        var sources = new String[] { "begin var a = 1; print(a + 2); end",
+                "begin const a = 1; var b; b = a * 3; print(b); end", "begin print(x); end",
+                "begin\nvar a = 1;\nprint(a);\nend\n" };
+        // 第二遍用的是第一遍留下的缓冲区，结果应该一样
+        for (int round = 0; round < 2; round++) {
+            for (var source : sources) {
+                String expected;
+                try {
+                    var analyser = new Analyser(tokenizer(source));
+                    expected = analyser.analyse().toString() + analyser.getSourceMap().getRow(0);
+                } catch (CompileError e) {
+                    expected = e.toString();
+                }
+                String actual;
+                try {
+                    actual = compiler.compile(source,
+                            (instructions, sourceMap) -> instructions.toList().toString() + sourceMap.getRow(0));
+                } catch (CompileError e) {
+                    actual = e.toString();
+                }
+                assertEquals(expected, actual);
+            }
+        }
+
+        // 只能在创建它的线程里用
+        var error = new Throwable[1];
+        var thread = new Thread(() -> {
+            try {
+                compiler.compile("begin end", (instructions, sourceMap) -> null);
+            } catch (Throwable e) {
+                error[0] = e;
+            }
+        });
+        thread.start();
+        thread.join();
+        assertTrue(error[0] instanceof IllegalStateException);
+    }
 }
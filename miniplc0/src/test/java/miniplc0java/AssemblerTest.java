@@ -0,0 +1,98 @@
+package miniplc0java;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+import miniplc0java.error.AssembleError;
+import miniplc0java.error.ErrorCode;
+import miniplc0java.instruction.Assembler;
+import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.InstructionBuffer;
+import miniplc0java.instruction.ListingWriter;
+import miniplc0java.instruction.Operation;
+
+public class AssemblerTest {
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testRoundTrip() throws AssembleError {
+        var instructions = new ArrayList<Instruction>();
+        instructions.add(new Instruction(Operation.LIT, Integer.MIN_VALUE));
+        instructions.add(new Instruction(Operation.LIT, Integer.MAX_VALUE));
+        instructions.add(new Instruction(Operation.LOD, 1));
+        instructions.add(new Instruction(Operation.STO, 0));
+        for (var opt : Operation.values()) {
+            if (opt != Operation.LIT && opt != Operation.LOD && opt != Operation.STO) {
+                instructions.add(new Instruction(opt));
+            }
+        }
+        var sb = new StringBuilder();
+        for (var instruction : instructions) {
+            sb.append(instruction).append('\n');
+        }
+        assertEquals(instructions, Assembler.assembleToList(bytes(sb.toString())));
+        // \r\n、多余的空格、空行和没有换行的最后一行
+        assertEquals(instructions.subList(0, 3),
+                Assembler.assembleToList(bytes("LIT -2147483648\r\n\r\n  LIT  2147483647 \nLOD 1")));
+    }
+
+    @Test
+    public void testErrors() {
+        var e = assertThrows(AssembleError.class, () -> Assembler.assemble(bytes("LIT 1\nFOO\n")));
+        assertEquals(ErrorCode.InvalidInstruction, e.getErr());
+        assertEquals(1, e.getPos().row);
+
+        e = assertThrows(AssembleError.class, () -> Assembler.assemble(bytes("LIT 1\nADD\nLOD\n")));
+        assertEquals(ErrorCode.InvalidOperand, e.getErr());
+        assertEquals(2, e.getPos().row);
+
+        e = assertThrows(AssembleError.class, () -> Assembler.assemble(bytes("ADD 1\n")));
+        assertEquals(ErrorCode.InvalidOperand, e.getErr());
+
+        e = assertThrows(AssembleError.class, () -> Assembler.assemble(bytes("STO -1\n")));
+        assertEquals(ErrorCode.InvalidOperand, e.getErr());
+
+        e = assertThrows(AssembleError.class, () -> Assembler.assemble(bytes("LIT 2147483648\n")));
+        assertEquals(ErrorCode.IntegerOverflow, e.getErr());
+    }
+
+    @Test
+    public void testListingWriter() throws IOException, AssembleError {
+        var instructions = new ArrayList<Instruction>();
+        int[] values = { 0, 1, -1, 9, 10, 99, 100, -100, 12345, 1000000000, Integer.MAX_VALUE, Integer.MIN_VALUE };
+        for (int value : values) {
+            instructions.add(new Instruction(Operation.LIT, value));
+            instructions.add(new Instruction(Operation.LOD, Math.abs(value % 1000)));
+            instructions.add(new Instruction(Operation.ADD));
+        }
+        instructions.add(new Instruction(Operation.ILL));
+        instructions.add(new Instruction(Operation.WRT));
+
+        // 和逐条 println 的结果逐字节相同
+        var expected = new ByteArrayOutputStream();
+        var printer = new PrintStream(expected);
+        for (var instruction : instructions) {
+            printer.println(instruction.toString());
+        }
+        printer.flush();
+
+        var actual = new ByteArrayOutputStream();
+        // 很小的缓冲区，会 flush 很多次
+        var writer = new ListingWriter(Channels.newChannel(actual), 32);
+        writer.write(InstructionBuffer.of(instructions));
+        writer.flush();
+
+        assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+        assertEquals(instructions, Assembler.assembleToList(actual.toByteArray()));
+    }
+}
@@ -0,0 +1,79 @@
+package miniplc0java;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+
+import miniplc0java.vm.Engine;
+import miniplc0java.vm.OutputBuffer;
+
+public class BatchTest {
+
+    @Test
+    public void testManifest() throws IOException {
+        var entries = Batch.readManifest(new StringReader("# comment\n\na.c0 a.out\n  b.c0\tb.out  \n"));
+        assertEquals(2, entries.size());
+        assertEquals(Path.of("a.c0"), entries.get(0).getInput());
+        assertEquals(Path.of("b.out"), entries.get(1).getOutput());
+
+        var e = assertThrows(IOException.class, () -> Batch.readManifest(new StringReader("a.c0 a.out\nb.c0\n")));
+        assertTrue(e.getMessage().contains("line 2"));
+    }
+
+    @Test
+    public void testProcess() throws IOException {
+        var dir = Files.createTempDirectory("batch");
+        try {
+            var sources = new String[] {
+                    "begin\nvar a = 1;\nprint(a + 2);\nend\n",
+                    // 编译错误：没有声明
+                    "begin\nprint(x);\nend\n",
+                    // 运行时除以 0
+                    "begin\nvar a = 0;\nprint(1);\nprint(1 / a);\nend\n",
+                    // 找不到输入文件
+                    null };
+            var entries = new ArrayList<Batch.Entry>();
+            for (int i = 0; i < sources.length; i++) {
+                var input = dir.resolve(i + ".c0");
+                if (sources[i] != null) {
+                    Files.writeString(input, sources[i]);
+                }
+                entries.add(new Batch.Entry(input, dir.resolve(i + ".out")));
+            }
+
+            var batch = new Batch(Batch.Mode.RUN, false, Engine.INTERPRETER, OutputBuffer.FlushPolicy.BLOCK);
+            var results = batch.process(entries, 3);
+            assertEquals(4, results.size());
+            assertEquals(0, results.get(0).getStatus());
+            assertNull(results.get(0).getMessage());
+            assertEquals("3\n", Files.readString(dir.resolve("0.out")));
+            assertEquals(0, results.get(1).getStatus());
+            assertTrue(results.get(1).getMessage().contains("NotDeclared"));
+            assertEquals(1, results.get(2).getStatus());
+            assertEquals("java.lang.ArithmeticException: / by zero", results.get(2).getMessage());
+            assertEquals("1\n", Files.readString(dir.resolve("2.out")));
+            assertEquals(2, results.get(3).getStatus());
+            assertEquals("2 " + entries.get(3).getInput() + " Cannot find input file.", results.get(3).toString());
+
+            // 指令列表和单独编译的一样
+            batch = new Batch(Batch.Mode.LISTING, false, Engine.INTERPRETER, OutputBuffer.FlushPolicy.BLOCK);
+            results = batch.process(entries.subList(0, 1), 1);
+            assertEquals(0, results.get(0).getStatus());
+            var nl = System.lineSeparator();
+            assertEquals("LIT 1" + nl + "LOD 0" + nl + "LIT 2" + nl + "ADD" + nl + "WRT" + nl,
+                    Files.readString(dir.resolve("0.out")));
+        } finally {
+            try (var files = Files.list(dir)) {
+                for (var file : (Iterable<Path>) files::iterator) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(dir);
+        }
+    }
+}
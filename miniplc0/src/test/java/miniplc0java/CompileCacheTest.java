@@ -0,0 +1,91 @@
+package miniplc0java;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.Scanner;
+import java.util.stream.Stream;
+
+import miniplc0java.analyser.Analyser;
+import miniplc0java.cache.CompileCache;
+import miniplc0java.tokenizer.StringIter;
+import miniplc0java.tokenizer.Tokenizer;
+
+public class CompileCacheTest {
+
+    @Test
+    public void testGetAndPut() throws Exception {
+        var dir = Files.createTempDirectory("cache");
+        try {
+            var cache = new CompileCache(dir, CompileCache.DEFAULT_MAX_BYTES);
+            var source = "begin\nvar a = 1;\nprint(a + 2);\nend\n".getBytes();
+            var key = CompileCache.key(source, "");
+            assertEquals(64, key.length());
+            assertNotEquals(key, CompileCache.key(source, "other"));
+            assertNull(cache.get(key));
+
+            var analyser = new Analyser(new Tokenizer(new StringIter(new Scanner(new String(source)))));
+            var instructions = analyser.analyseToBuffer();
+            cache.putCompiled(key, instructions, analyser.getSourceMap());
+            var entry = cache.get(key);
+            assertFalse(entry.isFailed());
+            assertEquals(instructions, entry.toBuffer());
+            assertEquals(analyser.getSourceMap().getRow(2), entry.getSourceMap().getRow(2));
+
+            var failed = CompileCache.key("begin\nprint(x);\nend\n".getBytes(), "");
+            cache.putFailed(failed, "Analyze Error: NotDeclared");
+            assertTrue(cache.get(failed).isFailed());
+            assertEquals("Analyze Error: NotDeclared", cache.get(failed).getDiagnostics());
+
+            // 损坏的项当作没有命中，并且被删掉
+            var path = dir.resolve(key.substring(0, 2)).resolve(key.substring(2));
+            var bytes = Files.readAllBytes(path);
+            bytes[bytes.length - 1] ^= 1;
+            Files.write(path, bytes);
+            assertNull(cache.get(key));
+            assertFalse(Files.exists(path));
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        var dir = Files.createTempDirectory("cache");
+        try {
+            // 每项 4 + 1000 字节，最多放 3 项
+            var cache = new CompileCache(dir, 3500);
+            var keys = new String[4];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = CompileCache.key(new byte[] { (byte) i }, "");
+                cache.putFailed(keys[i], "x".repeat(1000));
+                var path = dir.resolve(keys[i].substring(0, 2)).resolve(keys[i].substring(2));
+                Files.setLastModifiedTime(path, FileTime.fromMillis(1_000_000L * (i + 1)));
+                if (i == 2) {
+                    // 用过第 0 项，最久没用的变成第 1 项
+                    cache.get(keys[0]);
+                }
+            }
+            assertNotNull(cache.get(keys[0]));
+            assertNull(cache.get(keys[1]));
+            assertNotNull(cache.get(keys[3]));
+            // 目录大小记在 size 文件里，下一个 JVM 不用重新统计
+            assertEquals("3012", Files.readString(dir.resolve("size")));
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (var path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package miniplc0java;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+
+import miniplc0java.server.CompileClient;
+import miniplc0java.server.CompileServer;
+
+public class CompileServerTest {
+
+    @Test
+    public void testClientAndServer() throws Exception {
+        // Unix 域套接字需要 Java 16
+        assumeTrue(CompileServer.isSupported());
+        var dir = Files.createTempDirectory("server");
+        var socket = dir.resolve("test.sock");
+        var server = new CompileServer(socket, Duration.ofMillis(500));
+        server.listen();
+        var thread = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        thread.start();
+        try {
+            // 源码从标准输入读
+            var stdin = new ByteArrayInputStream("begin\nvar a = 1;\nprint(a + 2);\nend\n".getBytes());
+            var stdout = new ByteArrayOutputStream();
+            var stderr = new ByteArrayOutputStream();
+            int status = CompileClient.run(socket, dir, new String[] { "-r", "-o", "-", "-" }, stdin, stdout,
+                    stderr);
+            assertEquals(0, status);
+            assertEquals("3\n", stdout.toString(StandardCharsets.UTF_8));
+
+            // 相对路径相对于客户端的工作目录，运行时除以 0 的退出码是 1
+            Files.writeString(dir.resolve("fault.c0"), "begin\nvar a = 0;\nprint(1 / a);\nend\n");
+            stdout.reset();
+            status = CompileClient.run(socket, dir, new String[] { "-r", "-o", "-", "fault.c0" },
+                    new ByteArrayInputStream(new byte[0]), stdout, stderr);
+            assertEquals(1, status);
+            assertTrue(stderr.toString(StandardCharsets.UTF_8).contains("ArithmeticException"));
+
+            // 空闲超时以后退出并删掉套接字文件
+            thread.join(10_000);
+            assertFalse(thread.isAlive());
+            assertFalse(Files.exists(socket));
+        } finally {
+            server.close();
+            Files.deleteIfExists(dir.resolve("fault.c0"));
+            Files.deleteIfExists(socket);
+            Files.delete(dir);
+        }
+    }
+}
@@ -1,31 +1,87 @@
 package miniplc0java;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
+import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
 
 import org.junit.Test;
 
 import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.InstructionBuffer;
+import miniplc0java.instruction.ObjectFile;
+import miniplc0java.instruction.Opcode;
+import miniplc0java.instruction.SourceMap;
 import miniplc0java.instruction.Operation;
+import miniplc0java.tokenizer.StringIter;
+import miniplc0java.tokenizer.Tokenizer;
+import miniplc0java.analyser.Analyser;
+import miniplc0java.bench.Programs;
+import miniplc0java.error.ErrorCode;
+import miniplc0java.error.VerificationError;
+import miniplc0java.vm.BytecodeVm;
+import miniplc0java.vm.ClosureVm;
+import miniplc0java.vm.Engine;
+import miniplc0java.vm.ExecutionService;
+import miniplc0java.vm.ExecutionTrace;
 import miniplc0java.vm.MiniVm;
+import miniplc0java.vm.OutputBuffer;
+import miniplc0java.vm.Profiler;
+import miniplc0java.vm.RegisterVm;
+import miniplc0java.vm.RunLimits;
+import miniplc0java.vm.RunResult;
+import miniplc0java.vm.TieredExecution;
+import miniplc0java.vm.Verifier;
 
 public class MiniVmTest {
 
     private String RunVm(List<Instruction> instructions) {
-        var utf8 = java.nio.charset.StandardCharsets.UTF_8;
-        ByteArrayOutputStream ostream = new ByteArrayOutputStream();
-        var output = new PrintStream(ostream, true, utf8);
+        // 每个引擎都跑一遍，输出和异常必须和解释器一样
+        String expected = null;
+        Throwable expectedError = null;
+        for (var engine : Engine.values()) {
+            var utf8 = java.nio.charset.StandardCharsets.UTF_8;
+            ByteArrayOutputStream ostream = new ByteArrayOutputStream();
+            var output = new PrintStream(ostream, true, utf8);
 
-        var vm = new MiniVm(instructions, output);
-        vm.Run();
-        output.close();
+            var vm = engine.create(InstructionBuffer.of(instructions).asLongBuffer(), output);
+            Throwable error = null;
+            try {
+                vm.Run();
+            } catch (RuntimeException | Error e) {
+                error = e;
+            }
+            output.close();
 
-        var outString = ostream.toString(utf8);
-        return outString;
+            var outString = ostream.toString(utf8);
+            if (engine == Engine.INTERPRETER) {
+                expected = outString;
+                expectedError = error;
+            } else {
+                assertEquals(engine.getName(), expected, outString);
+                assertEquals(engine.getName(), String.valueOf(expectedError), String.valueOf(error));
+            }
+        }
+        if (expectedError instanceof RuntimeException) {
+            throw (RuntimeException) expectedError;
+        } else if (expectedError != null) {
+            throw (Error) expectedError;
+        }
+        return expected;
     }
 
     @Test
@@ -41,6 +97,46 @@ public class MiniVmTest {
         assertEquals(String.format("1 + 2 should equal to 3", outString), "3\n", outString);
     }
 
+    @Test
+    public void testLongExpression() {
+        // a + a + ... + a，ClosureVm 不能把它编译成一棵 20 万层的表达式树
+        var instructions = new ArrayList<Instruction>();
+        instructions.add(new Instruction(Operation.LIT, 1));
+        instructions.add(new Instruction(Operation.LOD, 0));
+        for (int i = 1; i < 200_000; i++) {
+            instructions.add(new Instruction(Operation.LOD, 0));
+            instructions.add(new Instruction(Operation.ADD));
+        }
+        instructions.add(new Instruction(Operation.WRT));
+
+        assertEquals("200000\n", RunVm(instructions));
+    }
+
+    @Test(timeout = 20_000)
+    public void testManyVariables() {
+        // 20 万个变量，每个都赋值一次，ClosureVm 编译的时间要和指令数成正比，平方的话要几分钟
+        int n = 200_000;
+        var instructions = new ArrayList<Instruction>();
+        for (int i = 0; i < n; i++) {
+            instructions.add(new Instruction(Operation.LIT, i));
+        }
+        for (int i = 1; i < n; i++) {
+            instructions.add(new Instruction(Operation.LOD, i - 1));
+            instructions.add(new Instruction(Operation.LOD, i));
+            instructions.add(new Instruction(Operation.ADD));
+            instructions.add(new Instruction(Operation.STO, i));
+        }
+        instructions.add(new Instruction(Operation.LOD, n - 1));
+        instructions.add(new Instruction(Operation.WRT));
+
+        // 0 + 1 + ... + (n - 1)，溢出和 int 一样回绕
+        int sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += i;
+        }
+        assertEquals(sum + "\n", RunVm(instructions));
+    }
+
     @Test
     public void testMinus() {
         var instructions = new ArrayList<Instruction>();
@@ -113,4 +209,662 @@ public class MiniVmTest {
 
         assertEquals(String.format("Stack top should be 1, 2", outString), "1\n2\n", outString);
     }
+
+    @Test
+    public void testInstructionBuffer() {
+        var instructions = new ArrayList<Instruction>();
+        instructions.add(new Instruction(Operation.LIT, -7));
+        instructions.add(new Instruction(Operation.LIT, Integer.MAX_VALUE));
+        instructions.add(new Instruction(Operation.LOD, 0));
+        instructions.add(new Instruction(Operation.ADD));
+        instructions.add(new Instruction(Operation.STO, 0));
+        instructions.add(new Instruction(Operation.WRT));
+
+        var buffer = InstructionBuffer.of(instructions);
+        assertEquals(instructions, buffer.toList());
+
+        var utf8 = java.nio.charset.StandardCharsets.UTF_8;
+        ByteArrayOutputStream ostream = new ByteArrayOutputStream();
+        var output = new PrintStream(ostream, true, utf8);
+        new MiniVm(buffer, output).Run();
+        output.close();
+
+        assertEquals(RunVm(instructions), ostream.toString(utf8));
+        assertEquals("2147483640\n", ostream.toString(utf8));
+    }
+
+    @Test
+    public void testObjectFile() throws IOException {
+        var buffer = new InstructionBuffer();
+        var sourceMap = new SourceMap();
+        buffer.add(Operation.LIT, 6);
+        sourceMap.add(1, 2);
+        buffer.add(Operation.LIT, -4);
+        sourceMap.add(1, 5);
+        buffer.add(Operation.MUL);
+        sourceMap.add(1, 4);
+        buffer.add(Operation.WRT);
+        sourceMap.add(1, 0);
+
+        var bytes = new ByteArrayOutputStream();
+        ObjectFile.write(Channels.newChannel(bytes), buffer, sourceMap);
+        var object = ObjectFile.wrap(ByteBuffer.wrap(bytes.toByteArray()));
+        assertTrue(object.checksumMatches());
+        assertTrue(object.hasDebugInfo());
+        assertEquals(buffer, object.toBuffer());
+        assertEquals(5, object.getPos(1).col);
+
+        var utf8 = java.nio.charset.StandardCharsets.UTF_8;
+        ByteArrayOutputStream ostream = new ByteArrayOutputStream();
+        var output = new PrintStream(ostream, true, utf8);
+        new MiniVm(object.instructions(), output).Run();
+        output.close();
+        assertEquals("-24\n", ostream.toString(utf8));
+
+        // 改一个字节校验和就对不上了
+        var corrupt = bytes.toByteArray();
+        corrupt[20] ^= 1;
+        assertFalse(ObjectFile.wrap(ByteBuffer.wrap(corrupt)).checksumMatches());
+    }
+
+    @Test
+    public void testOpcodes() {
+        assertEquals(Operation.ILL.ordinal(), Opcode.ILL);
+        assertEquals(Operation.LIT.ordinal(), Opcode.LIT);
+        assertEquals(Operation.LOD.ordinal(), Opcode.LOD);
+        assertEquals(Operation.STO.ordinal(), Opcode.STO);
+        assertEquals(Operation.ADD.ordinal(), Opcode.ADD);
+        assertEquals(Operation.SUB.ordinal(), Opcode.SUB);
+        assertEquals(Operation.MUL.ordinal(), Opcode.MUL);
+        assertEquals(Operation.DIV.ordinal(), Opcode.DIV);
+        assertEquals(Operation.WRT.ordinal(), Opcode.WRT);
+    }
+
+    @Test
+    public void testErrors() {
+        // 栈下溢
+        var instructions = new ArrayList<Instruction>();
+        instructions.add(new Instruction(Operation.LIT, 1));
+        instructions.add(new Instruction(Operation.ADD));
+        var e = assertThrows(IndexOutOfBoundsException.class, () -> RunVm(instructions));
+        assertEquals("Index -1 out of bounds for length 0", e.getMessage());
+
+        // 偏移越界
+        instructions.clear();
+        instructions.add(new Instruction(Operation.LIT, 1));
+        instructions.add(new Instruction(Operation.LOD, 3));
+        e = assertThrows(IndexOutOfBoundsException.class, () -> RunVm(instructions));
+        assertEquals("Index 3 out of bounds for length 1", e.getMessage());
+
+        instructions.clear();
+        instructions.add(new Instruction(Operation.LIT, 1));
+        instructions.add(new Instruction(Operation.STO, 0));
+        e = assertThrows(IndexOutOfBoundsException.class, () -> RunVm(instructions));
+        assertEquals("Index 0 out of bounds for length 0", e.getMessage());
+
+        // 除以 0
+        instructions.clear();
+        instructions.add(new Instruction(Operation.LIT, 1));
+        instructions.add(new Instruction(Operation.LIT, 0));
+        instructions.add(new Instruction(Operation.DIV));
+        assertThrows(ArithmeticException.class, () -> RunVm(instructions));
+
+        // 非法指令
+        instructions.clear();
+        instructions.add(new Instruction(Operation.ILL));
+        var error = assertThrows(Error.class, () -> RunVm(instructions));
+        assertEquals("Illegal instruction", error.getMessage());
+    }
+
+    @Test
+    public void testDeepStack() {
+        var instructions = new ArrayList<Instruction>();
+        for (int i = 0; i < 1000; i++) {
+            instructions.add(new Instruction(Operation.LIT, i));
+        }
+        for (int i = 0; i < 999; i++) {
+            instructions.add(new Instruction(Operation.ADD));
+        }
+        instructions.add(new Instruction(Operation.WRT));
+
+        assertEquals("499500\n", RunVm(instructions));
+    }
+
+    @Test
+    public void testVerifier() throws VerificationError {
+        var buffer = new InstructionBuffer();
+        buffer.add(Operation.LIT, 1);
+        buffer.add(Operation.LIT, 2);
+        buffer.add(Operation.LOD, 0);
+        buffer.add(Operation.ADD);
+        buffer.add(Operation.STO, 0);
+        buffer.add(Operation.LOD, 0);
+        buffer.add(Operation.WRT);
+        assertEquals(3, Verifier.verify(buffer.asLongBuffer()));
+
+        var ostream = new ByteArrayOutputStream();
+        var vm = new MiniVm(buffer, new PrintStream(ostream, true));
+        vm.Run();
+        assertTrue(vm.isVerified());
+        assertEquals("3\n", ostream.toString());
+
+        var underflow = new InstructionBuffer();
+        underflow.add(Operation.LIT, 1);
+        underflow.add(Operation.WRT);
+        underflow.add(Operation.WRT);
+        var e = assertThrows(VerificationError.class, () -> Verifier.verify(underflow.asLongBuffer()));
+        assertEquals(ErrorCode.StackUnderflow, e.getErr());
+        assertEquals(2, e.getOffset());
+
+        var operand = new InstructionBuffer();
+        operand.add(Operation.LIT, 1);
+        operand.add(Operation.STO, 0);
+        e = assertThrows(VerificationError.class, () -> Verifier.verify(operand.asLongBuffer()));
+        assertEquals(ErrorCode.InvalidOperand, e.getErr());
+        assertEquals(1, e.getOffset());
+
+        var ill = new InstructionBuffer();
+        ill.add(Operation.ILL);
+        e = assertThrows(VerificationError.class, () -> Verifier.verify(ill.asLongBuffer()));
+        assertEquals(ErrorCode.InvalidInstruction, e.getErr());
+
+        // 没通过校验的仍然按原来的方式运行，输出已经执行到的部分
+        ostream.reset();
+        vm = new MiniVm(underflow, new PrintStream(ostream, true));
+        assertThrows(IndexOutOfBoundsException.class, vm::Run);
+        assertFalse(vm.isVerified());
+        assertEquals("1\n", ostream.toString());
+    }
+
+    /**
+     * 分别用合并过超级指令的快速路径和逐条检查的路径运行，比较输出
+     */
+    private void assertSameAsChecked(InstructionBuffer buffer) {
+        var fast = new ByteArrayOutputStream();
+        var vm = new MiniVm(buffer, new PrintStream(fast, true));
+        vm.Run();
+        assertTrue(vm.isVerified());
+
+        // 末尾加一条 ILL，校验不通过，只能走检查的路径
+        var checkedBuffer = new InstructionBuffer();
+        checkedBuffer.addAll(buffer);
+        checkedBuffer.add(Operation.ILL);
+        var checked = new ByteArrayOutputStream();
+        var checkedVm = new MiniVm(checkedBuffer, new PrintStream(checked, true));
+        assertThrows(Error.class, checkedVm::Run);
+        assertFalse(checkedVm.isVerified());
+
+        assertEquals(checked.toString(), fast.toString());
+    }
+
+    @Test
+    public void testFusion() throws Exception {
+        for (int seed = 0; seed < 5; seed++) {
+            var source = Programs.arithmetic(200, 8, seed);
+            var buffer = new Analyser(new Tokenizer(new StringIter(new Scanner(source)))).analyseToBuffer();
+            assertSameAsChecked(buffer);
+        }
+
+        // LOD a; LOD b; ADD 里 b 是刚压入的 a
+        var buffer = new InstructionBuffer();
+        buffer.add(Operation.LIT, 3);
+        buffer.add(Operation.LOD, 0);
+        buffer.add(Operation.LOD, 1);
+        buffer.add(Operation.ADD);
+        buffer.add(Operation.WRT);
+        assertSameAsChecked(buffer);
+
+        // 取负的表达式里读了 LIT 0 所在的位置，不能去掉 LIT 0
+        buffer = new InstructionBuffer();
+        buffer.add(Operation.LIT, 5);
+        buffer.add(Operation.LIT, 0);
+        buffer.add(Operation.LOD, 1);
+        buffer.add(Operation.SUB);
+        buffer.add(Operation.WRT);
+        buffer.add(Operation.LIT, 0);
+        buffer.add(Operation.LIT, 0);
+        buffer.add(Operation.LOD, 0);
+        buffer.add(Operation.LIT, 2);
+        buffer.add(Operation.MUL);
+        buffer.add(Operation.SUB);
+        buffer.add(Operation.SUB);
+        buffer.add(Operation.STO, 0);
+        buffer.add(Operation.LOD, 0);
+        buffer.add(Operation.WRT);
+        assertSameAsChecked(buffer);
+    }
+
+    /**
+     * 随机生成能通过校验的指令，有时会除以 0
+     */
+    private static List<Instruction> randomProgram(Random random) {
+        var instructions = new ArrayList<Instruction>();
+        int depth = 0;
+        int n = random.nextInt(40);
+        for (int i = 0; i < n; i++) {
+            int choice = random.nextInt(8);
+            if (depth == 0 || (depth == 1 && choice >= 2 && choice <= 6)) {
+                choice = 0;
+            }
+            switch (choice) {
+                case 0:
+                    instructions.add(new Instruction(Operation.LIT, random.nextInt(4) == 0 ? 0 : random.nextInt(9) - 4));
+                    depth++;
+                    break;
+                case 1:
+                    instructions.add(new Instruction(Operation.LOD, random.nextInt(depth)));
+                    depth++;
+                    break;
+                case 2:
+                    depth--;
+                    instructions.add(new Instruction(Operation.STO, random.nextInt(depth)));
+                    break;
+                case 3:
+                    instructions.add(new Instruction(Operation.ADD));
+                    depth--;
+                    break;
+                case 4:
+                    instructions.add(new Instruction(Operation.SUB));
+                    depth--;
+                    break;
+                case 5:
+                    instructions.add(new Instruction(Operation.MUL));
+                    depth--;
+                    break;
+                case 6:
+                    instructions.add(new Instruction(Operation.DIV));
+                    depth--;
+                    break;
+                default:
+                    instructions.add(new Instruction(Operation.WRT));
+                    depth--;
+                    break;
+            }
+        }
+        for (; depth > 0; depth--) {
+            instructions.add(new Instruction(Operation.WRT));
+        }
+        return instructions;
+    }
+
+    @Test
+    public void testEngines() throws Exception {
+        var random = new Random(42);
+        for (int i = 0; i < 2000; i++) {
+            var instructions = randomProgram(random);
+            try {
+                RunVm(instructions);
+            } catch (ArithmeticException e) {
+                // RunVm 已经比较过各个引擎的异常
+            }
+        }
+
+        for (int seed = 0; seed < 5; seed++) {
+            var source = Programs.arithmetic(200, 8, seed);
+            var instructions = new Analyser(new Tokenizer(new StringIter(new Scanner(source)))).analyse();
+            RunVm(instructions);
+        }
+
+        // 大程序要拆成很多个方法、很多个类
+        var source = Programs.arithmetic(50_000, 64, 7);
+        var big = new Analyser(new Tokenizer(new StringIter(new Scanner(source)))).analyse();
+        assertTrue(new BytecodeVm(big, System.out).isCompiled());
+        RunVm(big);
+        // 寄存器指令的分派次数不到栈式指令的一半
+        assertTrue(new RegisterVm(big, System.out).getInstructionCount() < big.size() / 2);
+
+        // 没通过校验的交给解释器
+        var instructions = new ArrayList<Instruction>();
+        instructions.add(new Instruction(Operation.WRT));
+        assertFalse(new ClosureVm(instructions, System.out).isCompiled());
+        assertFalse(new BytecodeVm(instructions, System.out).isCompiled());
+        assertFalse(new RegisterVm(instructions, System.out).isCompiled());
+    }
+
+    @Test
+    public void testTieredExecution() throws Exception {
+        var source = Programs.arithmetic(200, 8, 3);
+        var buffer = new Analyser(new Tokenizer(new StringIter(new Scanner(source)))).analyseToBuffer();
+        var expected = RunVm(buffer.toList());
+
+        for (var engine : new Engine[] { Engine.CLOSURE, Engine.BYTECODE }) {
+            // 在当前线程里编译，第 3 次运行时升级
+            var tiered = new TieredExecution(engine, 3, Long.MAX_VALUE, Runnable::run);
+            var program = tiered.load(buffer.asLongBuffer());
+            for (int i = 0; i < 5; i++) {
+                var ostream = new ByteArrayOutputStream();
+                program.run(new PrintStream(ostream, true));
+                assertEquals(expected, ostream.toString());
+                assertEquals(i < 2 ? TieredExecution.Tier.INTERPRETED : TieredExecution.Tier.COMPILED,
+                        program.getTier());
+            }
+            var metrics = tiered.getMetrics();
+            assertEquals(1, metrics.getPrograms());
+            assertEquals(3, metrics.getInterpretedRuns());
+            assertEquals(2, metrics.getCompiledRuns());
+            assertEquals(1, metrics.getCompiled());
+            assertEquals(5L * buffer.size(), program.getInstructions());
+        }
+
+        // 不能编译的一直解释执行
+        var tiered = new TieredExecution(Engine.BYTECODE, 1, Long.MAX_VALUE, Runnable::run);
+        var bad = new InstructionBuffer();
+        bad.add(Operation.WRT);
+        var program = tiered.load(bad.asLongBuffer());
+        assertThrows(IndexOutOfBoundsException.class, () -> program.run(System.out));
+        assertEquals(TieredExecution.Tier.FAILED, program.getTier());
+        assertEquals(1, tiered.getMetrics().getFailed());
+    }
+
+    @Test
+    public void testOutputBuffer() {
+        int[] values = { 0, 1, -1, 9, 10, -10, 99, 100, 12345, -67890, Integer.MAX_VALUE, Integer.MIN_VALUE };
+        var expected = new ByteArrayOutputStream();
+        var printf = new PrintStream(expected, true);
+        var actual = new ByteArrayOutputStream();
+        // 容量很小，中途要写出去好几次
+        var output = new OutputBuffer(actual, OutputBuffer.FlushPolicy.BLOCK, 16);
+        for (int i = 0; i < 100; i++) {
+            for (int value : values) {
+                printf.printf("%d\n", value);
+                output.accept(value);
+            }
+        }
+        assertTrue(actual.size() < expected.size());
+        output.flush();
+        assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+
+        // 按行写出去的每个 WRT 之后都能看到
+        actual.reset();
+        output = new OutputBuffer(actual, OutputBuffer.FlushPolicy.LINE);
+        output.accept(-42);
+        assertEquals("-42\n", actual.toString());
+
+        // 出错之前的输出也要写出去
+        var instructions = new ArrayList<Instruction>();
+        instructions.add(new Instruction(Operation.LIT, 7));
+        instructions.add(new Instruction(Operation.WRT));
+        instructions.add(new Instruction(Operation.LIT, 1));
+        instructions.add(new Instruction(Operation.LIT, 0));
+        instructions.add(new Instruction(Operation.DIV));
+        instructions.add(new Instruction(Operation.WRT));
+        for (var engine : Engine.values()) {
+            var ostream = new ByteArrayOutputStream();
+            var vm = engine.create(InstructionBuffer.of(instructions).asLongBuffer(), new PrintStream(ostream));
+            assertThrows(ArithmeticException.class, vm::Run);
+            assertEquals(engine.getName(), "7\n", ostream.toString());
+        }
+    }
+
+    @Test
+    public void testRunLimits() {
+        // 变量 0; 反复输出 10、累加，最深 3
+        var buffer = new InstructionBuffer();
+        buffer.add(Operation.LIT, 0);
+        for (int i = 0; i < 1000; i++) {
+            buffer.add(Operation.LIT, 10);
+            buffer.add(Operation.WRT);
+            buffer.add(Operation.LOD, 0);
+            buffer.add(Operation.LIT, 1);
+            buffer.add(Operation.ADD);
+            buffer.add(Operation.STO, 0);
+        }
+        int length = buffer.size();
+        var ostream = new ByteArrayOutputStream();
+
+        var result = new MiniVm(buffer, new PrintStream(ostream)).Run(RunLimits.UNLIMITED);
+        assertEquals(RunResult.Status.COMPLETED, result.getStatus());
+        assertEquals(length, result.getInstructions());
+        assertEquals(3000, result.getOutputBytes());
+        assertEquals(3000, ostream.size());
+
+        // 执行 61 条：LIT 0 之后的 10 轮
+        ostream.reset();
+        result = new MiniVm(buffer, new PrintStream(ostream)).Run(new RunLimits(61, 100, 100_000, null, 16));
+        assertEquals(RunResult.Status.INSTRUCTION_LIMIT, result.getStatus());
+        assertEquals(61, result.getInstructions());
+        assertEquals(30, ostream.size());
+
+        ostream.reset();
+        result = new MiniVm(buffer, new PrintStream(ostream)).Run(new RunLimits(length, 2, 100_000, null));
+        assertEquals(RunResult.Status.STACK_LIMIT, result.getStatus());
+        assertEquals(4, result.getInstructions());
+        assertEquals("10\n", ostream.toString());
+
+        // 输出最多 100 字节，超出的那一行不输出
+        ostream.reset();
+        result = new MiniVm(buffer, new PrintStream(ostream)).Run(new RunLimits(length, 100, 100, null, 16));
+        assertEquals(RunResult.Status.OUTPUT_LIMIT, result.getStatus());
+        assertEquals(99, ostream.size());
+        assertEquals(99, result.getOutputBytes());
+        assertTrue(result.getInstructions() < length);
+
+        // 第一次检查时就超时了
+        var limits = new RunLimits(length, 100, 100_000, Duration.ZERO, 16);
+        result = new MiniVm(buffer, new PrintStream(ostream)).Run(limits);
+        assertEquals(RunResult.Status.DEADLINE, result.getStatus());
+        assertTrue(result.getInstructions() < length);
+
+        // 出错不抛异常，出错之前的输出还在
+        ostream.reset();
+        buffer.add(Operation.LIT, 1);
+        buffer.add(Operation.LIT, 0);
+        buffer.add(Operation.DIV);
+        result = new MiniVm(buffer, new PrintStream(ostream)).Run(RunLimits.UNLIMITED);
+        assertEquals(RunResult.Status.FAULT, result.getStatus());
+        assertTrue(result.getFault() instanceof ArithmeticException);
+        assertEquals(3000, ostream.size());
+
+        // 没有通过校验的指令也一样
+        buffer.add(Operation.ILL);
+        result = new MiniVm(buffer, new PrintStream(ostream)).Run(new RunLimits(length + 2, 100, 100_000, null));
+        assertEquals(RunResult.Status.INSTRUCTION_LIMIT, result.getStatus());
+        assertEquals(length + 2, result.getInstructions());
+        result = new MiniVm(buffer, new PrintStream(ostream)).Run(RunLimits.UNLIMITED);
+        assertEquals(RunResult.Status.FAULT, result.getStatus());
+        assertEquals(length + 2, result.getInstructions());
+    }
+
+    @Test
+    public void testProfiler() throws Exception {
+        var source = "begin\nvar a = 1;\nvar b;\nb = a * 2 + 3;\nprint(b);\nprint(-a);\nend\n";
+        var analyser = new Analyser(new Tokenizer(new StringIter(new Scanner(source))));
+        var instructions = analyser.analyseToBuffer();
+        var sourceMap = analyser.getSourceMap();
+        var code = instructions.asLongBuffer();
+
+        var ostream = new ByteArrayOutputStream();
+        var profiler = new Profiler();
+        var vm = new MiniVm(code, new PrintStream(ostream));
+        vm.setProfiler(profiler);
+        vm.Run();
+        vm = new MiniVm(code, new PrintStream(ostream));
+        vm.setProfiler(profiler);
+        vm.Run();
+        // 输出和不分析时一样
+        assertEquals("5\n-1\n5\n-1\n", ostream.toString());
+        assertEquals(2, profiler.getRuns());
+        for (int i = 0; i < instructions.size(); i++) {
+            assertEquals(2, profiler.getCount(i));
+        }
+        var counts = profiler.getCountsByOperation(code);
+        assertEquals(4, counts[Operation.WRT.ordinal()]);
+        assertEquals(2, counts[Operation.MUL.ordinal()]);
+
+        var flat = new ByteArrayOutputStream();
+        profiler.writeFlat(new PrintStream(flat, true), code, sourceMap);
+        assertTrue(flat.toString().startsWith("runs: 2, instructions: " + instructions.size() * 2));
+        assertTrue(flat.toString().contains("WRT"));
+
+        // 每行是 miniplc0;line N;操作 时间，print 在第 5、6 行
+        var collapsed = new ByteArrayOutputStream();
+        profiler.writeCollapsed(new PrintStream(collapsed, true), code, sourceMap);
+        var lines = collapsed.toString().split("\n");
+        assertTrue(lines.length > 0);
+        var stacks = new ArrayList<String>();
+        for (var line : lines) {
+            assertTrue(line, line.matches("miniplc0;line [1-7];[A-Z]+ [0-9]+"));
+            stacks.add(line.substring(0, line.lastIndexOf(' ')));
+        }
+        assertTrue(stacks.contains("miniplc0;line 5;WRT"));
+        assertTrue(stacks.contains("miniplc0;line 6;WRT"));
+
+        // 出错时出错的那条指令也记下来
+        var buffer = new InstructionBuffer();
+        buffer.add(Operation.LIT, 1);
+        buffer.add(Operation.LIT, 0);
+        buffer.add(Operation.DIV);
+        buffer.add(Operation.WRT);
+        profiler = new Profiler();
+        vm = new MiniVm(buffer, new PrintStream(ostream));
+        vm.setProfiler(profiler);
+        assertThrows(ArithmeticException.class, vm::Run);
+        assertEquals(1, profiler.getCount(2));
+        assertEquals(0, profiler.getCount(3));
+    }
+
+    @Test
+    public void testExecutionTrace() throws Exception {
+        // 100 轮 LIT i; WRT，然后除以 0
+        var buffer = new InstructionBuffer();
+        for (int i = 0; i < 100; i++) {
+            buffer.add(Operation.LIT, i);
+            buffer.add(Operation.WRT);
+        }
+        buffer.add(Operation.LIT, 1);
+        buffer.add(Operation.LIT, 0);
+        buffer.add(Operation.DIV);
+        var trace = new ExecutionTrace(5);
+        assertEquals(8, trace.capacity());
+        var ostream = new ByteArrayOutputStream();
+        var vm = new MiniVm(buffer, new PrintStream(ostream));
+        vm.setTrace(trace);
+        assertThrows(ArithmeticException.class, vm::Run);
+        assertEquals(100, ostream.toString().split("\n").length);
+
+        // 最后一条是出错的 DIV，执行之前栈顶是 0
+        assertEquals(203, trace.getCount());
+        assertEquals(8, trace.size());
+        assertEquals(202, trace.getIp(7));
+        assertEquals(Operation.DIV, trace.getOperation(7));
+        assertEquals(0, trace.getTop(7));
+        assertEquals(Operation.LIT, trace.getOperation(6));
+        assertEquals(0, trace.getOperand(6));
+        assertEquals(1, trace.getTop(6));
+        assertEquals(195, trace.getIp(0));
+        assertEquals(Operation.WRT, trace.getOperation(0));
+        assertEquals(97, trace.getTop(0));
+
+        var binary = new ByteArrayOutputStream();
+        trace.write(binary);
+        assertEquals(20 + 8 * 16, binary.size());
+        var text = new ByteArrayOutputStream();
+        ExecutionTrace.decode(new ByteArrayInputStream(binary.toByteArray()), new PrintStream(text, true));
+        var lines = text.toString().split("\n");
+        assertEquals(9, lines.length);
+        assertEquals("203 instructions executed, last 8:", lines[0]);
+        assertEquals("#195 195: WRT top=97", lines[1]);
+        assertEquals("#200 200: LIT 1 top=0", lines[6]);
+        assertEquals("#202 202: DIV top=0", lines[8]);
+
+        assertThrows(IOException.class,
+                () -> ExecutionTrace.decode(new ByteArrayInputStream(new byte[20]), new PrintStream(text)));
+
+        // 不认识的操作码原样记下来，不能截断成别的指令
+        var bad = new InstructionBuffer();
+        bad.add(Operation.LIT, 1);
+        bad.addWord(257);
+        vm = new MiniVm(bad, new PrintStream(ostream));
+        trace.clear();
+        vm.setTrace(trace);
+        assertThrows(Error.class, vm::Run);
+        binary.reset();
+        trace.write(binary);
+        text.reset();
+        ExecutionTrace.decode(new ByteArrayInputStream(binary.toByteArray()), new PrintStream(text, true));
+        assertTrue(text.toString().endsWith("#1 1: ILL opcode=257 top=1\n"));
+
+        // 能建出来的记录都要能写出来，记录比一次写出的块多时也一样
+        assertThrows(IllegalArgumentException.class, () -> new ExecutionTrace(ExecutionTrace.MAX_CAPACITY + 1));
+        var many = new InstructionBuffer();
+        for (int i = 0; i < 6000; i++) {
+            many.add(Operation.LIT, i);
+            many.add(Operation.WRT);
+        }
+        trace = new ExecutionTrace(8192);
+        vm = new MiniVm(many, new PrintStream(new ByteArrayOutputStream()));
+        vm.setTrace(trace);
+        vm.Run();
+        binary.reset();
+        trace.write(binary);
+        assertEquals(20 + 8192 * 16, binary.size());
+        text.reset();
+        ExecutionTrace.decode(new ByteArrayInputStream(binary.toByteArray()), new PrintStream(text, true));
+        lines = text.toString().split("\n");
+        assertEquals(8193, lines.length);
+        assertEquals("#3808 3808: LIT 1904 top=0", lines[1]);
+        assertEquals("#11999 11999: WRT top=5999", lines[8192]);
+    }
+
+    @Test
+    public void testRepeatedRuns() {
+        // 第二次起用上一次校验和合并的结果，换了长度的运行要重新做
+        var buffer = new InstructionBuffer();
+        buffer.add(Operation.LIT, 6);
+        buffer.add(Operation.LIT, 7);
+        buffer.add(Operation.MUL);
+        buffer.add(Operation.WRT);
+        buffer.add(Operation.LIT, 1);
+        buffer.add(Operation.WRT);
+        var ostream = new ByteArrayOutputStream();
+        var vm = new MiniVm(buffer, new PrintStream(ostream));
+        vm.Run();
+        vm.Run();
+        assertTrue(vm.isVerified());
+        var result = vm.Run(new RunLimits(4, Integer.MAX_VALUE, Long.MAX_VALUE, null));
+        assertEquals(RunResult.Status.INSTRUCTION_LIMIT, result.getStatus());
+        vm.Run(RunLimits.UNLIMITED);
+        assertEquals("42\n1\n42\n1\n42\n42\n1\n", ostream.toString());
+    }
+
+    @Test
+    public void testExecutionService() throws Exception {
+        var programs = new ArrayList<InstructionBuffer>();
+        var expected = new ArrayList<String>();
+        for (int i = 0; i < 200; i++) {
+            var source = Programs.arithmetic(10 + i % 20, 4, i);
+            var buffer = new Analyser(new Tokenizer(new StringIter(new Scanner(source)))).analyseToBuffer();
+            programs.add(buffer);
+            var ostream = new ByteArrayOutputStream();
+            new MiniVm(buffer, new PrintStream(ostream)).Run();
+            expected.add(ostream.toString());
+        }
+        // 最后一个除以 0
+        var bad = new InstructionBuffer();
+        bad.add(Operation.LIT, 1);
+        bad.add(Operation.LIT, 0);
+        bad.add(Operation.DIV);
+        programs.add(bad);
+
+        for (var service : new ExecutionService[] { new ExecutionService(4), ExecutionService.withVirtualThreads() }) {
+            try (service) {
+                var outputs = new ArrayList<ByteArrayOutputStream>();
+                var futures = new ArrayList<CompletableFuture<RunResult>>();
+                for (var program : programs) {
+                    var ostream = new ByteArrayOutputStream();
+                    outputs.add(ostream);
+                    futures.add(service.submit(program.asLongBuffer(), new PrintStream(ostream)));
+                }
+                for (int i = 0; i < expected.size(); i++) {
+                    var result = futures.get(i).get();
+                    assertEquals(RunResult.Status.COMPLETED, result.getStatus());
+                    assertEquals(programs.get(i).size(), result.getInstructions());
+                    assertEquals(expected.get(i), outputs.get(i).toString());
+                }
+                var result = futures.get(expected.size()).get();
+                assertEquals(RunResult.Status.FAULT, result.getStatus());
+                assertTrue(result.getFault() instanceof ArithmeticException);
+            }
+        }
+    }
 }
@@ -0,0 +1,85 @@
+package miniplc0java;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+public class OptionParserTest {
+
+    private static OptionParser parser() {
+        var parser = new OptionParser("prog");
+        parser.addFlag("-t", "--tokenize");
+        parser.addFlag("-r", "--run");
+        parser.addFlag("--run-object");
+        parser.addOption("-j", "--jobs").integer().setDefault(0);
+        parser.addOption("-e", "--engine").choices("a", "b").setDefault("a");
+        parser.addOption("-o", "--output").required().dest("output");
+        parser.addPositional("file").dest("input");
+        return parser;
+    }
+
+    private static String error(String... args) {
+        try {
+            parser().parse(args, null);
+        } catch (OptionParser.OptionException e) {
+            return e.getMessage();
+        }
+        fail("no error");
+        return null;
+    }
+
+    @Test
+    public void testParse() throws Exception {
+        var result = parser().parse(new String[] { "-tj4", "--out=x", "--eng", "b", "--", "-" }, null);
+        assertTrue(result.getBoolean("tokenize"));
+        assertFalse(result.getBoolean("run_object"));
+        assertEquals(4, result.getInt("jobs"));
+        assertEquals("x", result.getString("output"));
+        assertEquals("b", result.getString("engine"));
+        assertEquals("-", result.getString("input"));
+
+        result = parser().parse(new String[] { "-ox", "-j", "-1", "in" }, null);
+        assertEquals("x", result.getString("output"));
+        assertEquals(-1, result.getInt("jobs"));
+        assertEquals("a", result.getString("engine"));
+        assertFalse(result.getBoolean("tokenize"));
+    }
+
+    @Test
+    public void testErrors() {
+        assertEquals("too few arguments", error("-o", "x"));
+        assertEquals("argument -o/--output is required", error("in"));
+        assertEquals("argument -o/--output: expected one argument", error("in", "-o"));
+        assertEquals("unrecognized arguments: 'y'", error("-o", "x", "in", "y"));
+        assertEquals("unrecognized arguments: '--frob'", error("--frob"));
+        assertEquals("ambiguous option: --ru could match --run, --run-object", error("--ru"));
+        assertEquals("argument -e/--engine: invalid choice: 'c' (choose from {a,b})", error("-e", "c"));
+        assertEquals("argument -j/--jobs: could not convert 'x' to Integer (For input string: \"x\")",
+                error("-j", "x"));
+        assertEquals("argument -t/--tokenize: ignored explicit argument 'q'", error("-tq"));
+    }
+
+    @Test
+    public void testHelp() throws Exception {
+        var out = new ByteArrayOutputStream();
+        assertNull(parser().parse(new String[] { "-o", "x", "--help" }, new PrintStream(out)));
+        var help = out.toString(StandardCharsets.UTF_8);
+        assertTrue(help.startsWith("usage: prog [-h] [-t] [-r] [--run-object] [-j JOBS] [-e {a,b}] -o OUTPUT\n"
+                + "            input\n"));
+        assertTrue(help.contains("\n  -j JOBS, --jobs JOBS\n"));
+
+        var err = new ByteArrayOutputStream();
+        var parser = parser();
+        try {
+            parser.parse(new String[] { "--tokenise" }, null);
+            fail();
+        } catch (OptionParser.OptionException e) {
+            parser.handleError(e, new PrintStream(err));
+        }
+        assertTrue(err.toString(StandardCharsets.UTF_8).endsWith("prog: error: unrecognized arguments: '--tokenise'\n"
+                + "\nDid you mean:\n\t--tokenize\n"));
+    }
+}
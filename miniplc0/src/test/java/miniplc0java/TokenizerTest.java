@@ -3,6 +3,87 @@ package miniplc0java;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
+import java.util.Scanner;
+
+import miniplc0java.error.TokenizeError;
+import miniplc0java.tokenizer.PipelinedTokenizer;
+import miniplc0java.tokenizer.StringIter;
+import miniplc0java.tokenizer.TokenSource;
+import miniplc0java.tokenizer.TokenType;
+import miniplc0java.tokenizer.Tokenizer;
+
 public class TokenizerTest {
 
+    private static Tokenizer tokenizer(String source) {
+        return new Tokenizer(new StringIter(new Scanner(source)));
+    }
+
+    /** Pos 没有 equals，所以比较 toString */
+    private static ArrayList<String> readAll(TokenSource source) throws TokenizeError {
+        var tokens = new ArrayList<String>();
+        while (true) {
+            var token = source.nextToken();
+            tokens.add(token.toString());
+            if (token.getTokenType() == TokenType.EOF) {
+                return tokens;
+            }
+        }
+    }
+
+    @Test
+    public void testPipelinedMatchesSerial() throws TokenizeError {
+        var sb = new StringBuilder("begin var a = 1;\n");
+        for (int i = 0; i < 1000; i++) {
+            sb.append("a = a * ").append(i).append(" - (a / 3);\nprint(a);\n");
+        }
+        sb.append("end\n");
+        var source = sb.toString();
+
+        var expected = readAll(tokenizer(source));
+        // 缓冲区很小，生产者会经常等消费者
+        try (var pipeline = new PipelinedTokenizer(tokenizer(source), 4)) {
+            assertEquals(expected, readAll(pipeline));
+            // EOF 之后一直返回 EOF
+            assertEquals(TokenType.EOF, pipeline.nextToken().getTokenType());
+        }
+    }
+
+    @Test
+    public void testPipelinedError() throws TokenizeError {
+        try (var pipeline = new PipelinedTokenizer(tokenizer("begin print(1); # end"), 2)) {
+            // 错误之前的 token 都能正常读到
+            for (int i = 0; i < 6; i++) {
+                pipeline.nextToken();
+            }
+            var e = assertThrows(TokenizeError.class, pipeline::nextToken);
+            assertEquals(0, e.getPos().row);
+            assertEquals(16, e.getPos().col);
+        }
+    }
+
+    @Test
+    public void testResetMatchesScanner() throws TokenizeError {
+        // 分行和最后的空白要和 Scanner 一样，否则 token 的位置会不同
+        var sources = new String[] { "", "  \n\t", "begin end", "begin\r\nvar a;\r\n\r\nend\r\n\r\n  \n",
+                "begin\rprint(1);\u2028end", "begin\n  \n\nend", "begin\u0085end\n\n", "begin #" };
+        var iter = new StringIter(null);
+        var tokenizer = new Tokenizer(iter);
+        for (var source : sources) {
+            String expected;
+            try {
+                expected = readAll(tokenizer(source)).toString();
+            } catch (TokenizeError e) {
+                expected = e.toString();
+            }
+            iter.reset(source);
+            String actual;
+            try {
+                actual = readAll(tokenizer).toString();
+            } catch (TokenizeError e) {
+                actual = e.toString();
+            }
+            assertEquals(source, expected, actual);
+        }
+    }
 }
@@ -0,0 +1,32 @@
+package miniplc0java.bench;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Scanner;
+
+import miniplc0java.analyser.Analyser;
+import miniplc0java.instruction.Assembler;
+import miniplc0java.tokenizer.StringIter;
+import miniplc0java.tokenizer.Tokenizer;
+
+/**
+ * 汇编指令列表的速度
+ */
+public class AssemblerBench {
+    public static void main(String[] args) throws Exception {
+        int statements = Bench.intProperty("statements", 200_000);
+        var source = Programs.arithmetic(statements, 64, 42);
+        var instructions = new Analyser(new Tokenizer(new StringIter(new Scanner(source)))).analyse();
+        var sb = new StringBuilder();
+        for (var instruction : instructions) {
+            sb.append(instruction).append('\n');
+        }
+        var bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+        // 和 mmap 的文件一样用 direct buffer
+        var buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes).flip();
+
+        double ms = Bench.time("assemble", 5, 20, () -> Assembler.assemble(buffer).size());
+        System.out.printf("%d instructions, %.1f MB/s%n", instructions.size(), bytes.length / 1e3 / ms);
+    }
+}
@@ -0,0 +1,48 @@
+package miniplc0java.bench;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+
+/**
+ * 非常简单的计时工具，先预热几轮，再取若干轮的中位数
+ * 
+ * 用 gradle bench -Pbench=类名 运行
+ */
+public final class Bench {
+    private Bench() {
+    }
+
+    /** 防止结果被优化掉 */
+    public static volatile Object sink;
+
+    /**
+     * @param name   名字
+     * @param warmup 预热轮数
+     * @param runs   计时轮数
+     * @param task   要计时的代码
+     * @return 中位数，单位毫秒
+     */
+    public static double time(String name, int warmup, int runs, Callable<?> task) throws Exception {
+        for (int i = 0; i < warmup; i++) {
+            sink = task.call();
+        }
+        var times = new double[runs];
+        for (int i = 0; i < runs; i++) {
+            long start = System.nanoTime();
+            sink = task.call();
+            times[i] = (System.nanoTime() - start) / 1e6;
+        }
+        Arrays.sort(times);
+        double median = times[runs / 2];
+        System.out.printf("%-32s median %10.2f ms  min %10.2f ms  max %10.2f ms%n", name, median, times[0],
+                times[runs - 1]);
+        return median;
+    }
+
+    /**
+     * 读取整数系统属性，方便在命令行调整规模
+     */
+    public static int intProperty(String name, int def) {
+        return Integer.getInteger(name, def);
+    }
+}
@@ -0,0 +1,51 @@
+package miniplc0java.bench;
+
+import java.lang.management.ManagementFactory;
+import java.util.Scanner;
+import java.util.concurrent.Callable;
+
+import miniplc0java.Compiler;
+import miniplc0java.analyser.Analyser;
+import miniplc0java.tokenizer.StringIter;
+import miniplc0java.tokenizer.Tokenizer;
+
+/**
+ * 比较每次新建 Tokenizer 和 Analyser 与复用同一个 Compiler，编译很多小程序时的时间和每次编译分配的内存
+ */
+public class CompilerBench {
+    public static void main(String[] args) throws Exception {
+        int programs = Bench.intProperty("programs", 2_000);
+        int statements = Bench.intProperty("statements", 50);
+        var sources = new String[programs];
+        for (int i = 0; i < programs; i++) {
+            sources[i] = Programs.arithmetic(statements, 8, i);
+        }
+
+        run("fresh", programs, () -> {
+            int total = 0;
+            for (var source : sources) {
+                total += new Analyser(new Tokenizer(new StringIter(new Scanner(source)))).analyseToBuffer().size();
+            }
+            return total;
+        });
+        var compiler = new Compiler();
+        run("reused", programs, () -> {
+            int total = 0;
+            for (var source : sources) {
+                total += compiler.compile(source, (instructions, sourceMap) -> instructions.size());
+            }
+            return total;
+        });
+    }
+
+    private static void run(String name, int programs, Callable<?> task) throws Exception {
+        Bench.time(name, 3, 10, task);
+        // 只有 HotSpot 提供按线程统计分配量
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long id = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(id);
+        Bench.sink = task.call();
+        long allocated = threads.getThreadAllocatedBytes(id) - before;
+        System.out.printf("%-32s %10d bytes allocated per compile%n", name, allocated / programs);
+    }
+}
@@ -0,0 +1,73 @@
+package miniplc0java.bench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import miniplc0java.instruction.InstructionBuffer;
+import miniplc0java.instruction.ListingWriter;
+import miniplc0java.instruction.Operation;
+
+/**
+ * 比较逐条 println(instruction.toString()) 和 ListingWriter
+ */
+public class ListingBench {
+    /** 丢掉所有输出，只测格式化本身 */
+    private static final class NullChannel implements WritableByteChannel {
+        long written = 0;
+
+        @Override
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            src.position(src.limit());
+            written += n;
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int n = Bench.intProperty("instructions", 2_000_000);
+        var instructions = new InstructionBuffer(n);
+        for (int i = 0; i < n; i++) {
+            switch (i % 4) {
+                case 0:
+                    instructions.add(Operation.LIT, i * 7919);
+                    break;
+                case 1:
+                    instructions.add(Operation.LOD, i % 64);
+                    break;
+                case 2:
+                    instructions.add(Operation.ADD);
+                    break;
+                default:
+                    instructions.add(Operation.STO, i % 64);
+                    break;
+            }
+        }
+        var list = instructions.toList();
+
+        Bench.time("println", 2, 5, () -> {
+            var out = new PrintStream(OutputStream.nullOutputStream());
+            for (var instruction : list) {
+                out.println(instruction.toString());
+            }
+            out.flush();
+            return out;
+        });
+        Bench.time("ListingWriter", 2, 5, () -> {
+            var channel = new NullChannel();
+            ListingWriter.write(channel, instructions);
+            return channel.written;
+        });
+    }
+}
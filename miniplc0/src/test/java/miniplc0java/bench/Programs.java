@@ -0,0 +1,51 @@
+package miniplc0java.bench;
+
+import java.util.Random;
+
+/**
+ * 生成用来测性能的 miniplc0 程序
+ */
+public final class Programs {
+    private Programs() {
+    }
+
+    /**
+     * 生成一个有 statements 条语句、以算术为主的程序
+     * 
+     * @param statements 语句数
+     * @param variables  变量数
+     * @param seed       随机种子
+     */
+    public static String arithmetic(int statements, int variables, long seed) {
+        var random = new Random(seed);
+        var sb = new StringBuilder(statements * 32);
+        sb.append("begin\n");
+        sb.append("const k = 7;\n");
+        for (int i = 0; i < variables; i++) {
+            sb.append("var v").append(i).append(" = ").append(i + 1).append(";\n");
+        }
+        for (int i = 0; i < statements; i++) {
+            int a = random.nextInt(variables);
+            int b = random.nextInt(variables);
+            int c = random.nextInt(variables);
+            switch (random.nextInt(4)) {
+                case 0:
+                    sb.append('v').append(a).append(" = v").append(b).append(" + v").append(c).append(";\n");
+                    break;
+                case 1:
+                    sb.append('v').append(a).append(" = (v").append(b).append(" - ").append(random.nextInt(100))
+                            .append(") * k;\n");
+                    break;
+                case 2:
+                    sb.append('v').append(a).append(" = -v").append(b).append(" / (k + ")
+                            .append(random.nextInt(10)).append(");\n");
+                    break;
+                default:
+                    sb.append("print(v").append(a).append(" * v").append(b).append(");\n");
+                    break;
+            }
+        }
+        sb.append("end\n");
+        return sb.toString();
+    }
+}
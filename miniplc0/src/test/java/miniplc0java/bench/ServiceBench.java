@@ -0,0 +1,54 @@
+package miniplc0java.bench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+
+import miniplc0java.analyser.Analyser;
+import miniplc0java.instruction.InstructionBuffer;
+import miniplc0java.tokenizer.StringIter;
+import miniplc0java.tokenizer.Tokenizer;
+import miniplc0java.vm.ExecutionService;
+
+/**
+ * 用 ExecutionService 同时运行大量小程序，看吞吐量随线程数的变化
+ */
+public class ServiceBench {
+    public static void main(String[] args) throws Exception {
+        int count = Bench.intProperty("programs", 20_000);
+        int statements = Bench.intProperty("statements", 50);
+        // 几十种不同的小程序轮流提交
+        var programs = new ArrayList<InstructionBuffer>();
+        for (int i = 0; i < 64; i++) {
+            var source = Programs.arithmetic(statements, 8, i);
+            programs.add(new Analyser(new Tokenizer(new StringIter(new Scanner(source)))).analyseToBuffer());
+        }
+        var out = new PrintStream(OutputStream.nullOutputStream());
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int workers = 1; workers <= cores * 2; workers *= 2) {
+            try (var service = new ExecutionService(workers)) {
+                report(workers + " workers", service, programs, count, out);
+            }
+        }
+        try (var service = ExecutionService.withVirtualThreads()) {
+            report(service.usesVirtualThreads() ? "virtual threads" : "virtual threads (fallback)", service,
+                    programs, count, out);
+        }
+    }
+
+    private static void report(String name, ExecutionService service, ArrayList<InstructionBuffer> programs,
+            int count, PrintStream out) throws Exception {
+        double millis = Bench.time(name, 3, 10, () -> {
+            var futures = new CompletableFuture<?>[count];
+            for (int i = 0; i < count; i++) {
+                futures[i] = service.submit(programs.get(i % programs.size()).asLongBuffer(), out);
+            }
+            CompletableFuture.allOf(futures).join();
+            return futures;
+        });
+        System.out.printf("%-32s %10.0f programs/s%n", "", count / millis * 1000);
+    }
+}
@@ -0,0 +1,29 @@
+package miniplc0java.bench;
+
+import java.util.Scanner;
+
+import miniplc0java.analyser.Analyser;
+import miniplc0java.tokenizer.PipelinedTokenizer;
+import miniplc0java.tokenizer.StringIter;
+import miniplc0java.tokenizer.Tokenizer;
+
+/**
+ * 比较串行分析和词法/语法分析流水线
+ */
+public class TokenizerBench {
+    public static void main(String[] args) throws Exception {
+        int statements = Bench.intProperty("statements", 200_000);
+        var source = Programs.arithmetic(statements, 64, 42);
+
+        Bench.time("serial", 3, 10, () -> {
+            var tokenizer = new Tokenizer(new StringIter(new Scanner(source)));
+            return new Analyser(tokenizer).analyse().size();
+        });
+        Bench.time("pipelined", 3, 10, () -> {
+            var tokenizer = new Tokenizer(new StringIter(new Scanner(source)));
+            try (var pipeline = new PipelinedTokenizer(tokenizer)) {
+                return new Analyser(pipeline).analyse().size();
+            }
+        });
+    }
+}
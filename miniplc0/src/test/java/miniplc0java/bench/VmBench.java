@@ -0,0 +1,66 @@
+package miniplc0java.bench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Scanner;
+
+import miniplc0java.analyser.Analyser;
+import miniplc0java.instruction.InstructionBuffer;
+import miniplc0java.instruction.Operation;
+import miniplc0java.tokenizer.StringIter;
+import miniplc0java.tokenizer.Tokenizer;
+import miniplc0java.vm.Engine;
+import miniplc0java.vm.ExecutionTrace;
+import miniplc0java.vm.MiniVm;
+import miniplc0java.vm.RegisterVm;
+
+/**
+ * 在以算术为主的程序上测各个执行引擎
+ */
+public class VmBench {
+    public static void main(String[] args) throws Exception {
+        int statements = Bench.intProperty("statements", 200_000);
+        var source = Programs.arithmetic(statements, 64, 42);
+        var instructions = new Analyser(new Tokenizer(new StringIter(new Scanner(source)))).analyseToBuffer();
+        var out = new PrintStream(OutputStream.nullOutputStream());
+
+        // 格式化输出的开销很大，再测一个把 WRT 换成 STO 1 的版本（0 号是常量 k），只看计算
+        var silent = new InstructionBuffer(instructions.size());
+        for (int i = 0; i < instructions.size(); i++) {
+            if (instructions.getOpt(i) == Operation.WRT) {
+                silent.add(Operation.STO, 1);
+            } else {
+                silent.addWord(instructions.getWord(i));
+            }
+        }
+
+        for (var program : new InstructionBuffer[] { instructions, silent }) {
+            var register = new RegisterVm(program, out);
+            System.out.printf("%s: %d stack instructions, %d register instructions%n",
+                    program == instructions ? "with output" : "without output", program.size(),
+                    register.getInstructionCount());
+            for (var engine : Engine.values()) {
+                Bench.time(engine.getName(), 5, 20, () -> {
+                    engine.create(program.asLongBuffer(), out).Run();
+                    return out;
+                });
+            }
+            // 记录执行过程的开销
+            var trace = new ExecutionTrace(1024);
+            Bench.time("interpreter (traced)", 5, 20, () -> {
+                var vm = new MiniVm(program, out);
+                vm.setTrace(trace);
+                vm.Run();
+                return out;
+            });
+            // 编译型的引擎只编译一次，单独测运行的时间
+            for (var engine : new Engine[] { Engine.CLOSURE, Engine.REGISTER, Engine.BYTECODE }) {
+                var compiled = engine.create(program.asLongBuffer(), out);
+                Bench.time(engine.getName() + " (run only)", 5, 20, () -> {
+                    compiled.Run();
+                    return out;
+                });
+            }
+        }
+    }
+}